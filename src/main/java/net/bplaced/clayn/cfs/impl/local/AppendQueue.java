@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared queue that appends the records of all {@link GroupAppender appenders}
+ * of one file. Records are collected in a lock free queue and written by a
+ * single thread in batches. The thread waits until either the batch size is
+ * reached or the flush interval passed since the first record of the batch
+ * was queued. If at least one record of a batch requested durability the
+ * channel gets forced before the futures of the batch are completed.<br><br>
+ * A queue that replaces one that is still shutting down waits with writing
+ * until the old one wrote its last records, so records are never reordered.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class AppendQueue
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            AppendQueue.class);
+    private final Path file;
+    private final FileChannel channel;
+    private final Syncer syncer;
+    private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final ByteBuffer buffer;
+    private final int batchSize;
+    private final long flushInterval;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile AppendQueue previous;
+    private boolean stopped;
+    private int references;
+
+    /**
+     * @param previous the queue of the same file that is still shutting down
+     * or {@code null}
+     */
+    AppendQueue(Path file, int batchSize, long flushInterval, Syncer syncer,
+            AppendQueue previous) throws IOException
+    {
+        this.file = file;
+        this.previous = previous;
+        this.syncer = syncer;
+        this.batchSize = batchSize;
+        this.flushInterval = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        syncer.opened(channel);
+        this.buffer = ByteBuffer.allocateDirect(batchSize);
+        this.writer = new Thread(this::run, "cfs-appender-" + file.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    Path getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Must be called while holding the lock of the owning filesystem.
+     */
+    void retain()
+    {
+        references++;
+    }
+
+    /**
+     * Must be called while holding the lock of the owning filesystem.
+     *
+     * @return the remaining references
+     */
+    int release()
+    {
+        return --references;
+    }
+
+    /**
+     * Checks if the last appender was released, so the queue is shutting
+     * down. Must be called while holding the lock of the owning filesystem.
+     */
+    boolean isReleased()
+    {
+        return references <= 0;
+    }
+
+    CompletableFuture<Void> append(byte[] data, boolean durable)
+    {
+        Record r = new Record(data, durable);
+        if (!running)
+        {
+            r.future.completeExceptionally(closed());
+            return r.future;
+        }
+        queue.add(r);
+        long total = queued.addAndGet(data.length);
+        if (!running && queue.remove(r))
+        {
+            queued.addAndGet(-data.length);
+            r.future.completeExceptionally(closed());
+            return r.future;
+        }
+        if (total == data.length || total >= batchSize)
+        {
+            LockSupport.unpark(writer);
+        }
+        return r.future;
+    }
+
+    private IOException closed()
+    {
+        return new IOException("Appender for " + file + " is closed");
+    }
+
+    private void run()
+    {
+        AppendQueue before = previous;
+        if (before != null)
+        {
+            before.awaitWriter();
+            previous = null;
+        }
+        while (running || !queue.isEmpty())
+        {
+            if (queue.isEmpty())
+            {
+                LockSupport.park(this);
+                continue;
+            }
+            long deadline = System.nanoTime() + flushInterval;
+            while (running && queued.get() < batchSize)
+            {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0)
+                {
+                    break;
+                }
+                LockSupport.parkNanos(this, wait);
+            }
+            drain();
+        }
+    }
+
+    /**
+     * Writes the queued records. A single call writes at most a few batches so
+     * that the futures of the first records don't wait for an endless stream
+     * of new ones.
+     */
+    private void drain()
+    {
+        List<Record> batch = new ArrayList<>();
+        boolean force = false;
+        long written = 0;
+        try
+        {
+            Record r;
+            buffer.clear();
+            while (written < 4L * batchSize && (r = queue.poll()) != null)
+            {
+                queued.addAndGet(-r.data.length);
+                batch.add(r);
+                force |= r.durable;
+                written += r.data.length;
+                if (r.data.length > buffer.remaining())
+                {
+                    writeBuffer();
+                }
+                if (r.data.length > buffer.capacity())
+                {
+                    write(ByteBuffer.wrap(r.data));
+                } else
+                {
+                    buffer.put(r.data);
+                }
+            }
+            writeBuffer();
+            if (force)
+            {
+                channel.force(false);
+            }
+            for (Record done : batch)
+            {
+                done.future.complete(null);
+            }
+        } catch (IOException | RuntimeException ex)
+        {
+            LOG.error("Failed to append {} records to {}", batch.size(), file,
+                    ex);
+            for (Record failed : batch)
+            {
+                failed.future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private void writeBuffer() throws IOException
+    {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer buf) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Waits until the writer thread wrote the last records.
+     */
+    private void awaitWriter()
+    {
+        boolean interrupted = false;
+        while (writer.isAlive())
+        {
+            try
+            {
+                writer.join();
+            } catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes all queued records and closes the file according to the
+     * durability of the filesystem. Must be called without holding the lock
+     * of the owning filesystem, since forcing the file can take a while.
+     * Further calls have no effect.
+     */
+    synchronized void shutdown() throws IOException
+    {
+        if (stopped)
+        {
+            return;
+        }
+        stopped = true;
+        running = false;
+        LockSupport.unpark(writer);
+        boolean interrupted = Thread.interrupted();
+        awaitWriter();
+        interrupted |= Thread.interrupted();
+        Record r;
+        while ((r = queue.poll()) != null)
+        {
+            r.future.completeExceptionally(closed());
+        }
+        syncer.close(channel, file);
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Record
+    {
+
+        private final byte[] data;
+        private final boolean durable;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Record(byte[] data, boolean durable)
+        {
+            this.data = data;
+            this.durable = durable;
+        }
+    }
+}
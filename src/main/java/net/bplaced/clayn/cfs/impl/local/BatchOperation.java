@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.util.Objects;
+
+/**
+ * A single operation of a batch submitted with
+ * {@link ClaynFileSystem#submitBatch(java.util.List)}. Paths are resolved
+ * relative to the root of the filesystem.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public final class BatchOperation
+{
+
+    /**
+     * The kinds of operations a batch can contain.
+     */
+    public enum Type
+    {
+        /**
+         * Creates an empty file. Fails if the file already exists.
+         */
+        CREATE,
+        /**
+         * Writes the given bytes to a file, replacing its content.
+         */
+        WRITE,
+        /**
+         * Deletes a file or a directory with all of its content.
+         */
+        DELETE,
+        /**
+         * Creates a directory and all missing parents.
+         */
+        MKDIRS,
+        /**
+         * Reads the size and modification time of a file.
+         */
+        STAT
+    }
+
+    private final Type type;
+    private final String path;
+    private final byte[] data;
+
+    private BatchOperation(Type type, String path, byte[] data)
+    {
+        this.type = Objects.requireNonNull(type);
+        this.path = Objects.requireNonNull(path);
+        this.data = data;
+    }
+
+    public static BatchOperation create(String path)
+    {
+        return new BatchOperation(Type.CREATE, path, null);
+    }
+
+    /**
+     * Creates an operation writing the given bytes. The array must not be
+     * changed until the batch completed.
+     */
+    public static BatchOperation write(String path, byte[] data)
+    {
+        return new BatchOperation(Type.WRITE, path, Objects.requireNonNull(
+                data));
+    }
+
+    public static BatchOperation delete(String path)
+    {
+        return new BatchOperation(Type.DELETE, path, null);
+    }
+
+    public static BatchOperation mkDirs(String path)
+    {
+        return new BatchOperation(Type.MKDIRS, path, null);
+    }
+
+    public static BatchOperation stat(String path)
+    {
+        return new BatchOperation(Type.STAT, path, null);
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    byte[] getData()
+    {
+        return data;
+    }
+
+    @Override
+    public String toString()
+    {
+        return type + " " + path;
+    }
+}
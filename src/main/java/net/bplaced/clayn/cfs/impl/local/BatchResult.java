@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+/**
+ * The result of a single {@link BatchOperation}. A failed operation doesn't
+ * affect the other operations of its batch.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public final class BatchResult
+{
+
+    private final BatchOperation operation;
+    private final Exception error;
+    private final long size;
+    private final long lastModified;
+
+    private BatchResult(BatchOperation operation, Exception error, long size,
+            long lastModified)
+    {
+        this.operation = operation;
+        this.error = error;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    static BatchResult success(BatchOperation operation)
+    {
+        return new BatchResult(operation, null, -1, -1);
+    }
+
+    static BatchResult stat(BatchOperation operation, long size,
+            long lastModified)
+    {
+        return new BatchResult(operation, null, size, lastModified);
+    }
+
+    static BatchResult failure(BatchOperation operation, Exception error)
+    {
+        return new BatchResult(operation, error, -1, -1);
+    }
+
+    public BatchOperation getOperation()
+    {
+        return operation;
+    }
+
+    public boolean isSuccess()
+    {
+        return error == null;
+    }
+
+    /**
+     * Returns the exception that made the operation fail.
+     *
+     * @return the exception or {@code null} if the operation succeeded
+     */
+    public Exception getError()
+    {
+        return error;
+    }
+
+    /**
+     * Returns the size of the file for {@link BatchOperation.Type#STAT stat}
+     * operations.
+     *
+     * @return the size or {@code -1} if the file doesn't exist or the
+     * operation wasn't a stat operation
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the modification time of the file for
+     * {@link BatchOperation.Type#STAT stat} operations.
+     *
+     * @return the time in milliseconds or {@code -1} if the file doesn't
+     * exist or the operation wasn't a stat operation
+     */
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    @Override
+    public String toString()
+    {
+        return operation + (error == null ? " succeeded" : " failed: " + error);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.bplaced.clayn.cfs.Directory;
+import net.bplaced.clayn.cfs.SimpleFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the operations of a batch on an executor. Instead of submitting one
+ * task per operation a fixed number of workers is started that take the next
+ * pending operation until none is left. This limits the concurrency of a batch
+ * independent of the executor used.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class BatchRunner
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            BatchRunner.class);
+    private final ClaynFileSystem fs;
+    private final List<BatchOperation> operations;
+    private final BatchResult[] results;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger workers = new AtomicInteger();
+    private final CompletableFuture<List<BatchResult>> future = new CompletableFuture<>();
+
+    BatchRunner(ClaynFileSystem fs, List<BatchOperation> operations)
+    {
+        this.fs = fs;
+        this.operations = new ArrayList<>(operations);
+        this.results = new BatchResult[operations.size()];
+    }
+
+    CompletableFuture<List<BatchResult>> start(Executor executor,
+            int concurrency)
+    {
+        int count = Math.max(1, Math.min(concurrency, operations.size()));
+        workers.set(count);
+        for (int i = 0; i < count; i++)
+        {
+            try
+            {
+                executor.execute(this::work);
+            } catch (RejectedExecutionException ex)
+            {
+                future.completeExceptionally(ex);
+                break;
+            }
+        }
+        return future;
+    }
+
+    private void work()
+    {
+        int i;
+        while (!future.isDone() && (i = next.getAndIncrement()) < operations.size())
+        {
+            results[i] = execute(operations.get(i));
+        }
+        if (workers.decrementAndGet() == 0)
+        {
+            future.complete(Arrays.asList(results));
+        }
+    }
+
+    private BatchResult execute(BatchOperation op)
+    {
+        try
+        {
+            switch (op.getType())
+            {
+                case CREATE:
+                    file(op.getPath()).create();
+                    break;
+                case WRITE:
+                    try (OutputStream out = file(op.getPath()).openWrite())
+                    {
+                        out.write(op.getData());
+                    }
+                    break;
+                case DELETE:
+                    CFSDirectoryImpl dir = (CFSDirectoryImpl) fs.getDirectory(
+                            op.getPath());
+                    if (dir.getDirectory().isDirectory())
+                    {
+                        dir.delete();
+                    } else
+                    {
+                        file(op.getPath()).delete();
+                    }
+                    break;
+                case MKDIRS:
+                    fs.getDirectory(op.getPath()).mkDirs();
+                    break;
+                case STAT:
+                    SimpleFile file = file(op.getPath());
+                    if (!file.exists())
+                    {
+                        return BatchResult.stat(op, -1, -1);
+                    }
+                    return BatchResult.stat(op, file.getSize(),
+                            file.getFileAttributes().lastModified());
+                default:
+                    throw new IllegalStateException("Unknown operation " + op);
+            }
+            return BatchResult.success(op);
+        } catch (IOException | RuntimeException ex)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Batch operation {} failed", op, ex);
+            }
+            return BatchResult.failure(op, ex);
+        }
+    }
+
+    private SimpleFile file(String path) throws IOException
+    {
+        int index = path.lastIndexOf('/');
+        Directory dir = index < 0 ? fs.getRoot() : fs.getDirectory(
+                path.substring(0, index + 1));
+        return dir.getFile(path.substring(index + 1));
+    }
+
+    /**
+     * Creates the default executor for batches. Uses virtual threads if the
+     * runtime supports them and a cached pool of daemon threads otherwise.
+     */
+    static Executor createDefaultExecutor()
+    {
+        try
+        {
+            return (Executor) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Virtual threads not available, using a thread pool");
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool((r)
+                ->
+                {
+                    Thread t = new Thread(r, "cfs-batch-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+        });
+    }
+}
@@ -3,20 +3,24 @@ package net.bplaced.clayn.cfs.impl.local;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import static java.nio.file.StandardWatchEventKinds.*;
+import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -48,6 +52,12 @@ import org.slf4j.LoggerFactory;
 public class CFSDirectoryImpl extends AbstractActiveDirectory
 {
 
+    /**
+     * The default number of changes buffered for a subscriber.
+     *
+     * @since 0.3.0
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(
             CFSDirectoryImpl.class);
     private Timer watchTimer;
@@ -56,7 +66,9 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
     private final ActiveDirectory parent;
     private final File directory;
     private final String partName;
+    private final PathTable.Node node;
     private WatchService watchService;
+    private final WatchPublisher publisher = new WatchPublisher();
 
     File getDirectory()
     {
@@ -80,7 +92,8 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
         this.directory = dir;
         this.parent = parent;
         this.partName = partName;
-        installWatch();
+        this.node = parent == null ? ((ClaynFileSystem) cfs).getPathTable().getRoot() : ((CFSDirectoryImpl) parent).node.child(
+                partName);
         if (LOG.isDebugEnabled())
         {
             LOG.debug("Created directory for {}", dir);
@@ -159,11 +172,7 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
     @Override
     public String toString()
     {
-        if (parent == null)
-        {
-            return "/";
-        }
-        return parent.toString() + partName + cfs.getSeparator();
+        return node.getPath();
     }
 
     @Override
@@ -173,7 +182,11 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
         {
             throw new IOException("Parent " + parent + " does not exist");
         }
-        System.out.println("Directory: " + directory.toPath());
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Create directory {}", directory);
+        }
+        ((ClaynFileSystem) cfs).throttle(0, 1);
         Files.createDirectory(directory.toPath());
     }
 
@@ -186,10 +199,12 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
     @Override
     public List<SimpleFile> listFiles(SimpleFileFilter sff) throws IOException
     {
-        return Files.list(directory.toPath()).map(Path::toFile).filter(
-                File::isFile).map(
-                        this::createFile).filter(sff).collect(
-                Collectors.toList());
+        ((ClaynFileSystem) cfs).throttle(0, 1);
+        try (Stream<Path> files = Files.list(directory.toPath()))
+        {
+            return files.map(Path::toFile).filter(File::isFile).map(
+                    this::createFile).filter(sff).collect(Collectors.toList());
+        }
     }
 
     private SimpleFile createFile(File f)
@@ -197,10 +212,91 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
         return new CFSSimpleFileImpl(f.toPath(), this, charset);
     }
 
+    CFSSimpleFileImpl createFile(String name)
+    {
+        return new CFSSimpleFileImpl(new File(directory, name).toPath(), this,
+                charset);
+    }
+
+    /**
+     * Informs the listener matching the modification about it.
+     */
+    void fire(SimpleFile file, FileModification.Modification mod, long time)
+    {
+        Consumer<FileModification> listener = onModification;
+        if (mod == FileModification.Modification.CREATE)
+        {
+            listener = onCreate;
+        } else if (mod == FileModification.Modification.DELETE)
+        {
+            listener = onDelete;
+        }
+        Optional.ofNullable(listener).ifPresent((l) -> l.accept(
+                new FileModification(file, mod, time)));
+        publisher.publish(file, mod, time);
+    }
+
+    /**
+     * Subscribes to the changes in this directory with a buffer for
+     * {@value #DEFAULT_BUFFER_SIZE} changes that merges the changes of the
+     * same file if it's full.
+     *
+     * @param subscriber the subscriber
+     * @param executor the executor that delivers the changes
+     * @since 0.3.0
+     * @see #subscribe(WatchSubscriber, Executor, int, OverflowStrategy)
+     */
+    public void subscribe(WatchSubscriber subscriber, Executor executor)
+    {
+        subscribe(subscriber, executor, DEFAULT_BUFFER_SIZE,
+                OverflowStrategy.COALESCE);
+    }
+
+    /**
+     * Subscribes to the changes in this directory. Unlike the listeners, a
+     * subscriber gets the changes on its own executor and only as many as it
+     * requested. Changes are buffered until they are requested. Changes are
+     * only reported while the directory is {@link #activate() active}.
+     *
+     * @param subscriber the subscriber
+     * @param executor the executor that delivers the changes
+     * @param bufferSize the maximum number of buffered changes
+     * @param overflow what happens if the buffer is full
+     * @since 0.3.0
+     */
+    public void subscribe(WatchSubscriber subscriber, Executor executor,
+            int bufferSize, OverflowStrategy overflow)
+    {
+        publisher.subscribe(subscriber, executor, bufferSize, overflow);
+    }
+
+    /**
+     * Completes all subscriptions once their buffered changes were
+     * delivered.
+     */
+    void completeSubscriptions()
+    {
+        publisher.complete();
+    }
+
     @Override
     public synchronized void deactivate()
     {
+        if (watchTimer == null)
+        {
+            return;
+        }
         watchTimer.cancel();
+        watchTimer = null;
+        ((ClaynFileSystem) cfs).deactivated(this);
+        try
+        {
+            watchService.close();
+        } catch (IOException ex)
+        {
+            LOG.warn("Failed to close the filewatch of {}", this, ex);
+        }
+        watchService = null;
     }
 
     @Override
@@ -210,78 +306,90 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
         {
             return;
         }
-        if (!exists() || watchService == null)
+        try
+        {
+            installWatch();
+        } catch (IOException ex)
+        {
+            LOG.warn("Failed to install the filewatch for {}", this, ex);
+            return;
+        }
+        if (watchService == null)
         {
             return;
         }
         watchTimer = new Timer();
-        Directory dir = this;
+        ((ClaynFileSystem) cfs).activated(this);
+        WatchService service = watchService;
         watchTimer.schedule(new TimerTask()
         {
             @Override
             public void run()
             {
-                WatchKey poll = watchService.poll();
+                poll(service);
+            }
+        }, 100, 100);
+    }
+
+    private void poll(WatchService service)
+    {
+        try
+        {
+            WatchKey key;
+            while ((key = service.poll()) != null)
+            {
                 long time = System.currentTimeMillis();
-                if (poll == null)
+                for (WatchEvent<?> evt : key.pollEvents())
+                {
+                    dispatch(evt, time);
+                }
+                if (!key.reset())
                 {
+                    if (LOG.isDebugEnabled())
+                    {
+                        LOG.debug("Filewatch of {} is no longer valid", this);
+                    }
+                    publisher.fail(new IOException("Filewatch of " + this
+                            + " is no longer valid"));
+                    deactivate();
                     return;
                 }
-                poll.pollEvents().stream().forEach((evt)
-                        -> 
-                        {
-                            if (evt.kind() == ENTRY_CREATE)
-                            {
-                                Path p = (Path) evt.context();
-                                Optional.ofNullable(onCreate).ifPresent(
-                                        (oc) -> oc.accept(new FileModification(
-                                                new CFSSimpleFileImpl(p, dir,
-                                                        charset),
-                                                FileModification.Modification.CREATE,
-                                                time)));
-                                if (LOG.isDebugEnabled())
-                                {
-                                    LOG.debug("Recieved file creation event");
-                                }
-                            } else if (evt.kind() == ENTRY_DELETE)
-                            {
-                                Path p = (Path) evt.context();
-                                Optional.ofNullable(onDelete).ifPresent(
-                                        (oc) -> oc.accept(new FileModification(
-                                                new CFSSimpleFileImpl(p, dir,
-                                                        charset),
-                                                FileModification.Modification.DELETE,
-                                                time)));
-                                if (LOG.isDebugEnabled())
-                                {
-                                    LOG.debug("Recieved file deletion event");
-                                }
-                            } else if (evt.kind() == ENTRY_MODIFY)
-                            {
-                                Path p = (Path) evt.context();
-                                Optional.ofNullable(onModification).ifPresent(
-                                        (oc) -> oc.accept(new FileModification(
-                                                new CFSSimpleFileImpl(p, dir,
-                                                        charset),
-                                                FileModification.Modification.MODIFY,
-                                                time)));
-                                if (LOG.isDebugEnabled())
-                                {
-                                    LOG.debug("Recieved file modification event");
-                                }
-                            }
-                });
             }
-        }, 100, 100);
+        } catch (ClosedWatchServiceException ex)
+        {
+            //Deactivated while polling
+        }
+    }
+
+    private void dispatch(WatchEvent<?> evt, long time)
+    {
+        FileModification.Modification mod;
+        if (evt.kind() == ENTRY_CREATE)
+        {
+            mod = FileModification.Modification.CREATE;
+        } else if (evt.kind() == ENTRY_DELETE)
+        {
+            mod = FileModification.Modification.DELETE;
+        } else if (evt.kind() == ENTRY_MODIFY)
+        {
+            mod = FileModification.Modification.MODIFY;
+        } else
+        {
+            LOG.warn("Filewatch of {} lost events", this);
+            return;
+        }
+        Path name = (Path) evt.context();
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Recieved {} event for {}", mod, name);
+        }
+        fire(createFile(name.toString()), mod, time);
     }
 
     @Override
     public int hashCode()
     {
-        int hash = 3;
-        hash = 97 * hash + Objects.hashCode(this.parent);
-        hash = 97 * hash + Objects.hashCode(this.partName);
-        return hash;
+        return node.hashCode();
     }
 
     @Override
@@ -300,11 +408,7 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
             return false;
         }
         final CFSDirectoryImpl other = (CFSDirectoryImpl) obj;
-        if (!Objects.equals(this.partName, other.partName))
-        {
-            return false;
-        }
-        return Objects.equals(this.parent, other.parent);
+        return node.samePath(other.node);
     }
 
     @Override
@@ -314,6 +418,7 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
         {
             return new ArrayList<>();
         }
+        ((ClaynFileSystem) cfs).throttle(0, 1);
         ActiveDirectory dir = this;
         return Arrays.stream(directory.listFiles()).filter(File::isDirectory).map(
                 (File t)
@@ -321,10 +426,7 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
                 {
                     try
                     {
-                        String parts[] = t.toString().split(
-                                "\\" + File.separator);
-                        return new CFSDirectoryImpl(cfs, t, dir,
-                                parts.length == 0 ? null : parts[parts.length - 1]);
+                        return new CFSDirectoryImpl(cfs, t, dir, t.getName());
                     } catch (IOException ex)
                     {
                         Logger.getLogger(
@@ -335,6 +437,54 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
         }).collect(Collectors.toList());
     }
 
+    /**
+     * Creates a snapshot of this directory.
+     *
+     * @param name the name of the snapshot
+     * @return a filesystem with the snapshot as root
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     * @see ClaynFileSystem#snapshot(java.lang.String, java.lang.String)
+     */
+    public ClaynFileSystem snapshot(String name) throws IOException
+    {
+        return ((ClaynFileSystem) cfs).snapshot(getPath(), name);
+    }
+
+    /**
+     * Clones this directory into a new directory of the same filesystem.
+     *
+     * @param target the path of the directory to create
+     * @return the created directory
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     * @see ClaynFileSystem#cloneDirectory(java.lang.String, java.lang.String)
+     */
+    public ActiveDirectory cloneTo(String target) throws IOException
+    {
+        return ((ClaynFileSystem) cfs).cloneDirectory(getPath(), target);
+    }
+
+    /**
+     * Verifies the checksums of the files in this directory and its
+     * subdirectories.
+     *
+     * @param full {@code true} to also read the unchanged files
+     * @param limit an additional throttle for the verification or
+     * {@code null}
+     * @param progress called after each file that was read or {@code null}
+     * @return a future that completes with the result of the verification
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     * @see ClaynFileSystem#verify(java.lang.String, boolean, Throttle,
+     * java.util.function.Consumer)
+     */
+    public CompletableFuture<VerifyResult> verify(boolean full, Throttle limit,
+            Consumer<VerifyProgress> progress) throws IOException
+    {
+        return ((ClaynFileSystem) cfs).verify(getPath(), full, limit, progress);
+    }
+
     @Override
     public void delete() throws IOException
     {
@@ -360,6 +510,7 @@ public class CFSDirectoryImpl extends AbstractActiveDirectory
         {
             return;
         }
+        ((ClaynFileSystem) cfs).throttle(0, 1);
         if (!f.delete())
         {
             throw new IOException("Failed to delete " + this);
@@ -1,15 +1,25 @@
 package net.bplaced.clayn.cfs.impl.local;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import net.bplaced.clayn.cfs.CFileSystem;
 import net.bplaced.clayn.cfs.Directory;
 import net.bplaced.clayn.cfs.FileAttributes;
@@ -29,16 +39,22 @@ public class CFSSimpleFileImpl implements SimpleFile
 
     private static final Logger LOG = LoggerFactory.getLogger(
             CFSSimpleFileImpl.class);
+    private static final int PREALLOCATE_CHUNK = 64 * 1024;
     private final Path realFile;
     private final Directory parent;
     private final Charset charset;
     private final CFileSystem filesystem;
+    private final String name;
+    private final int hash;
+    private String path;
 
     CFSSimpleFileImpl(Path realFile, Directory parent, Charset set)
     {
         this.realFile = realFile;
         this.parent = parent;
         this.charset = set;
+        this.name = realFile.getFileName().toString();
+        this.hash = 37 * parent.hashCode() + name.hashCode();
         filesystem = ((CFSDirectoryImpl) parent).getCfs();
     }
 
@@ -51,7 +67,9 @@ public class CFSSimpleFileImpl implements SimpleFile
     @Override
     public void create() throws IOException
     {
+        fs().throttle(0, 1);
         Files.createFile(realFile);
+        syncer().changed(realFile.toAbsolutePath().getParent());
     }
 
     @Override
@@ -61,7 +79,20 @@ public class CFSSimpleFileImpl implements SimpleFile
         {
             return;
         }
+        fs().throttle(0, 1);
         Files.delete(realFile);
+        fs().untrack(realFile);
+        syncer().changed(realFile.toAbsolutePath().getParent());
+    }
+
+    private ClaynFileSystem fs()
+    {
+        return (ClaynFileSystem) filesystem;
+    }
+
+    private Syncer syncer()
+    {
+        return fs().getSyncer();
     }
 
     @Override
@@ -79,12 +110,37 @@ public class CFSSimpleFileImpl implements SimpleFile
             }
             createSafe();
         }
-        return Files.newInputStream(realFile);
+        fs().throttle(0, 1);
+        return fs().throttle(Files.newInputStream(realFile));
     }
 
     @Override
     public OutputStream openWrite() throws IOException
     {
+        return openWrite(0);
+    }
+
+    /**
+     * Opens this file for writing like {@link #openWrite()} and preallocates
+     * the given size for it by filling the file with zeros, so the storage of
+     * a large file is allocated at once instead of piece by piece while
+     * writing. The file has the expected size until the stream gets closed and
+     * is then cut to the number of bytes written. Writing more than expected
+     * is possible.
+     *
+     * @param expectedSize the expected size of the file in bytes or
+     * {@code 0} if unknown
+     * @return a stream writing to this file
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public OutputStream openWrite(long expectedSize) throws IOException
+    {
+        if (expectedSize < 0)
+        {
+            throw new IllegalArgumentException(
+                    "Expected size must not be negative");
+        }
         if (LOG.isDebugEnabled())
         {
             LOG.debug("Open {} for writing", getPath());
@@ -97,7 +153,49 @@ public class CFSSimpleFileImpl implements SimpleFile
             }
             createSafe();
         }
-        return Files.newOutputStream(realFile);
+        fs().throttle(0, 1);
+        fs().getSnapshots().breakLink(realFile, false);
+        FileChannel channel = FileChannel.open(realFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        if (expectedSize > 0)
+        {
+            try
+            {
+                preallocate(channel, expectedSize);
+            } catch (IOException ex)
+            {
+                channel.close();
+                throw ex;
+            }
+        }
+        return fs().track(realFile, fs().throttle(new SyncingOutputStream(
+                channel, realFile, syncer(), expectedSize > 0)), false);
+    }
+
+    /**
+     * Writes zeros up to the given size without moving the position of the
+     * channel. Only setting the size would create a sparse file on most
+     * filesystems, which doesn't allocate anything.
+     */
+    private void preallocate(FileChannel channel, long size) throws IOException
+    {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(
+                (int) Math.min(size, PREALLOCATE_CHUNK));
+        long position = 0;
+        while (position < size)
+        {
+            zeros.clear();
+            if (size - position < zeros.capacity())
+            {
+                zeros.limit((int) (size - position));
+            }
+            fs().throttle(zeros.remaining(), 0);
+            while (zeros.hasRemaining())
+            {
+                position += channel.write(zeros, position);
+            }
+        }
     }
 
     @Override
@@ -115,7 +213,163 @@ public class CFSSimpleFileImpl implements SimpleFile
             }
             createSafe();
         }
-        return Files.newOutputStream(realFile, StandardOpenOption.APPEND);
+        fs().throttle(0, 1);
+        fs().getSnapshots().breakLink(realFile, true);
+        return fs().track(realFile, fs().throttle(new SyncingOutputStream(
+                FileChannel.open(realFile, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND), realFile, syncer())), true);
+    }
+
+    /**
+     * Returns an appender that shares the file with all other appenders of
+     * this file. Records are written in batches by a single thread which
+     * is much faster than many threads using {@link #openAppend()} for small
+     * records. The appender must be closed after usage.
+     *
+     * @return a new appender for this file
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public GroupAppender getAppender() throws IOException
+    {
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Open {} for shared appending", getPath());
+        }
+        if (filesystem.getFileSettings().getCreateOnAccess())
+        {
+            createSafe();
+        }
+        fs().getSnapshots().breakLink(realFile, true);
+        fs().untrack(realFile);
+        return fs().acquireAppender(realFile);
+    }
+
+    /**
+     * Opens a stream that appends to this file using a shared
+     * {@link GroupAppender}. Everything written between two calls of
+     * {@link OutputStream#flush() flush} gets appended as one record. Closing
+     * the stream waits until the last record was written.
+     *
+     * @return a stream appending to this file
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public OutputStream openSharedAppend() throws IOException
+    {
+        return new GroupAppender.AppenderOutputStream(getAppender());
+    }
+
+    /**
+     * Returns the lines of this file decoded with its charset. Lines end at
+     * a line feed, a carriage return in front of it gets removed. The lines
+     * are read lazily and directly from the memory mapped file, so large
+     * files can be processed in {@link Stream#parallel() parallel} with
+     * little overhead. This is only done for UTF-8, US-ASCII and the ISO-8859
+     * charsets, files in other charsets are read with a
+     * {@link BufferedReader}. The stream must be closed after usage.
+     *
+     * @return the lines of this file
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public Stream<String> lines() throws IOException
+    {
+        return records('\n', true);
+    }
+
+    /**
+     * Returns the records of this file that are separated by the given
+     * character. Works like {@link #lines()} but doesn't remove carriage
+     * returns.
+     *
+     * @param separator the character between two records
+     * @return the records of this file
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public Stream<String> records(char separator) throws IOException
+    {
+        return records(separator, false);
+    }
+
+    private Stream<String> records(char separator, boolean lines) throws IOException
+    {
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Open {} for reading records", getPath());
+        }
+        if (filesystem.getFileSettings().getCreateOnAccess())
+        {
+            createSafe();
+        }
+        Charset cs = charset == null ? Charset.defaultCharset() : charset;
+        if (!LineSpliterator.supports(cs, separator))
+        {
+            return readRecords(cs, separator, lines);
+        }
+        fs().throttle(0, 1);
+        FileChannel channel = FileChannel.open(realFile,
+                StandardOpenOption.READ);
+        try
+        {
+            return StreamSupport.stream(new LineSpliterator(channel, fs(), cs,
+                    separator, lines, 0, channel.size()), false).onClose(
+                            () -> close(channel));
+        } catch (IOException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private Stream<String> readRecords(Charset cs, char separator,
+            boolean lines) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                openRead(), cs));
+        if (lines)
+        {
+            return reader.lines().onClose(() -> close(reader));
+        }
+        StringBuilder record = new StringBuilder();
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<String>(
+                Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL)
+        {
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action)
+            {
+                record.setLength(0);
+                int c;
+                try
+                {
+                    while ((c = reader.read()) >= 0 && c != separator)
+                    {
+                        record.append((char) c);
+                    }
+                } catch (IOException ex)
+                {
+                    throw new CFSException(ex);
+                }
+                if (c < 0 && record.length() == 0)
+                {
+                    return false;
+                }
+                action.accept(record.toString());
+                return true;
+            }
+        }, false).onClose(() -> close(reader));
+    }
+
+    private static void close(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        } catch (IOException ex)
+        {
+            throw new CFSException(ex);
+        }
     }
 
     @Override
@@ -132,21 +386,19 @@ public class CFSSimpleFileImpl implements SimpleFile
     @Override
     public String getName()
     {
-        return realFile.toFile().getName();
+        return name;
     }
 
     @Override
     public long getSize() throws IOException
     {
+        fs().throttle(0, 1);
         return Files.size(realFile);
     }
 
     @Override
     public int hashCode()
     {
-        int hash = 7;
-        hash = 37 * hash + Objects.hashCode(this.realFile);
-        hash = 37 * hash + Objects.hashCode(this.parent);
         return hash;
     }
 
@@ -166,7 +418,7 @@ public class CFSSimpleFileImpl implements SimpleFile
             return false;
         }
         final CFSSimpleFileImpl other = (CFSSimpleFileImpl) obj;
-        if (!Objects.equals(this.realFile, other.realFile))
+        if (hash != other.hash || !name.equals(other.name))
         {
             return false;
         }
@@ -182,7 +434,13 @@ public class CFSSimpleFileImpl implements SimpleFile
     @Override
     public String toString()
     {
-        return parent.toString() + getName();
+        String p = path;
+        if (p == null)
+        {
+            p = parent.toString() + name;
+            path = p;
+        }
+        return p;
     }
 
     @Override
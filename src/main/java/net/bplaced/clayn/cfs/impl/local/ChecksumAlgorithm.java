@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+/**
+ * The checksums that can be tracked for the files of a
+ * {@link ClaynFileSystem}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @see ClaynFileSystem#setChecksumAlgorithm(ChecksumAlgorithm)
+ */
+public enum ChecksumAlgorithm
+{
+    /**
+     * 32 bit CRC with the Castagnoli polynomial. Very fast and can be
+     * continued when appending to a file, but only detects accidental
+     * corruption.
+     */
+    CRC32C
+    {
+        @Override
+        Hasher newHasher()
+        {
+            Checksum crc = Crc32c.create();
+            return new Hasher()
+            {
+                @Override
+                public void update(byte[] b, int off, int len)
+                {
+                    crc.update(b, off, len);
+                }
+
+                @Override
+                public String finish()
+                {
+                    return String.format("%08x", crc.getValue());
+                }
+            };
+        }
+    },
+    /**
+     * SHA-256 hash. Much slower than {@link #CRC32C} and can't be continued
+     * when appending, so appending to a file removes its checksum until it
+     * gets {@link ClaynFileSystem#verify(java.lang.String, boolean, Throttle,
+     * java.util.function.Consumer) verified}.
+     */
+    SHA_256
+    {
+        @Override
+        Hasher newHasher()
+        {
+            MessageDigest digest;
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+            return new Hasher()
+            {
+                @Override
+                public void update(byte[] b, int off, int len)
+                {
+                    digest.update(b, off, len);
+                }
+
+                @Override
+                public String finish()
+                {
+                    StringBuilder sb = new StringBuilder(64);
+                    for (byte b : digest.digest())
+                    {
+                        sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                        sb.append(Character.forDigit(b & 0xF, 16));
+                    }
+                    return sb.toString();
+                }
+            };
+        }
+    };
+
+    abstract Hasher newHasher();
+
+    /**
+     * Computes a checksum over the given data.
+     */
+    interface Hasher
+    {
+
+        void update(byte[] b, int off, int len);
+
+        /**
+         * Returns the checksum as lowercase hex string.
+         */
+        String finish();
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the checksums of files together with the size and modification
+ * time the files had when the checksum was computed. The index is stored in
+ * a file next to the root of the filesystem named like the root with the
+ * suffix {@code .checksums}. Every change is appended to that file as a
+ * line, so updating a checksum costs a single small write. The file is
+ * rewritten when it is loaded and contains much more lines than entries.
+ * <br><br>
+ * Files are identified by their path relative to the root, so filesystems
+ * created by {@link ClaynFileSystem#subFileSystem(java.lang.String)} can
+ * share the index. Snapshots have their own index in a hidden file next to
+ * them, which can't collide with the name of another snapshot.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class ChecksumIndex
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            ChecksumIndex.class);
+    private static final String SUFFIX = ".checksums";
+    private static final String REMOVED = "-";
+    private final Path root;
+    private final Path file;
+    private Map<String, Entry> entries;
+    private Writer journal;
+
+    ChecksumIndex(File root)
+    {
+        this(root, false);
+    }
+
+    /**
+     * @param hidden {@code true} to store the index in a file starting with
+     * a dot
+     */
+    ChecksumIndex(File root, boolean hidden)
+    {
+        File abs = root.getAbsoluteFile();
+        this.root = abs.toPath().normalize();
+        this.file = new File(abs.getParentFile(), (hidden ? "." : "")
+                + abs.getName() + SUFFIX).toPath();
+    }
+
+    Path getFile()
+    {
+        return file;
+    }
+
+    String key(Path path)
+    {
+        return root.relativize(path.toAbsolutePath().normalize()).toString().replace(
+                File.separatorChar, '/');
+    }
+
+    Path resolve(String key)
+    {
+        return root.resolve(key.replace('/', File.separatorChar));
+    }
+
+    synchronized Entry get(String key) throws IOException
+    {
+        return load().get(key);
+    }
+
+    synchronized void put(String key, Entry entry) throws IOException
+    {
+        load().put(key, entry);
+        append(format(key, entry));
+    }
+
+    synchronized void remove(String key) throws IOException
+    {
+        if (load().remove(key) != null)
+        {
+            append(REMOVED + " " + escape(key));
+        }
+    }
+
+    /**
+     * Returns the keys of all files in the given directory and its
+     * subdirectories.
+     *
+     * @param prefix the key of the directory or an empty string for the root
+     */
+    synchronized List<String> keys(String prefix) throws IOException
+    {
+        String dir = prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+        List<String> keys = new ArrayList<>();
+        for (String key : load().keySet())
+        {
+            if (key.startsWith(dir))
+            {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Copies the checksums of all files in the given directory into the given
+     * index, whose root is a copy of that directory.
+     *
+     * @param prefix the key of the directory or an empty string for the root
+     */
+    synchronized void copy(String prefix, ChecksumIndex target) throws IOException
+    {
+        String dir = prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+        Map<String, Entry> copied = new HashMap<>();
+        for (Map.Entry<String, Entry> e : load().entrySet())
+        {
+            if (e.getKey().startsWith(dir))
+            {
+                copied.put(e.getKey().substring(dir.length()), e.getValue());
+            }
+        }
+        target.putAll(copied);
+    }
+
+    private synchronized void putAll(Map<String, Entry> added) throws IOException
+    {
+        if (added.isEmpty())
+        {
+            return;
+        }
+        Map<String, Entry> map = load();
+        for (Map.Entry<String, Entry> e : added.entrySet())
+        {
+            map.put(e.getKey(), e.getValue());
+            write(format(e.getKey(), e.getValue()));
+        }
+        journal.flush();
+    }
+
+    private Map<String, Entry> load() throws IOException
+    {
+        if (entries != null)
+        {
+            return entries;
+        }
+        Map<String, Entry> loaded = new HashMap<>();
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                lines++;
+                parse(line, loaded);
+            }
+        } catch (NoSuchFileException ex)
+        {
+            // No checksums yet
+        }
+        entries = loaded;
+        if (lines > 2 * loaded.size() + 1024)
+        {
+            compact();
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Loaded {} checksums from {} lines of {}", loaded.size(),
+                    lines, file);
+        }
+        return entries;
+    }
+
+    private static void parse(String line, Map<String, Entry> target)
+    {
+        String[] parts = line.split(" ", 5);
+        try
+        {
+            if (parts.length == 2 && REMOVED.equals(parts[0]))
+            {
+                target.remove(unescape(parts[1]));
+            } else if (parts.length == 5)
+            {
+                target.put(unescape(parts[4]), new Entry(
+                        ChecksumAlgorithm.valueOf(parts[0]),
+                        Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                        parts[3]));
+            }
+        } catch (IllegalArgumentException ex)
+        {
+            LOG.warn("Ignoring invalid checksum entry: {}", line);
+        }
+    }
+
+    private void compact() throws IOException
+    {
+        closeJournal();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp,
+                StandardCharsets.UTF_8))
+        {
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                writer.write(format(e.getKey(), e.getValue()));
+                writer.write('\n');
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void append(String line) throws IOException
+    {
+        write(line);
+        journal.flush();
+    }
+
+    private void write(String line) throws IOException
+    {
+        if (journal == null)
+        {
+            journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        journal.write(line);
+        journal.write('\n');
+    }
+
+    /**
+     * Closes the journal. It gets reopened by the next change.
+     */
+    synchronized void close() throws IOException
+    {
+        closeJournal();
+    }
+
+    private void closeJournal() throws IOException
+    {
+        if (journal != null)
+        {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private static String format(String key, Entry entry)
+    {
+        return entry.algorithm.name() + " " + entry.size + " "
+                + entry.lastModified + " " + entry.value + " " + escape(key);
+    }
+
+    private static String escape(String key)
+    {
+        return key.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String unescape(String key)
+    {
+        StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++)
+        {
+            char c = key.charAt(i);
+            if (c == '\\' && i + 1 < key.length())
+            {
+                c = key.charAt(++i) == 'n' ? '\n' : key.charAt(i);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The checksum of a file and the state of the file when it was computed.
+     */
+    static final class Entry
+    {
+
+        final ChecksumAlgorithm algorithm;
+        final long size;
+        final long lastModified;
+        final String value;
+
+        Entry(ChecksumAlgorithm algorithm, long size, long lastModified,
+                String value)
+        {
+            this.algorithm = algorithm;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+
+        boolean matches(long size, long lastModified)
+        {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Outputstream that computes the checksum of the written data and stores it
+ * in the {@link ChecksumIndex} when it gets closed. When appending, the
+ * checksum of the existing content gets combined with the checksum of the
+ * appended data. If writing failed or the file was changed by someone else
+ * in the meantime, the checksum of the file gets removed.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class ChecksumOutputStream extends FilterOutputStream
+{
+
+    private final ChecksumIndex index;
+    private final Path file;
+    private final String key;
+    private final ChecksumAlgorithm algorithm;
+    private final ChecksumAlgorithm.Hasher hasher;
+    private final ChecksumIndex.Entry base;
+    private long count;
+    private boolean failed;
+    private boolean closed;
+
+    /**
+     * @param base the {@link ChecksumAlgorithm#CRC32C} checksum of the
+     * existing content when appending or {@code null} when writing a new
+     * file
+     */
+    ChecksumOutputStream(OutputStream out, ChecksumIndex index, Path file,
+            String key, ChecksumAlgorithm algorithm, ChecksumIndex.Entry base)
+    {
+        super(out);
+        this.index = index;
+        this.file = file;
+        this.key = key;
+        this.algorithm = algorithm;
+        this.hasher = algorithm.newHasher();
+        this.base = base;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[]
+        {
+            (byte) b
+        }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        try
+        {
+            out.write(b, off, len);
+        } catch (IOException ex)
+        {
+            failed = true;
+            throw ex;
+        }
+        hasher.update(b, off, len);
+        count += len;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            out.close();
+        } catch (IOException ex)
+        {
+            index.remove(key);
+            throw ex;
+        }
+        long expected = base == null ? count : base.size + count;
+        BasicFileAttributes attrs = Files.readAttributes(file,
+                BasicFileAttributes.class);
+        if (failed || attrs.size() != expected)
+        {
+            index.remove(key);
+            return;
+        }
+        String value = hasher.finish();
+        if (base != null)
+        {
+            value = String.format("%08x", Crc32c.combine(Long.parseLong(
+                    base.value, 16), Long.parseLong(value, 16), count));
+        }
+        index.put(key, new ChecksumIndex.Entry(algorithm, attrs.size(),
+                attrs.lastModifiedTime().toMillis(), value));
+    }
+}
@@ -1,11 +1,31 @@
 package net.bplaced.clayn.cfs.impl.local;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 import net.bplaced.clayn.cfs.ActiveDirectory;
 import net.bplaced.clayn.cfs.CFileSystem;
+import net.bplaced.clayn.cfs.FileModification;
 import net.bplaced.clayn.cfs.FileSettings;
+import net.bplaced.clayn.cfs.SimpleFile;
 import net.bplaced.clayn.cfs.SimpleFileSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,7 +45,7 @@ import org.slf4j.LoggerFactory;
  * @since 0.1
  * @version $Revision: 331 $
  */
-public class ClaynFileSystem implements CFileSystem
+public class ClaynFileSystem implements CFileSystem, Closeable
 {
 
     private static final Logger LOG = LoggerFactory.getLogger(
@@ -33,7 +53,28 @@ public class ClaynFileSystem implements CFileSystem
     final FileSettings SETTINGS = new SimpleFileSettings();
     private Charset charset;
 
+    private final PathTable pathTable = new PathTable(String.valueOf(
+            getSeparator()));
     private final ActiveDirectory root;
+    private Map<Path, AppendQueue> appenders = new HashMap<>();
+    private int appendBatchSize = 64 * 1024;
+    private long appendFlushInterval = 5;
+    private Syncer syncer = new Syncer();
+    private Executor batchExecutor;
+    private boolean ownsBatchExecutor;
+    private int batchConcurrency = 64;
+    private final Map<String, List<CFSDirectoryImpl>> active = new ConcurrentHashMap<>();
+    private LockManager locks = new LockManager(64);
+    private Snapshots snapshots;
+    private ScratchPool scratch;
+    private ChecksumIndex checksums;
+    private boolean ownsChecksums = true;
+    private volatile ChecksumAlgorithm checksumAlgorithm;
+    private ClaynFileSystem parentFs;
+    private boolean shared;
+    private volatile Throttle throttle;
+    private volatile IOPriority ioPriority = IOPriority.FOREGROUND;
+    private volatile File stateFile;
 
     /**
      * Creates a new filesystem with the given directory as root directory. The
@@ -47,6 +88,9 @@ public class ClaynFileSystem implements CFileSystem
     {
         this.root = new CFSDirectoryImpl(this, root, null, null);
         this.root.mkDirs();
+        this.snapshots = new Snapshots(root);
+        this.scratch = new ScratchPool(this, root);
+        this.checksums = new ChecksumIndex(root);
         if (LOG.isDebugEnabled())
         {
             LOG.debug("Created a new ClaynFileSystem using: {0}", root);
@@ -115,6 +159,897 @@ public class ClaynFileSystem implements CFileSystem
         return charset;
     }
 
+    /**
+     * Sets the size of the batches that {@link GroupAppender appenders} write
+     * at once. Only affects files that have no open appender yet.
+     *
+     * @param appendBatchSize the batch size in bytes
+     * @since 0.3.0
+     */
+    public void setAppendBatchSize(int appendBatchSize)
+    {
+        if (appendBatchSize <= 0)
+        {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.appendBatchSize = appendBatchSize;
+    }
+
+    public int getAppendBatchSize()
+    {
+        return appendBatchSize;
+    }
+
+    /**
+     * Sets the maximum time a record waits for more records before an
+     * {@link GroupAppender appender} writes a batch that didn't reach the batch
+     * size. Only affects files that have no open appender yet.
+     *
+     * @param appendFlushInterval the flush interval in milliseconds
+     * @since 0.3.0
+     */
+    public void setAppendFlushInterval(long appendFlushInterval)
+    {
+        if (appendFlushInterval < 0)
+        {
+            throw new IllegalArgumentException(
+                    "Flush interval must not be negative");
+        }
+        this.appendFlushInterval = appendFlushInterval;
+    }
+
+    public long getAppendFlushInterval()
+    {
+        return appendFlushInterval;
+    }
+
+    /**
+     * Sets when data written through this filesystem gets forced to the
+     * storage device. Applies to all streams opened afterwards and to
+     * appenders of files that have no open appender yet. The durability is
+     * shared with all filesystems created by
+     * {@link #subFileSystem(java.lang.String)}.
+     *
+     * @param durability the durability. If {@code null}
+     * {@link Durability#NONE} will be used.
+     * @since 0.3.0
+     */
+    public void setDurability(Durability durability)
+    {
+        syncer.setDurability(durability == null ? Durability.NONE : durability);
+    }
+
+    public Durability getDurability()
+    {
+        return syncer.getDurability();
+    }
+
+    /**
+     * Sets the interval in which written files get forced when using
+     * {@link Durability#PERIODIC}. Like the durability the interval is shared
+     * with all sub filesystems, which are forced by the same thread.
+     *
+     * @param syncInterval the interval in milliseconds
+     * @since 0.3.0
+     */
+    public void setSyncInterval(long syncInterval)
+    {
+        if (syncInterval <= 0)
+        {
+            throw new IllegalArgumentException("Sync interval must be positive");
+        }
+        syncer.setInterval(syncInterval);
+    }
+
+    public long getSyncInterval()
+    {
+        return syncer.getInterval();
+    }
+
+    PathTable getPathTable()
+    {
+        return pathTable;
+    }
+
+    Syncer getSyncer()
+    {
+        return syncer;
+    }
+
+    /**
+     * Sets the executor used to run batches. If no executor was set, virtual
+     * threads will be used if the runtime supports them and a cached thread
+     * pool otherwise.
+     *
+     * @param batchExecutor the executor for batches. If {@code null} the
+     * default executor will be used.
+     * @since 0.3.0
+     */
+    public synchronized void setBatchExecutor(Executor batchExecutor)
+    {
+        this.batchExecutor = batchExecutor;
+        this.ownsBatchExecutor = false;
+    }
+
+    private synchronized Executor getBatchExecutor()
+    {
+        if (batchExecutor == null)
+        {
+            batchExecutor = BatchRunner.createDefaultExecutor();
+            ownsBatchExecutor = true;
+        }
+        return batchExecutor;
+    }
+
+    /**
+     * Sets how many operations of a single batch may run at the same time.
+     *
+     * @param batchConcurrency the maximum number of concurrent operations
+     * @since 0.3.0
+     */
+    public void setBatchConcurrency(int batchConcurrency)
+    {
+        if (batchConcurrency <= 0)
+        {
+            throw new IllegalArgumentException("Concurrency must be positive");
+        }
+        this.batchConcurrency = batchConcurrency;
+    }
+
+    public int getBatchConcurrency()
+    {
+        return batchConcurrency;
+    }
+
+    /**
+     * Runs the given operations concurrently without blocking the caller.
+     * The operations are started in order but may complete in any order, so
+     * operations that depend on each other (e.g. creating a directory and a
+     * file inside of it) should be submitted in separate batches. A failing
+     * operation doesn't affect the others.
+     *
+     * @param operations the operations to run
+     * @return a future that completes with the results of all operations in
+     * the order of the operations
+     * @since 0.3.0
+     */
+    public CompletableFuture<List<BatchResult>> submitBatch(
+            List<BatchOperation> operations)
+    {
+        return new BatchRunner(this, operations).start(getBatchExecutor(),
+                batchConcurrency);
+    }
+
+    /**
+     * Acquires a shared lock for the given file. Any number of shared locks
+     * can be held at the same time, but none while an exclusive lock is held.
+     *
+     * @param file the file to lock
+     * @return the lock
+     * @throws IOException if an I/O Exception occures or the thread got
+     * interrupted while waiting for the lock
+     * @since 0.3.0
+     * @see #lock(net.bplaced.clayn.cfs.SimpleFile, boolean, boolean)
+     */
+    public PathLock lockShared(SimpleFile file) throws IOException
+    {
+        return lock(file, false, false);
+    }
+
+    /**
+     * Acquires an exclusive lock for the given file.
+     *
+     * @param file the file to lock
+     * @return the lock
+     * @throws IOException if an I/O Exception occures or the thread got
+     * interrupted while waiting for the lock
+     * @since 0.3.0
+     * @see #lock(net.bplaced.clayn.cfs.SimpleFile, boolean, boolean)
+     */
+    public PathLock lockExclusive(SimpleFile file) throws IOException
+    {
+        return lock(file, true, false);
+    }
+
+    /**
+     * Acquires a lock for the given file. The lock is only advisory, it
+     * doesn't prevent anyone from accessing the file without locking it.
+     * Locks are shared with all filesystems created by
+     * {@link #subFileSystem(java.lang.String)}. Locks of different files never
+     * block each other. Waiting for a lock can be interrupted.<br><br>
+     * If {@code crossProcess} is {@code true} the lock is additionally
+     * acquired from the operating system using {@link FileChannel#lock()} to
+     * protect the file against other processes. This creates the file if it
+     * doesn't exist. Be aware that on some systems closing any channel of the
+     * file, e.g. a stream returned by {@link SimpleFile#openRead()}, releases
+     * the lock of the operating system.
+     *
+     * @param file the file to lock
+     * @param exclusive {@code true} for an exclusive lock, {@code false} for
+     * a shared one
+     * @param crossProcess {@code true} to also acquire a lock of the
+     * operating system
+     * @return the lock
+     * @throws IOException if an I/O Exception occures or the thread got
+     * interrupted while waiting for the lock
+     * @since 0.3.0
+     */
+    public PathLock lock(SimpleFile file, boolean exclusive,
+            boolean crossProcess) throws IOException
+    {
+        return locks.lock(((CFSSimpleFileImpl) file).getFile().toPath(),
+                exclusive, crossProcess);
+    }
+
+    /**
+     * Returns metrics about the contention of the file locks of this
+     * filesystem and its sub filesystems.
+     *
+     * @return the current lock statistics
+     * @since 0.3.0
+     */
+    public LockStatistics getLockStatistics()
+    {
+        return locks.getStatistics();
+    }
+
+    /**
+     * Sets the throttle that limits the I/O of this filesystem. Filesystems
+     * created by {@link #subFileSystem(java.lang.String)} are additionally
+     * limited by the throttles of their parents. The limit applies to the
+     * streams opened afterwards and to the metadata operations of files and
+     * directories, like creating, deleting, listing and getting the size.
+     * Checking if a file exists is not limited.
+     *
+     * @param throttle the throttle to use or {@code null} to only be limited
+     * by the parent filesystems
+     * @since 0.3.0
+     */
+    public void setThrottle(Throttle throttle)
+    {
+        this.throttle = throttle;
+    }
+
+    public Throttle getThrottle()
+    {
+        return throttle;
+    }
+
+    /**
+     * Sets the priority used for the throttles of this filesystem and its
+     * parents.
+     *
+     * @param ioPriority the priority. If {@code null}
+     * {@link IOPriority#FOREGROUND} will be used.
+     * @since 0.3.0
+     */
+    public void setIOPriority(IOPriority ioPriority)
+    {
+        this.ioPriority = ioPriority == null ? IOPriority.FOREGROUND : ioPriority;
+    }
+
+    public IOPriority getIOPriority()
+    {
+        return ioPriority;
+    }
+
+    private boolean isThrottled()
+    {
+        return throttle != null || (parentFs != null && parentFs.isThrottled());
+    }
+
+    /**
+     * Waits until this filesystem and all its parents may use the given
+     * amount of bytes and operations.
+     */
+    void throttle(long bytes, int ops) throws IOException
+    {
+        throttle(bytes, ops, ioPriority);
+    }
+
+    void throttle(long bytes, int ops, IOPriority priority) throws IOException
+    {
+        Throttle t = throttle;
+        if (t != null)
+        {
+            t.acquire(bytes, ops, priority);
+        }
+        if (parentFs != null)
+        {
+            parentFs.throttle(bytes, ops, priority);
+        }
+    }
+
+    InputStream throttle(InputStream in)
+    {
+        return isThrottled() ? new ThrottledInputStream(in, this) : in;
+    }
+
+    OutputStream throttle(OutputStream out)
+    {
+        return isThrottled() ? new ThrottledOutputStream(out, this) : out;
+    }
+
+    /**
+     * Sets the checksum that gets computed for the data written through the
+     * streams of {@link CFSSimpleFileImpl#openWrite()} and
+     * {@link CFSSimpleFileImpl#openAppend()}. The checksums are stored
+     * together with the size and modification time of the files next to the
+     * root directory of this filesystem in a file with the suffix
+     * {@code .checksums}, which is shared with all filesystems created by
+     * {@link #subFileSystem(java.lang.String)}. Every snapshot has its own
+     * index that starts with the checksums of the directory it was taken
+     * of.<br><br>
+     * Appending to a file continues its {@link ChecksumAlgorithm#CRC32C}
+     * checksum. For {@link ChecksumAlgorithm#SHA_256} and files without a
+     * valid checksum, appending and {@link CFSSimpleFileImpl#getAppender()
+     * shared appending} remove the checksum instead. Files that get changed
+     * without this filesystem or while tracking is disabled get a new
+     * checksum when they are
+     * {@link #verify(java.lang.String, boolean, Throttle, java.util.function.Consumer)
+     * verified}.
+     *
+     * @param checksumAlgorithm the checksum to compute or {@code null} to
+     * disable tracking
+     * @since 0.3.0
+     */
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm)
+    {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    public ChecksumAlgorithm getChecksumAlgorithm()
+    {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * Verifies the checksums of all files in the given directory and its
+     * subdirectories without blocking the caller. Files without a checksum
+     * or whose size or modification time changed since their checksum was
+     * computed get a new checksum. The other files are only read if
+     * {@code full} is {@code true}, since corruption doesn't change the size
+     * or modification time. Files are read concurrently on the
+     * {@link #setBatchExecutor(java.util.concurrent.Executor) batch executor}
+     * with a background priority for the throttles of this filesystem.
+     *
+     * @param path the directory to verify
+     * @param full {@code true} to also read the unchanged files and compare
+     * them with their checksum
+     * @param limit an additional throttle for the verification or
+     * {@code null}
+     * @param progress called after each file that was read or {@code null}.
+     * Gets called from several threads.
+     * @return a future that completes with the result of the verification
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public CompletableFuture<VerifyResult> verify(String path, boolean full,
+            Throttle limit, Consumer<VerifyProgress> progress) throws IOException
+    {
+        CFSDirectoryImpl dir = (CFSDirectoryImpl) getDirectory(path);
+        if (!dir.exists())
+        {
+            throw new NoSuchFileException(dir.getDirectory().toString());
+        }
+        CFSDirectoryImpl rootDir = (CFSDirectoryImpl) root;
+        ChecksumAlgorithm algorithm = checksumAlgorithm;
+        return new Verifier(this, checksums, rootDir.getDirectory().toPath(),
+                dir.getDirectory().toPath(), full, limit, progress,
+                algorithm == null ? ChecksumAlgorithm.CRC32C : algorithm).start(
+                        getBatchExecutor(), Math.min(batchConcurrency,
+                                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Wraps the stream so it computes the checksum of the written data if
+     * checksums are tracked. Closes the stream if that fails.
+     */
+    OutputStream track(Path file, OutputStream out, boolean append) throws IOException
+    {
+        ChecksumAlgorithm algorithm = checksumAlgorithm;
+        if (algorithm == null)
+        {
+            return out;
+        }
+        try
+        {
+            String key = checksums.key(file);
+            if (!append)
+            {
+                return new ChecksumOutputStream(out, checksums, file, key,
+                        algorithm, null);
+            }
+            ChecksumIndex.Entry base = checksums.get(key);
+            if (algorithm == ChecksumAlgorithm.CRC32C && base != null
+                    && base.algorithm == algorithm)
+            {
+                BasicFileAttributes attrs = Files.readAttributes(file,
+                        BasicFileAttributes.class);
+                if (base.matches(attrs.size(),
+                        attrs.lastModifiedTime().toMillis()))
+                {
+                    return new ChecksumOutputStream(out, checksums, file, key,
+                            algorithm, base);
+                }
+            }
+            checksums.remove(key);
+            return out;
+        } catch (IOException | RuntimeException ex)
+        {
+            out.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Removes the checksum of the given file if checksums are tracked.
+     */
+    void untrack(Path file) throws IOException
+    {
+        if (checksumAlgorithm != null)
+        {
+            checksums.remove(checksums.key(file));
+        }
+    }
+
+    /**
+     * Creates a snapshot of the given directory. The snapshot recreates the
+     * directories and hard links the files, so it only costs metadata
+     * operations. Files that can't be linked, e.g. because the snapshots are
+     * on another volume, get copied. Snapshots are stored next to the root
+     * directory of this filesystem in a directory with the suffix
+     * {@code .snapshots} and are shared with all filesystems created by
+     * {@link #subFileSystem(java.lang.String)}.<br><br>
+     * Writing a file through this filesystem afterwards replaces the file
+     * with a copy first, so the snapshot keeps its content. Streams and
+     * appenders that are open while the snapshot is taken and changes made
+     * outside of this filesystem still modify the snapshot.
+     *
+     * @param path the directory to take the snapshot of
+     * @param name the name of the snapshot. Must not contain separators.
+     * @return a filesystem with the snapshot as root
+     * @throws IOException if an I/O Exception occures or a snapshot with the
+     * name exists
+     * @since 0.3.0
+     */
+    public ClaynFileSystem snapshot(String path, String name) throws IOException
+    {
+        CFSDirectoryImpl dir = (CFSDirectoryImpl) getDirectory(path);
+        File created = snapshots.create(dir.getDirectory(), name);
+        ChecksumIndex index = new ChecksumIndex(created, true);
+        Files.deleteIfExists(index.getFile());
+        checksums.copy(checksums.key(dir.getDirectory().toPath()), index);
+        index.close();
+        return open(created);
+    }
+
+    /**
+     * Returns the snapshot with the given name.
+     *
+     * @param name the name of the snapshot
+     * @return a filesystem with the snapshot as root
+     * @throws IOException if an I/O Exception occures or the snapshot doesn't
+     * exist
+     * @since 0.3.0
+     * @see #snapshot(java.lang.String, java.lang.String)
+     */
+    public ClaynFileSystem getSnapshot(String name) throws IOException
+    {
+        return open(snapshots.getSnapshot(name));
+    }
+
+    private ClaynFileSystem open(File snapshot) throws IOException
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(snapshot);
+        fs.snapshots = snapshots;
+        fs.locks = locks;
+        fs.appenders = appenders;
+        fs.syncer = syncer;
+        fs.scratch = scratch;
+        fs.checksums = new ChecksumIndex(snapshot, true);
+        fs.shared = true;
+        return fs;
+    }
+
+    /**
+     * Returns the names of all snapshots.
+     *
+     * @return the sorted names of the snapshots
+     * @since 0.3.0
+     */
+    public List<String> listSnapshots()
+    {
+        return snapshots.list();
+    }
+
+    /**
+     * Deletes the snapshot with the given name.
+     *
+     * @param name the name of the snapshot
+     * @throws IOException if an I/O Exception occures or the snapshot doesn't
+     * exist
+     * @since 0.3.0
+     */
+    public void deleteSnapshot(String name) throws IOException
+    {
+        File snapshot = snapshots.getSnapshot(name);
+        snapshots.delete(name);
+        Files.deleteIfExists(new ChecksumIndex(snapshot, true).getFile());
+    }
+
+    /**
+     * Clones the given directory into a new directory of this filesystem.
+     * The files are hard linked like for
+     * {@link #snapshot(java.lang.String, java.lang.String) snapshots}, so
+     * writing a file of the source or the clone through this filesystem
+     * doesn't change the other one.
+     *
+     * @param source the directory to clone
+     * @param target the directory to create. Must not exist and must not be
+     * inside the source.
+     * @return the created directory
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public ActiveDirectory cloneDirectory(String source, String target) throws IOException
+    {
+        CFSDirectoryImpl from = (CFSDirectoryImpl) getDirectory(source);
+        CFSDirectoryImpl to = (CFSDirectoryImpl) getDirectory(target);
+        if (to.getParent() != null)
+        {
+            to.getParent().mkDirs();
+        }
+        snapshots.link(from.getDirectory().toPath(), to.getDirectory().toPath());
+        return to;
+    }
+
+    /**
+     * Returns an empty scratch file for temporary data. Scratch files are
+     * taken from a pool and should be given back with
+     * {@link #releaseScratchFile(net.bplaced.clayn.cfs.SimpleFile)} instead of
+     * being deleted, so they can be reused without creating and deleting
+     * files. They are stored next to the root directory of this filesystem in
+     * a directory with the suffix {@code .scratch} and are not part of the
+     * filesystem. The pool is shared with all filesystems created by
+     * {@link #subFileSystem(java.lang.String)} and for snapshots. Files in
+     * the pool are locked, so other filesystems using the same root don't
+     * take them over.
+     *
+     * @return an empty file
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public SimpleFile getScratchFile() throws IOException
+    {
+        return scratch.acquire();
+    }
+
+    /**
+     * Gives a scratch file back to the pool. The file must not be used
+     * afterwards and its streams should be closed. Its content stays on the
+     * disk until the file gets used again.
+     *
+     * @param file a file returned by {@link #getScratchFile()}
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public void releaseScratchFile(SimpleFile file) throws IOException
+    {
+        scratch.release(file);
+    }
+
+    /**
+     * Sets the number of scratch files the pool keeps. The files are created
+     * when the first scratch file is requested. Released files that don't
+     * fit into the pool get deleted. The default is {@code 16}.
+     *
+     * @param size the number of files to keep. {@code 0} deletes every
+     * released file.
+     * @throws IOException if an I/O Exception occures while deleting files
+     * @since 0.3.0
+     */
+    public void setScratchPoolSize(int size) throws IOException
+    {
+        scratch.setSize(size);
+    }
+
+    public int getScratchPoolSize()
+    {
+        return scratch.getSize();
+    }
+
+    /**
+     * Deletes all scratch files that are not in use.
+     *
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public void clearScratchFiles() throws IOException
+    {
+        scratch.clear();
+    }
+
+    /**
+     * Opens the filesystem for the scratch files, which is limited by the
+     * throttles of this filesystem.
+     */
+    ClaynFileSystem openScratch(File area) throws IOException
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(area);
+        fs.locks = locks;
+        fs.appenders = appenders;
+        fs.syncer = syncer;
+        fs.shared = true;
+        fs.parentFs = this;
+        fs.setIOPriority(ioPriority);
+        return fs;
+    }
+
+    Snapshots getSnapshots()
+    {
+        return snapshots;
+    }
+
+    void activated(CFSDirectoryImpl dir)
+    {
+        active.compute(dir.getPath(), (k, dirs) ->
+        {
+            List<CFSDirectoryImpl> handles = dirs != null ? dirs : new CopyOnWriteArrayList<>();
+            handles.add(dir);
+            return handles;
+        });
+    }
+
+    void deactivated(CFSDirectoryImpl dir)
+    {
+        active.computeIfPresent(dir.getPath(), (k, dirs) ->
+        {
+            dirs.removeIf((d) -> d == dir);
+            return dirs.isEmpty() ? null : dirs;
+        });
+    }
+
+    /**
+     * Stores the state of the trees below all currently activated directories
+     * in the given file. This is meant to be called before shutting down so
+     * that the changes made while the application wasn't running can be
+     * replayed with {@link #replayState(java.io.File)} on the next start.
+     *
+     * @see #setStateFile(java.io.File)
+     * @param file the file to store the state in
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public void saveState(File file) throws IOException
+    {
+        List<CFSDirectoryImpl> dirs = new ArrayList<>();
+        for (List<CFSDirectoryImpl> handles : active.values())
+        {
+            if (!handles.isEmpty())
+            {
+                dirs.add(handles.get(0));
+            }
+        }
+        DirectorySnapshot.save(dirs, file);
+    }
+
+    /**
+     * Compares the trees below all currently activated directories with their
+     * state in the given file and informs their listeners about every file in
+     * the tree that was created, deleted or modified since the state was
+     * saved. Files count as modified if their size, modification time or file
+     * key changed. Directories should therefore be activated and have their
+     * listeners set before calling this.<br><br>
+     * Only directories whose modification time changed get listed, unchanged
+     * directories cost a single stat. Files that were changed in place in a
+     * directory that didn't change otherwise are therefore not reported, use
+     * {@link #replayState(java.io.File, boolean)} to find them.
+     *
+     * @param file the file containing the state
+     * @see #saveState(java.io.File)
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public void replayState(File file) throws IOException
+    {
+        replayState(file, false);
+    }
+
+    /**
+     * Works like {@link #replayState(java.io.File)} but can compare every
+     * file, which also finds files that were changed in place but lists every
+     * directory of the trees.
+     *
+     * @param file the file containing the state
+     * @param full {@code true} to list and compare every directory, even if
+     * its modification time didn't change
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    public void replayState(File file, boolean full) throws IOException
+    {
+        DirectorySnapshot snapshot = DirectorySnapshot.load(file);
+        for (List<CFSDirectoryImpl> handles : active.values())
+        {
+            if (handles.isEmpty())
+            {
+                continue;
+            }
+            Map<String, FileModification.Modification> changes = snapshot.diff(
+                    handles.get(0), full);
+            long time = System.currentTimeMillis();
+            for (CFSDirectoryImpl dir : handles)
+            {
+                for (Map.Entry<String, FileModification.Modification> e : changes.entrySet())
+                {
+                    String path = e.getKey();
+                    int slash = path.lastIndexOf('/');
+                    CFSDirectoryImpl parent = slash < 0 ? dir
+                            : (CFSDirectoryImpl) dir.changeDirectory(
+                                    path.substring(0, slash));
+                    dir.fire(parent.createFile(path.substring(slash + 1)),
+                            e.getValue(), time);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets a file the state of the activated directories gets
+     * {@link #saveState(java.io.File) saved} to when this filesystem gets
+     * closed, so it can be {@link #replayState(java.io.File) replayed} on the
+     * next start.
+     *
+     * @param stateFile the file or {@code null} to not save the state
+     * @since 0.3.0
+     */
+    public void setStateFile(File stateFile)
+    {
+        this.stateFile = stateFile;
+    }
+
+    public File getStateFile()
+    {
+        return stateFile;
+    }
+
+    GroupAppender acquireAppender(Path file) throws IOException
+    {
+        Path key = file.toAbsolutePath().normalize();
+        synchronized (appenders)
+        {
+            AppendQueue queue = appenders.get(key);
+            if (queue == null || queue.isReleased())
+            {
+                queue = new AppendQueue(key, appendBatchSize,
+                        appendFlushInterval, syncer, queue);
+                appenders.put(key, queue);
+                if (LOG.isDebugEnabled())
+                {
+                    LOG.debug("Opened shared appender for {}", key);
+                }
+            }
+            queue.retain();
+            return new GroupAppender(this, queue);
+        }
+    }
+
+    void releaseAppender(AppendQueue queue) throws IOException
+    {
+        synchronized (appenders)
+        {
+            if (queue.release() > 0)
+            {
+                return;
+            }
+        }
+        // Shut down without the lock, the final flush must not stall others
+        try
+        {
+            queue.shutdown();
+        } finally
+        {
+            synchronized (appenders)
+            {
+                appenders.remove(queue.getFile(), queue);
+            }
+        }
+    }
+
+    /**
+     * Closes this filesystem. If a {@link #setStateFile(java.io.File) state
+     * file} is set, the state of the activated directories gets saved first.
+     * All directories activated through this filesystem get deactivated and
+     * their subscriptions get completed, which also releases producers
+     * waiting for demand. If this filesystem wasn't created by another one,
+     * all pending data gets forced according to the {@link Durability}, the
+     * background threads are stopped, the scratch files are unlocked and the
+     * open appenders and the checksum journal get closed. Filesystems created by
+     * {@link #subFileSystem(java.lang.String)} or for snapshots share these
+     * resources, so closing them only deactivates their directories. A
+     * filesystem must not be used after it was closed.
+     *
+     * @throws IOException if an I/O Exception occures
+     * @since 0.3.0
+     */
+    @Override
+    public void close() throws IOException
+    {
+        IOException failure = null;
+        File state = stateFile;
+        if (state != null)
+        {
+            try
+            {
+                saveState(state);
+            } catch (IOException ex)
+            {
+                failure = ex;
+            }
+        }
+        for (List<CFSDirectoryImpl> handles : active.values())
+        {
+            for (CFSDirectoryImpl dir : handles)
+            {
+                dir.deactivate();
+                dir.completeSubscriptions();
+            }
+        }
+        if (shared)
+        {
+            if (ownsChecksums)
+            {
+                checksums.close();
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            return;
+        }
+        List<AppendQueue> queues;
+        synchronized (appenders)
+        {
+            queues = new ArrayList<>(appenders.values());
+            appenders.clear();
+        }
+        for (AppendQueue queue : queues)
+        {
+            try
+            {
+                queue.shutdown();
+            } catch (IOException ex)
+            {
+                failure = ex;
+            }
+        }
+        try
+        {
+            scratch.close();
+        } catch (IOException ex)
+        {
+            failure = ex;
+        }
+        syncer.shutdown();
+        synchronized (this)
+        {
+            if (ownsBatchExecutor && batchExecutor instanceof ExecutorService)
+            {
+                ((ExecutorService) batchExecutor).shutdown();
+            }
+        }
+        checksums.close();
+        if (failure != null)
+        {
+            throw failure;
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Closed the ClaynFileSystem at {}", root);
+        }
+    }
+
     /**
      * Creates a new CFileSystem that operates on the local file system. The
      * root for this filesystem is the directory returned by {@code user.dir}
@@ -160,6 +1095,22 @@ public class ClaynFileSystem implements CFileSystem
     {
         CFSDirectoryImpl nRoot = (CFSDirectoryImpl) getDirectory(dir);
         nRoot.mkDirs();
-        return new ClaynFileSystem(nRoot.getDirectory());
+        ClaynFileSystem sub = new ClaynFileSystem(nRoot.getDirectory());
+        sub.setAppendBatchSize(appendBatchSize);
+        sub.setAppendFlushInterval(appendFlushInterval);
+        sub.setBatchExecutor(getBatchExecutor());
+        sub.setBatchConcurrency(batchConcurrency);
+        sub.locks = locks;
+        sub.appenders = appenders;
+        sub.syncer = syncer;
+        sub.shared = true;
+        sub.snapshots = snapshots;
+        sub.scratch = scratch;
+        sub.checksums = checksums;
+        sub.ownsChecksums = false;
+        sub.checksumAlgorithm = checksumAlgorithm;
+        sub.parentFs = this;
+        sub.setIOPriority(ioPriority);
+        return sub;
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CRC32C (Castagnoli) checksum for runtimes without
+ * {@code java.util.zip.CRC32C}. Uses eight tables to process eight bytes at
+ * once. {@link #create()} returns the implementation of the runtime if it
+ * has one, since that uses the CRC instructions of the processor.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class Crc32c implements Checksum
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(Crc32c.class);
+    private static final int POLY = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+    private static final Constructor<?> RUNTIME = findRuntime();
+    private int crc = 0xFFFFFFFF;
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            int c = i;
+            for (int k = 0; k < 8; k++)
+            {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            TABLES[0][i] = c;
+        }
+        for (int i = 0; i < 256; i++)
+        {
+            for (int t = 1; t < 8; t++)
+            {
+                int prev = TABLES[t - 1][i];
+                TABLES[t][i] = (prev >>> 8) ^ TABLES[0][prev & 0xFF];
+            }
+        }
+    }
+
+    private static Constructor<?> findRuntime()
+    {
+        try
+        {
+            return Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("CRC32C not available, using own implementation");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new CRC32C checksum, preferring the one of the runtime.
+     */
+    static Checksum create()
+    {
+        if (RUNTIME != null)
+        {
+            try
+            {
+                return (Checksum) RUNTIME.newInstance();
+            } catch (ReflectiveOperationException ex)
+            {
+                // Fall back to the own implementation
+            }
+        }
+        return new Crc32c();
+    }
+
+    @Override
+    public void update(int b)
+    {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len)
+    {
+        int c = crc;
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        while (len >= 8)
+        {
+            c ^= (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+                    | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+            c = t7[c & 0xFF] ^ t6[(c >>> 8) & 0xFF] ^ t5[(c >>> 16) & 0xFF]
+                    ^ t4[c >>> 24] ^ t3[b[off + 4] & 0xFF]
+                    ^ t2[b[off + 5] & 0xFF] ^ t1[b[off + 6] & 0xFF]
+                    ^ t0[b[off + 7] & 0xFF];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0)
+        {
+            c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue()
+    {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset()
+    {
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Returns the checksum of two concatenated blocks of data from the
+     * checksums of the blocks without reading the data again.
+     *
+     * @param crc1 the checksum of the first block
+     * @param crc2 the checksum of the second block
+     * @param len2 the length of the second block in bytes
+     */
+    static long combine(long crc1, long crc2, long len2)
+    {
+        if (len2 <= 0)
+        {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = POLY & 0xFFFFFFFFL;
+        long row = 1;
+        for (int n = 1; n < 32; n++)
+        {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+        do
+        {
+            square(even, odd);
+            if ((len2 & 1) != 0)
+            {
+                crc1 = times(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0)
+            {
+                break;
+            }
+            square(odd, even);
+            if ((len2 & 1) != 0)
+            {
+                crc1 = times(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] mat, long vec)
+    {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1)
+        {
+            if ((vec & 1) != 0)
+            {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] mat)
+    {
+        for (int n = 0; n < 32; n++)
+        {
+            square[n] = times(mat, mat[n]);
+        }
+    }
+}
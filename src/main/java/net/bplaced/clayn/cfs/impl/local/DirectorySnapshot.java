@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import net.bplaced.clayn.cfs.FileModification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact state of the directory trees below a set of directories that can be
+ * stored and compared with the local filesystem later. For every directory
+ * its modification time and its subdirectories are stored together with the
+ * name, size, modification time and file key of its files.<br><br>
+ * When comparing, directories whose modification time didn't change are not
+ * listed again, only their stored subdirectories are checked, so an unchanged
+ * tree costs a single stat per directory. Since changing the content of an
+ * existing file doesn't change the modification time of its directory, such
+ * changes are only found in directories that changed otherwise, unless a full
+ * comparison is requested. Directories that were changed shortly before the
+ * state was saved are always listed, because the modification time may not be
+ * precise enough to detect later changes.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class DirectorySnapshot
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            DirectorySnapshot.class);
+    private static final int MAGIC = 0x43465353;
+    private static final int VERSION = 3;
+    /**
+     * Directories modified less than this before the state was saved are
+     * always listed.
+     */
+    private static final long GRANULARITY = 2000;
+
+    private final long time;
+    private final Map<String, DirectoryState> directories;
+
+    private DirectorySnapshot(long time,
+            Map<String, DirectoryState> directories)
+    {
+        this.time = time;
+        this.directories = directories;
+    }
+
+    /**
+     * Takes a snapshot of the trees below the given directories and writes it
+     * to the given file. The file gets replaced atomically if possible.
+     */
+    static void save(Collection<CFSDirectoryImpl> dirs, File target) throws IOException
+    {
+        long time = System.currentTimeMillis();
+        File tmp = new File(target.getPath() + ".tmp");
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(time);
+            out.writeInt(dirs.size());
+            for (CFSDirectoryImpl dir : dirs)
+            {
+                out.writeUTF(dir.getPath());
+                count += write(out, dir.getDirectory().toPath());
+            }
+        }
+        try
+        {
+            Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex)
+        {
+            Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Saved state of {} directories in {} trees to {}", count,
+                    dirs.size(), target);
+        }
+    }
+
+    /**
+     * Writes the state of the given directory and its subdirectories.
+     *
+     * @return the number of written directories
+     */
+    private static int write(DataOutputStream out, Path dir) throws IOException
+    {
+        DirectoryState state = read(dir);
+        out.writeLong(state.modified);
+        out.writeInt(state.files.size());
+        for (FileState file : state.files.values())
+        {
+            out.writeUTF(file.name);
+            out.writeLong(file.size);
+            out.writeLong(file.modified);
+            out.writeUTF(file.key);
+        }
+        out.writeInt(state.subdirectories.size());
+        int count = 1;
+        for (String name : state.subdirectories.keySet())
+        {
+            out.writeUTF(name);
+            count += write(out, dir.resolve(name));
+        }
+        return count;
+    }
+
+    static DirectorySnapshot load(File source) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(source.toPath()))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                throw new IOException(source + " is no directory snapshot");
+            }
+            long time = in.readLong();
+            int count = in.readInt();
+            Map<String, DirectoryState> dirs = new HashMap<>();
+            for (int i = 0; i < count; i++)
+            {
+                String path = in.readUTF();
+                dirs.put(path, readState(in));
+            }
+            return new DirectorySnapshot(time, dirs);
+        }
+    }
+
+    private static DirectoryState readState(DataInputStream in) throws IOException
+    {
+        DirectoryState state = new DirectoryState(in.readLong());
+        int files = in.readInt();
+        for (int i = 0; i < files; i++)
+        {
+            FileState file = new FileState(in.readUTF(), in.readLong(),
+                    in.readLong(), in.readUTF());
+            state.files.put(file.name, file);
+        }
+        int subdirectories = in.readInt();
+        for (int i = 0; i < subdirectories; i++)
+        {
+            String name = in.readUTF();
+            state.subdirectories.put(name, readState(in));
+        }
+        return state;
+    }
+
+    /**
+     * Lists the given directory. The states of the subdirectories are left
+     * empty.
+     */
+    private static DirectoryState read(Path dir) throws IOException
+    {
+        DirectoryState state = new DirectoryState(Files.getLastModifiedTime(
+                dir).toMillis());
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+        {
+            for (Path p : stream)
+            {
+                BasicFileAttributes attr;
+                try
+                {
+                    attr = Files.readAttributes(p, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attr.isSymbolicLink())
+                    {
+                        attr = Files.readAttributes(p, BasicFileAttributes.class);
+                        if (attr.isDirectory())
+                        {
+                            continue;
+                        }
+                    }
+                } catch (NoSuchFileException ex)
+                {
+                    continue;
+                }
+                String name = p.getFileName().toString();
+                if (attr.isDirectory())
+                {
+                    state.subdirectories.put(name, null);
+                } else if (attr.isRegularFile())
+                {
+                    state.files.put(name, new FileState(name, attr.size(),
+                            attr.lastModifiedTime().toMillis(),
+                            Objects.toString(attr.fileKey(), "")));
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Compares the tree below the given directory with its state in this
+     * snapshot.
+     *
+     * @param full {@code true} to list every directory, even if its
+     * modification time didn't change
+     * @return the paths of the changed files relative to the directory mapped
+     * to their change since the snapshot. Empty if the directory is not part
+     * of the snapshot or nothing changed.
+     */
+    Map<String, FileModification.Modification> diff(CFSDirectoryImpl dir,
+            boolean full) throws IOException
+    {
+        Map<String, FileModification.Modification> changes = new HashMap<>();
+        DirectoryState old = directories.get(dir.getPath());
+        if (old != null && dir.exists())
+        {
+            diff(old, dir.getDirectory().toPath(), "", full, changes);
+        }
+        return changes;
+    }
+
+    private void diff(DirectoryState old, Path dir, String prefix, boolean full,
+            Map<String, FileModification.Modification> changes) throws IOException
+    {
+        if (!full && old != null && old.modified < time - GRANULARITY
+                && old.modified == Files.getLastModifiedTime(dir).toMillis())
+        {
+            // The entries didn't change, only the subdirectories may have
+            for (Map.Entry<String, DirectoryState> e : old.subdirectories.entrySet())
+            {
+                Path sub = dir.resolve(e.getKey());
+                String subPrefix = prefix + e.getKey() + "/";
+                if (Files.isDirectory(sub, LinkOption.NOFOLLOW_LINKS))
+                {
+                    diff(e.getValue(), sub, subPrefix, full, changes);
+                } else
+                {
+                    deleted(e.getValue(), subPrefix, changes);
+                }
+            }
+            return;
+        }
+        DirectoryState current = read(dir);
+        for (FileState file : current.files.values())
+        {
+            FileState before = old == null ? null : old.files.get(file.name);
+            if (before == null)
+            {
+                changes.put(prefix + file.name,
+                        FileModification.Modification.CREATE);
+            } else if (before.size != file.size || before.modified != file.modified
+                    || !before.key.equals(file.key))
+            {
+                changes.put(prefix + file.name,
+                        FileModification.Modification.MODIFY);
+            }
+        }
+        for (String name : current.subdirectories.keySet())
+        {
+            diff(old == null ? null : old.subdirectories.get(name),
+                    dir.resolve(name), prefix + name + "/", full, changes);
+        }
+        if (old == null)
+        {
+            return;
+        }
+        for (FileState file : old.files.values())
+        {
+            if (!current.files.containsKey(file.name))
+            {
+                changes.put(prefix + file.name,
+                        FileModification.Modification.DELETE);
+            }
+        }
+        for (Map.Entry<String, DirectoryState> e : old.subdirectories.entrySet())
+        {
+            if (!current.subdirectories.containsKey(e.getKey()))
+            {
+                deleted(e.getValue(), prefix + e.getKey() + "/", changes);
+            }
+        }
+    }
+
+    private static void deleted(DirectoryState old, String prefix,
+            Map<String, FileModification.Modification> changes)
+    {
+        for (String name : old.files.keySet())
+        {
+            changes.put(prefix + name, FileModification.Modification.DELETE);
+        }
+        for (Map.Entry<String, DirectoryState> e : old.subdirectories.entrySet())
+        {
+            deleted(e.getValue(), prefix + e.getKey() + "/", changes);
+        }
+    }
+
+    private static final class DirectoryState
+    {
+
+        private final long modified;
+        private final Map<String, FileState> files = new HashMap<>();
+        private final Map<String, DirectoryState> subdirectories = new HashMap<>();
+
+        DirectoryState(long modified)
+        {
+            this.modified = modified;
+        }
+    }
+
+    private static final class FileState
+    {
+
+        private final String name;
+        private final long size;
+        private final long modified;
+        private final String key;
+
+        FileState(String name, long size, long modified, String key)
+        {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+/**
+ * Defines when the data written through a {@link ClaynFileSystem} gets forced
+ * to the storage device. Stronger levels cost throughput, so the level should
+ * be chosen per workload.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @see ClaynFileSystem#setDurability(Durability)
+ */
+public enum Durability
+{
+    /**
+     * Data is never forced, the operating system decides when it gets
+     * written. This is the fastest level and the default.
+     */
+    NONE,
+    /**
+     * Data and metadata of a file get forced when its stream gets closed.
+     */
+    ON_CLOSE,
+    /**
+     * Like {@link #ON_CLOSE} but the parent directory gets forced as well, so
+     * that newly created or deleted files survive a crash. Forcing
+     * directories isn't supported on every platform, it gets skipped where
+     * it isn't.
+     */
+    ON_CLOSE_DIRECTORY,
+    /**
+     * Written files and their directories get forced together in the
+     * background once per sync interval. Closing a stream doesn't wait for
+     * the data to be forced, so at most one interval of data may be lost. The
+     * files stay open until they were forced. If a few hundred closed files
+     * are waiting, further files are forced when their stream gets closed.
+     */
+    PERIODIC
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Storage backend for a {@link StoreFileSystem}. The store works on absolute
+ * keys only. The root directory is {@code "/"}, directory keys end with
+ * {@code '/'} (e.g. {@code "/a/b/"}) and file keys don't (e.g.
+ * {@code "/a/b/c.txt"}). The store doesn't check for parent directories, this
+ * is done by the directories and files using it.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @impl
+ */
+interface EntryStore extends Closeable
+{
+
+    boolean isFile(String key);
+
+    boolean isDirectory(String key);
+
+    void createFile(String key) throws IOException;
+
+    void createDirectory(String key) throws IOException;
+
+    void deleteFile(String key) throws IOException;
+
+    /**
+     * Deletes the given directory. The directory must be empty.
+     */
+    void deleteDirectory(String key) throws IOException;
+
+    InputStream openRead(String key) throws IOException;
+
+    /**
+     * Opens the given file for writing. If the file doesn't exist it gets
+     * created.
+     */
+    OutputStream openWrite(String key, boolean append) throws IOException;
+
+    long size(String key) throws IOException;
+
+    /**
+     * Returns the attributes of the given entry or {@code null} if it doesn't
+     * exist.
+     */
+    LocalFileAttributes attributes(String key);
+
+    /**
+     * Lists the names of all direct children of the given directory. Names of
+     * directories don't end with {@code '/'}.
+     */
+    List<String> list(String key, boolean directories) throws IOException;
+}
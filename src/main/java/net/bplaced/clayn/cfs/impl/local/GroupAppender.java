@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Appender for log style files that is shared between all threads appending
+ * to the same file of a {@link ClaynFileSystem} and the filesystems created
+ * by {@link ClaynFileSystem#subFileSystem(java.lang.String)}. Records from
+ * all appenders of a file are queued without locking and written in large
+ * batches by a single thread. Every record is written as a whole, records of different threads
+ * never interleave. The batch size and the flush interval can be configured
+ * on the filesystem. An appender must be closed after usage, the file will be
+ * closed after its last appender got closed.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @see CFSSimpleFileImpl#getAppender()
+ */
+public class GroupAppender implements Closeable
+{
+
+    private final ClaynFileSystem fs;
+    private final AppendQueue queue;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    GroupAppender(ClaynFileSystem fs, AppendQueue queue)
+    {
+        this.fs = fs;
+        this.queue = queue;
+    }
+
+    /**
+     * Queues the given record for appending. The record must not be changed
+     * afterwards.
+     *
+     * @param record the bytes to append
+     * @return a future that completes when the record was written to the file
+     */
+    public CompletableFuture<Void> append(byte[] record)
+    {
+        return append(record, false);
+    }
+
+    /**
+     * Queues the given record for appending. The record must not be changed
+     * afterwards.
+     *
+     * @param record the bytes to append
+     * @param durable {@code true} if the future should only complete after
+     * the record was forced to the storage device
+     * @return a future that completes when the record was written to the file
+     */
+    public CompletableFuture<Void> append(byte[] record, boolean durable)
+    {
+        if (closed.get())
+        {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Appender is closed"));
+            return failed;
+        }
+        return queue.append(record, durable);
+    }
+
+    /**
+     * Closes this appender. Records appended before will still be written.
+     * Closing an appender more than once has no effect.
+     *
+     * @throws IOException if closing the underlying file failed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed.compareAndSet(false, true))
+        {
+            fs.releaseAppender(queue);
+        }
+    }
+
+    /**
+     * Outputstream that collects everything written between two flushes and
+     * appends it as a single record. Closing the stream waits until the last
+     * record was written.
+     */
+    static class AppenderOutputStream extends ByteArrayOutputStream
+    {
+
+        private final GroupAppender appender;
+        private CompletableFuture<Void> last = CompletableFuture.completedFuture(
+                null);
+
+        AppenderOutputStream(GroupAppender appender)
+        {
+            this.appender = appender;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException
+        {
+            if (count > 0)
+            {
+                last = appender.append(toByteArray());
+                reset();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                flush();
+                last.get();
+            } catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex)
+            {
+                throw new IOException(ex.getCause());
+            } finally
+            {
+                appender.close();
+            }
+        }
+    }
+}
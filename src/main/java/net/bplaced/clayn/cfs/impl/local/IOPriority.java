@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+/**
+ * Priority of the I/O of a {@link ClaynFileSystem} when it gets limited by a
+ * {@link Throttle}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public enum IOPriority
+{
+    /**
+     * May use the whole capacity of a throttle. This is the default.
+     */
+    FOREGROUND,
+    /**
+     * Only uses a throttle while enough capacity is left for foreground I/O.
+     */
+    BACKGROUND
+}
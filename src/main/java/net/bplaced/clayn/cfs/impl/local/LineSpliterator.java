@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import net.bplaced.clayn.cfs.err.CFSException;
+
+/**
+ * Splits a file into records separated by a single byte and decodes them
+ * straight from memory mapped windows of the file. Every window ends at a
+ * separator, so records never cross windows. Splitting cuts the part of the
+ * file that wasn't mapped yet at the first separator after its middle, so
+ * large files can be processed in parallel.<br><br>
+ * Records in UTF-8, ISO-8859-1 and US-ASCII are copied into a reused array
+ * and decoded by {@link String}, which is faster for these charsets. For all
+ * other charsets every spliterator reuses its own decoder and character
+ * buffer for all its records.<br><br>
+ * This only works for charsets that encode the separator as the same single
+ * byte and never use that byte within other characters. Because a charset
+ * that passes a probe can still use the byte inside of multi byte characters,
+ * {@link #supports(java.nio.charset.Charset, char)} only accepts UTF-8,
+ * US-ASCII and the ISO-8859 charsets.<br><br>
+ * Mapping a window counts as one operation for the throttle of the
+ * filesystem, the bytes are charged when records get consumed.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class LineSpliterator implements Spliterator<String>
+{
+
+    private static final int WINDOW = 64 << 20;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE - 8;
+    private static final long MIN_SPLIT = 1 << 20;
+    private static final int CHARGE = 64 * 1024;
+    private final FileChannel channel;
+    private final ClaynFileSystem fs;
+    private final Charset charset;
+    private final byte separator;
+    private final boolean lines;
+    private final boolean direct;
+    private long position;
+    private final long end;
+    private ByteBuffer window;
+    private CharsetDecoder decoder;
+    private CharBuffer chars;
+    private byte[] bytes;
+    private int consumed;
+
+    /**
+     * @param lines {@code true} to remove a carriage return in front of the
+     * separator
+     */
+    LineSpliterator(FileChannel channel, ClaynFileSystem fs, Charset charset,
+            char separator, boolean lines, long start, long end)
+    {
+        this.channel = channel;
+        this.fs = fs;
+        this.charset = charset;
+        this.separator = (byte) separator;
+        this.lines = lines;
+        this.direct = StandardCharsets.UTF_8.equals(charset)
+                || StandardCharsets.ISO_8859_1.equals(charset)
+                || StandardCharsets.US_ASCII.equals(charset);
+        this.position = start;
+        this.end = end;
+    }
+
+    /**
+     * Checks if records of the given charset can be separated by searching
+     * the separator byte. Only charsets that never use ASCII bytes within
+     * other characters are supported.
+     */
+    static boolean supports(Charset charset, char separator)
+    {
+        if (separator >= 0x80)
+        {
+            return false;
+        }
+        return StandardCharsets.UTF_8.equals(charset)
+                || StandardCharsets.US_ASCII.equals(charset)
+                || charset.name().startsWith("ISO-8859-");
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super String> action)
+    {
+        if ((window == null || !window.hasRemaining()) && !map())
+        {
+            return false;
+        }
+        int from = window.position();
+        int limit = window.limit();
+        int to = from;
+        while (to < limit && window.get(to) != separator)
+        {
+            to++;
+        }
+        String record = decode(from, to);
+        int next = Math.min(limit, to + 1);
+        window.position(next);
+        charge(next - from, next == limit);
+        action.accept(record);
+        return true;
+    }
+
+    /**
+     * Charges the consumed bytes to the throttle in chunks, the rest gets
+     * charged at the end of the window.
+     */
+    private void charge(int bytes, boolean last)
+    {
+        consumed += bytes;
+        if (consumed >= CHARGE || (last && consumed > 0))
+        {
+            try
+            {
+                fs.throttle(consumed, 0);
+            } catch (IOException ex)
+            {
+                throw new CFSException(ex);
+            }
+            consumed = 0;
+        }
+    }
+
+    /**
+     * Maps the next window of the file, which ends after the last separator
+     * in it or at the end of the file.
+     */
+    private boolean map()
+    {
+        if (position >= end)
+        {
+            return false;
+        }
+        try
+        {
+            fs.throttle(0, 1);
+            long size = Math.min(end - position, WINDOW);
+            while (true)
+            {
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, size);
+                if (position + size == end)
+                {
+                    window = buf;
+                    position = end;
+                    return true;
+                }
+                for (int i = (int) size - 1; i >= 0; i--)
+                {
+                    if (buf.get(i) == separator)
+                    {
+                        buf.limit(i + 1);
+                        window = buf;
+                        position += i + 1;
+                        return true;
+                    }
+                }
+                if (size >= MAX_WINDOW)
+                {
+                    throw new IOException("Record at " + position
+                            + " is too long");
+                }
+                size = Math.min(end - position, Math.min(MAX_WINDOW, size * 2));
+            }
+        } catch (IOException ex)
+        {
+            throw new CFSException(ex);
+        }
+    }
+
+    private String decode(int from, int to)
+    {
+        if (lines && to > from && window.get(to - 1) == '\r')
+        {
+            to--;
+        }
+        if (from == to)
+        {
+            return "";
+        }
+        if (direct)
+        {
+            int length = to - from;
+            if (bytes == null || bytes.length < length)
+            {
+                bytes = new byte[Math.max(length, 128)];
+            }
+            ByteBuffer in = window.duplicate();
+            in.position(from);
+            in.get(bytes, 0, length);
+            return new String(bytes, 0, length, charset);
+        }
+        if (decoder == null)
+        {
+            decoder = charset.newDecoder().onMalformedInput(
+                    CodingErrorAction.REPLACE).onUnmappableCharacter(
+                            CodingErrorAction.REPLACE);
+        }
+        ByteBuffer in = window.duplicate();
+        in.limit(to);
+        in.position(from);
+        int capacity = (int) Math.ceil((to - from) * (double) decoder.maxCharsPerByte());
+        while (true)
+        {
+            if (chars == null || chars.capacity() < capacity)
+            {
+                chars = CharBuffer.allocate(Math.max(capacity, 128));
+            }
+            chars.clear();
+            decoder.reset();
+            CoderResult result = decoder.decode(in, chars, true);
+            if (!result.isOverflow())
+            {
+                result = decoder.flush(chars);
+            }
+            if (result.isOverflow())
+            {
+                in.position(from);
+                capacity = chars.capacity() * 2;
+                continue;
+            }
+            chars.flip();
+            return chars.toString();
+        }
+    }
+
+    @Override
+    public Spliterator<String> trySplit()
+    {
+        if (end - position < MIN_SPLIT)
+        {
+            return null;
+        }
+        long cut;
+        try
+        {
+            cut = nextRecord(position + (end - position) / 2);
+        } catch (IOException ex)
+        {
+            throw new CFSException(ex);
+        }
+        if (cut <= position || cut >= end)
+        {
+            return null;
+        }
+        LineSpliterator prefix = new LineSpliterator(channel, fs, charset,
+                (char) separator, lines, position, cut);
+        prefix.window = window;
+        window = null;
+        position = cut;
+        return prefix;
+    }
+
+    /**
+     * Returns the position after the first separator at or after the given
+     * position or {@code -1} if there is none.
+     */
+    private long nextRecord(long from) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        long pos = from;
+        while (pos < end)
+        {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - pos));
+            int read = channel.read(buf, pos);
+            if (read <= 0)
+            {
+                return -1;
+            }
+            for (int i = 0; i < read; i++)
+            {
+                if (buf.get(i) == separator)
+                {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return -1;
+    }
+
+    @Override
+    public long estimateSize()
+    {
+        return end - position + (window == null ? 0 : window.remaining());
+    }
+
+    @Override
+    public int characteristics()
+    {
+        return ORDERED | NONNULL;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages shared and exclusive locks for local files. The table of locks is
+ * split into stripes that are guarded separately, so looking up the locks of
+ * different paths rarely contends. Every path that is currently locked gets
+ * its own read/write lock, so locks of different paths never block each other.
+ * The lock of a path is removed once nobody uses it anymore.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class LockManager
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            LockManager.class);
+    private final Stripe[] stripes;
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder processLocks = new LongAdder();
+
+    LockManager(int stripes)
+    {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++)
+        {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(Path path)
+    {
+        int h = path.hashCode();
+        h ^= h >>> 16;
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    PathLock lock(Path file, boolean exclusive, boolean crossProcess) throws IOException
+    {
+        Path path = file.toAbsolutePath().normalize();
+        Stripe stripe = stripe(path);
+        Entry entry;
+        synchronized (stripe)
+        {
+            entry = stripe.entries.computeIfAbsent(path, (p) -> new Entry());
+            entry.users++;
+        }
+        Lock lock = exclusive ? entry.lock.writeLock() : entry.lock.readLock();
+        try
+        {
+            acquire(lock);
+        } catch (IOException | RuntimeException ex)
+        {
+            release(stripe, path, entry);
+            throw ex;
+        }
+        if (crossProcess)
+        {
+            try
+            {
+                entry.lockProcess(path, exclusive);
+                processLocks.increment();
+            } catch (IOException | RuntimeException ex)
+            {
+                lock.unlock();
+                release(stripe, path, entry);
+                throw ex;
+            }
+        }
+        return new PathLock(() ->
+        {
+            try
+            {
+                if (crossProcess)
+                {
+                    entry.unlockProcess();
+                }
+            } finally
+            {
+                lock.unlock();
+                release(stripe, path, entry);
+            }
+        }, exclusive);
+    }
+
+    private void acquire(Lock lock) throws IOException
+    {
+        acquisitions.increment();
+        if (lock.tryLock())
+        {
+            return;
+        }
+        contended.increment();
+        long start = System.nanoTime();
+        try
+        {
+            lock.lockInterruptibly();
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for lock");
+        } finally
+        {
+            waitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private void release(Stripe stripe, Path path, Entry entry)
+    {
+        synchronized (stripe)
+        {
+            if (--entry.users == 0)
+            {
+                stripe.entries.remove(path);
+            }
+        }
+    }
+
+    LockStatistics getStatistics()
+    {
+        return new LockStatistics(acquisitions.sum(), contended.sum(),
+                waitNanos.sum(), processLocks.sum());
+    }
+
+    private static final class Stripe
+    {
+
+        private final Map<Path, Entry> entries = new HashMap<>();
+    }
+
+    private static final class Entry
+    {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private int users;
+        private int processUsers;
+        private FileChannel channel;
+        private FileLock processLock;
+
+        /**
+         * Acquires the lock of the operating system. Shared locks of the same
+         * path use a single lock of the operating system. Must only be called
+         * while holding the lock of this entry.
+         */
+        synchronized void lockProcess(Path path, boolean exclusive) throws IOException
+        {
+            if (processUsers++ > 0)
+            {
+                return;
+            }
+            try
+            {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                processLock = channel.lock(0, Long.MAX_VALUE, !exclusive);
+            } catch (IOException | RuntimeException ex)
+            {
+                processUsers--;
+                if (channel != null)
+                {
+                    channel.close();
+                    channel = null;
+                }
+                throw ex;
+            }
+        }
+
+        synchronized void unlockProcess() throws IOException
+        {
+            if (--processUsers > 0)
+            {
+                return;
+            }
+            try
+            {
+                processLock.release();
+            } catch (IOException ex)
+            {
+                LOG.warn("Failed to release file lock", ex);
+            } finally
+            {
+                processLock = null;
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
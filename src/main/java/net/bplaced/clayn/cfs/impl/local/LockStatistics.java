@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+/**
+ * Contention metrics of the file locks of a {@link ClaynFileSystem} since it
+ * was created.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @see ClaynFileSystem#getLockStatistics()
+ */
+public final class LockStatistics
+{
+
+    private final long acquisitions;
+    private final long contended;
+    private final long waitNanos;
+    private final long processLocks;
+
+    LockStatistics(long acquisitions, long contended, long waitNanos,
+            long processLocks)
+    {
+        this.acquisitions = acquisitions;
+        this.contended = contended;
+        this.waitNanos = waitNanos;
+        this.processLocks = processLocks;
+    }
+
+    /**
+     * @return how often a lock was requested
+     */
+    public long getAcquisitions()
+    {
+        return acquisitions;
+    }
+
+    /**
+     * @return how often a lock couldn't be acquired immediately
+     */
+    public long getContended()
+    {
+        return contended;
+    }
+
+    /**
+     * @return the total time in nanoseconds spent waiting for locks inside of
+     * the JVM
+     */
+    public long getWaitNanos()
+    {
+        return waitNanos;
+    }
+
+    /**
+     * @return how often a lock was also acquired from the operating system
+     */
+    public long getProcessLocks()
+    {
+        return processLocks;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LockStatistics{" + "acquisitions=" + acquisitions + ", contended="
+                + contended + ", waitNanos=" + waitNanos + ", processLocks="
+                + processLocks + '}';
+    }
+}
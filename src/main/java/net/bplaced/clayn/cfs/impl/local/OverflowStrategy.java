@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+/**
+ * What happens with a change for a {@link WatchSubscriber} whose buffer is
+ * full.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public enum OverflowStrategy
+{
+    /**
+     * Discards the oldest buffered change.
+     */
+    DROP_OLDEST,
+    /**
+     * Keeps at most one buffered change per file by merging the changes of
+     * the same file, e.g. a creation followed by a modification is delivered
+     * as a creation and a creation followed by a deletion isn't delivered at
+     * all. If the buffer is full with changes of other files, the oldest
+     * change is discarded.
+     */
+    COALESCE,
+    /**
+     * Waits until the subscriber made room. This also stops the delivery of
+     * changes to all other subscribers of the directory and may cause the
+     * operating system to discard changes.
+     */
+    BLOCK
+}
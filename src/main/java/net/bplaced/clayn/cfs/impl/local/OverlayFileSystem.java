@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import net.bplaced.clayn.cfs.CFileSystem;
+
+/**
+ * A {@link CFileSystem} that keeps written files and created directories in
+ * memory and writes them to a {@link ClaynFileSystem} asynchronously. This is
+ * meant for scratch and intermediate data that doesn't need to be on the disk
+ * right away. Files that get deleted before they were written are never
+ * written at all. Files that were written stay in memory for reading until
+ * the memory is needed for other files. Files and directories that aren't in
+ * memory are read from the underlying filesystem.<br><br>
+ * The contents of a file are buffered in memory until the stream gets closed.
+ * Appending to a file that is only on disk appends to it directly. Changes
+ * made to the underlying filesystem directly may be hidden or overwritten by
+ * changes that weren't written yet. Changes that weren't written are lost if
+ * the filesystem isn't {@link #close() closed}. Filesystems created with
+ * {@link #subFileSystem(java.lang.String)} share the memory with this one and
+ * closing them has no effect.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public class OverlayFileSystem extends StoreFileSystem implements Closeable
+{
+
+    /**
+     * The default amount of memory used for the contents of files.
+     */
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+    /**
+     * The default interval in milliseconds in which changes get written.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    private final OverlayStore store;
+    private final boolean owner;
+
+    /**
+     * Creates a new overlay for the given filesystem with the default
+     * capacity and flush interval.
+     *
+     * @param target the filesystem to write the changes to
+     */
+    public OverlayFileSystem(ClaynFileSystem target)
+    {
+        this(target, DEFAULT_CAPACITY, false, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Creates a new overlay for the given filesystem.
+     *
+     * @param target the filesystem to write the changes to
+     * @param capacity the amount of memory in bytes used for the contents of
+     * files. If exceeded, the thread writing a file waits until all changes
+     * were written and files get removed from memory.
+     * @param offHeap {@code true} to keep the contents of files outside of
+     * the java heap
+     * @param flushInterval the interval in milliseconds in which changes get
+     * written
+     */
+    public OverlayFileSystem(ClaynFileSystem target, long capacity,
+            boolean offHeap, long flushInterval)
+    {
+        this(createStore(target, capacity, offHeap, flushInterval), "/", null,
+                true);
+        setCharset(target.getCharset());
+    }
+
+    private OverlayFileSystem(OverlayStore store, String base,
+            Map<String, List<StoreDirectory>> watched, boolean owner)
+    {
+        super(store, base, watched);
+        this.store = store;
+        this.owner = owner;
+    }
+
+    private static OverlayStore createStore(ClaynFileSystem target,
+            long capacity, boolean offHeap, long flushInterval)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (flushInterval <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "Flush interval must be positive");
+        }
+        return new OverlayStore(target, capacity, offHeap, flushInterval);
+    }
+
+    @Override
+    StoreFileSystem createView(String base,
+            Map<String, List<StoreDirectory>> watched)
+    {
+        OverlayFileSystem view = new OverlayFileSystem(store, base, watched,
+                false);
+        view.setCharset(getCharset());
+        return view;
+    }
+
+    /**
+     * Writes all changes to the underlying filesystem right now instead of
+     * waiting for the background thread.
+     *
+     * @throws IOException if an I/O Exception occures
+     */
+    public void flush() throws IOException
+    {
+        store.flush();
+    }
+
+    /**
+     * Writes all changes and stops the background thread. Does nothing for
+     * filesystems created with {@link #subFileSystem(java.lang.String)}.
+     *
+     * @throws IOException if an I/O Exception occures
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (owner)
+        {
+            store.close();
+        }
+    }
+}
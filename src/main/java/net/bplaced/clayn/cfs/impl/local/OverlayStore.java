@@ -0,0 +1,641 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.bplaced.clayn.cfs.Directory;
+import net.bplaced.clayn.cfs.FileAttributes;
+import net.bplaced.clayn.cfs.SimpleFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store that keeps changes in memory and writes them to a
+ * {@link ClaynFileSystem} later. Every key that was changed and not yet
+ * written or that is cached has a node in memory. Keys without a node are
+ * read from the target filesystem directly.<br><br>
+ * Dirty nodes are written by a background thread in a single batch: deletions
+ * first (deepest keys first), then directories (shallowest first) and files
+ * last. A node is only marked as clean if it wasn't replaced while being
+ * written. Nodes count as being on disk as soon as their write starts, so a
+ * key that gets deleted while it is written leaves a deletion for the next
+ * flush instead of coming back from the target. Files that are created and deleted before they were written never
+ * reach the target. Once the data of all files exceeds three quarters of the
+ * capacity the background thread gets started early. Once it exceeds the
+ * capacity, the writing thread writes the dirty nodes itself and clean files
+ * are evicted in least recently used order.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @impl
+ */
+final class OverlayStore implements EntryStore
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            OverlayStore.class);
+    private static final int COPY_BUFFER = 64 * 1024;
+    private static final byte FILE = 1;
+    private static final byte DIRECTORY = 2;
+    private static final byte DELETED = 3;
+
+    private final ClaynFileSystem target;
+    private final long capacity;
+    private final boolean offHeap;
+    private final LinkedHashMap<String, Node> nodes = new LinkedHashMap<>(16,
+            0.75f, true);
+    private final Map<String, Set<String>> children = new HashMap<>();
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+    private long used;
+    private boolean closed;
+
+    OverlayStore(ClaynFileSystem target, long capacity, boolean offHeap,
+            long flushInterval)
+    {
+        this.target = target;
+        this.capacity = capacity;
+        this.offHeap = offHeap;
+        flusher = Executors.newSingleThreadScheduledExecutor((r)
+                ->
+                {
+                    Thread t = new Thread(r, "cfs-overlay-flusher");
+                    t.setDaemon(true);
+                    return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushSafe, flushInterval,
+                flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushSafe()
+    {
+        flushScheduled.set(false);
+        try
+        {
+            flush();
+        } catch (IOException | RuntimeException ex)
+        {
+            LOG.warn("Failed to flush overlay to {}", target, ex);
+        }
+    }
+
+    private static String parentKey(String key)
+    {
+        int end = key.endsWith("/") ? key.length() - 1 : key.length();
+        return key.substring(0, key.lastIndexOf('/', end - 1) + 1);
+    }
+
+    private static String childName(String key)
+    {
+        return key.substring(parentKey(key).length());
+    }
+
+    private Directory targetDirectory(String key) throws IOException
+    {
+        return "/".equals(key) ? target.getRoot() : target.getDirectory(key);
+    }
+
+    private SimpleFile targetFile(String key) throws IOException
+    {
+        return targetDirectory(parentKey(key)).getFile(childName(key));
+    }
+
+    private boolean existsOnDisk(String key)
+    {
+        try
+        {
+            return key.endsWith("/") ? ((CFSDirectoryImpl) targetDirectory(key)).getDirectory().isDirectory()
+                    : ((CFSSimpleFileImpl) targetFile(key)).getFile().isFile();
+        } catch (IOException ex)
+        {
+            return false;
+        }
+    }
+
+    private void put(String key, Node node)
+    {
+        Node old = nodes.put(key, node);
+        if (old != null)
+        {
+            used -= old.length();
+        } else
+        {
+            children.computeIfAbsent(parentKey(key), (k) -> new HashSet<>()).add(
+                    childName(key));
+        }
+        used += node.length();
+    }
+
+    private void remove(String key)
+    {
+        Node old = nodes.remove(key);
+        if (old == null)
+        {
+            return;
+        }
+        used -= old.length();
+        String parent = parentKey(key);
+        Set<String> names = children.get(parent);
+        if (names != null && names.remove(childName(key)) && names.isEmpty())
+        {
+            children.remove(parent);
+        }
+    }
+
+    /**
+     * Checks if the given key was on disk before the node for it gets
+     * replaced.
+     */
+    private boolean onDisk(String key)
+    {
+        Node old = nodes.get(key);
+        return old != null ? old.onDisk : existsOnDisk(key);
+    }
+
+    private synchronized void checkOpen() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Overlay store is closed");
+        }
+    }
+
+    private synchronized Node node(String key)
+    {
+        return nodes.get(key);
+    }
+
+    @Override
+    public boolean isFile(String key)
+    {
+        Node n = node(key);
+        return n != null ? n.type == FILE : existsOnDisk(key);
+    }
+
+    @Override
+    public boolean isDirectory(String key)
+    {
+        if ("/".equals(key))
+        {
+            return true;
+        }
+        Node n = node(key);
+        return n != null ? n.type == DIRECTORY : existsOnDisk(key);
+    }
+
+    @Override
+    public synchronized void createFile(String key) throws IOException
+    {
+        checkOpen();
+        if (isFile(key) || isDirectory(key + "/"))
+        {
+            throw new FileAlreadyExistsException(key);
+        }
+        long now = System.currentTimeMillis();
+        put(key, new Node(FILE, allocate(0), now, now, onDisk(key)));
+    }
+
+    @Override
+    public synchronized void createDirectory(String key) throws IOException
+    {
+        checkOpen();
+        String file = key.substring(0, key.length() - 1);
+        if (isDirectory(key) || isFile(file))
+        {
+            throw new FileAlreadyExistsException(key);
+        }
+        long now = System.currentTimeMillis();
+        put(key, new Node(DIRECTORY, null, now, now, onDisk(key)));
+    }
+
+    @Override
+    public synchronized void deleteFile(String key) throws IOException
+    {
+        checkOpen();
+        if (!isFile(key))
+        {
+            throw new NoSuchFileException(key);
+        }
+        delete(key);
+    }
+
+    @Override
+    public synchronized void deleteDirectory(String key) throws IOException
+    {
+        checkOpen();
+        if (!isDirectory(key))
+        {
+            throw new NoSuchFileException(key);
+        }
+        if (!list(key, true).isEmpty() || !list(key, false).isEmpty())
+        {
+            throw new DirectoryNotEmptyException(key);
+        }
+        delete(key);
+    }
+
+    private void delete(String key)
+    {
+        if (onDisk(key))
+        {
+            long now = System.currentTimeMillis();
+            put(key, new Node(DELETED, null, now, now, true));
+        } else
+        {
+            remove(key);
+        }
+    }
+
+    @Override
+    public InputStream openRead(String key) throws IOException
+    {
+        Node n = node(key);
+        if (n == null)
+        {
+            return targetFile(key).openRead();
+        }
+        if (n.type != FILE)
+        {
+            throw new NoSuchFileException(key);
+        }
+        return new ByteBufferInputStream(n.data.duplicate());
+    }
+
+    @Override
+    public OutputStream openWrite(String key, boolean append) throws IOException
+    {
+        checkOpen();
+        if (isDirectory(key + "/"))
+        {
+            throw new IOException(key + " is a directory");
+        }
+        if (append && node(key) == null && existsOnDisk(key))
+        {
+            return targetFile(key).openAppend();
+        }
+        return new ByteArrayOutputStream()
+        {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException
+            {
+                if (closed)
+                {
+                    return;
+                }
+                closed = true;
+                commit(key, buf, count, append);
+            }
+        };
+    }
+
+    private void commit(String key, byte[] data, int length, boolean append) throws IOException
+    {
+        boolean full;
+        synchronized (this)
+        {
+            checkOpen();
+            Node old = nodes.get(key);
+            long now = System.currentTimeMillis();
+            ByteBuffer buf;
+            if (append && old != null && old.type == FILE)
+            {
+                buf = allocate(old.length() + length);
+                buf.put(old.data.duplicate());
+            } else
+            {
+                buf = allocate(length);
+            }
+            buf.put(data, 0, length);
+            buf.flip();
+            long created = old != null && old.type == FILE ? old.created : now;
+            put(key, new Node(FILE, buf.asReadOnlyBuffer(), created, now,
+                    onDisk(key)));
+            full = used > capacity;
+            if (!full && used > capacity / 4 * 3 && flushScheduled.compareAndSet(
+                    false, true))
+            {
+                flusher.execute(this::flushSafe);
+            }
+        }
+        if (full)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Overlay exceeds capacity, flushing to {}", target);
+            }
+            flush();
+            evict();
+        }
+    }
+
+    private ByteBuffer allocate(int size)
+    {
+        return offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(
+                size);
+    }
+
+    /**
+     * Removes clean files in least recently used order until the used memory
+     * is below the capacity.
+     */
+    private synchronized void evict()
+    {
+        Iterator<Map.Entry<String, Node>> it = nodes.entrySet().iterator();
+        List<String> evicted = new ArrayList<>();
+        long free = used;
+        while (free > capacity && it.hasNext())
+        {
+            Map.Entry<String, Node> e = it.next();
+            Node n = e.getValue();
+            if (!n.dirty && n.type == FILE)
+            {
+                evicted.add(e.getKey());
+                free -= n.length();
+            }
+        }
+        evicted.forEach(this::remove);
+    }
+
+    /**
+     * Writes all dirty nodes to the target filesystem. Nodes that fail to be
+     * written stay dirty and are retried with the next flush.
+     */
+    void flush() throws IOException
+    {
+        synchronized (flushLock)
+        {
+            List<String> deleted = new ArrayList<>();
+            List<String> dirs = new ArrayList<>();
+            List<String> files = new ArrayList<>();
+            Map<String, Node> dirty = new HashMap<>();
+            synchronized (this)
+            {
+                nodes.forEach((key, node) ->
+                {
+                    if (!node.dirty)
+                    {
+                        return;
+                    }
+                    dirty.put(key, node);
+                    node.onDisk = true;
+                    (node.type == DELETED ? deleted : node.type == DIRECTORY ? dirs : files).add(
+                            key);
+                });
+            }
+            if (dirty.isEmpty())
+            {
+                return;
+            }
+            deleted.sort(Comparator.comparingInt(String::length).reversed());
+            dirs.sort(Comparator.comparingInt(String::length));
+            List<String> order = new ArrayList<>(deleted);
+            order.addAll(dirs);
+            order.addAll(files);
+            IOException error = null;
+            for (String key : order)
+            {
+                Node node = dirty.get(key);
+                try
+                {
+                    write(key, node);
+                    flushed(key, node);
+                } catch (IOException ex)
+                {
+                    if (error == null)
+                    {
+                        error = ex;
+                    } else
+                    {
+                        error.addSuppressed(ex);
+                    }
+                }
+            }
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Flushed {} entries to {}", dirty.size(), target);
+            }
+            if (error != null)
+            {
+                throw error;
+            }
+        }
+    }
+
+    private void write(String key, Node node) throws IOException
+    {
+        if (node.type == DELETED)
+        {
+            if (key.endsWith("/"))
+            {
+                Directory dir = targetDirectory(key);
+                if (dir.exists())
+                {
+                    dir.delete();
+                }
+            } else
+            {
+                targetFile(key).delete();
+            }
+        } else if (node.type == DIRECTORY)
+        {
+            targetDirectory(key).mkDirs();
+        } else
+        {
+            ByteBuffer data = node.data.duplicate();
+            try (OutputStream out = targetFile(key).openWrite())
+            {
+                byte[] buf = new byte[Math.min(COPY_BUFFER, Math.max(1,
+                        data.remaining()))];
+                while (data.hasRemaining())
+                {
+                    int len = Math.min(buf.length, data.remaining());
+                    data.get(buf, 0, len);
+                    out.write(buf, 0, len);
+                }
+            }
+        }
+    }
+
+    private synchronized void flushed(String key, Node node)
+    {
+        if (nodes.get(key) != node)
+        {
+            return;
+        }
+        if (node.type == FILE)
+        {
+            node.dirty = false;
+            node.onDisk = true;
+        } else
+        {
+            remove(key);
+        }
+    }
+
+    @Override
+    public long size(String key) throws IOException
+    {
+        Node n = node(key);
+        if (n == null)
+        {
+            return targetFile(key).getSize();
+        }
+        if (n.type != FILE)
+        {
+            throw new NoSuchFileException(key);
+        }
+        return n.length();
+    }
+
+    @Override
+    public LocalFileAttributes attributes(String key)
+    {
+        Node n = node(key);
+        LocalFileAttributes attr = new LocalFileAttributes();
+        if (n == null)
+        {
+            if (!isFile(key))
+            {
+                return null;
+            }
+            try
+            {
+                FileAttributes fa = targetFile(key).getFileAttributes();
+                attr.setMod(fa.lastModified());
+                attr.setCreate(fa.creationTime());
+                attr.setUsed(fa.lastUsed());
+            } catch (IOException ex)
+            {
+                return null;
+            }
+            return attr;
+        }
+        if (n.type == DELETED)
+        {
+            return null;
+        }
+        attr.setMod(n.modified);
+        attr.setCreate(n.created);
+        attr.setUsed(n.modified);
+        return attr;
+    }
+
+    @Override
+    public List<String> list(String key, boolean directories) throws IOException
+    {
+        Set<String> names = new HashSet<>();
+        Directory dir = targetDirectory(key);
+        if (dir.exists())
+        {
+            if (directories)
+            {
+                dir.listDirectories().forEach((d) -> names.add(d.getName()));
+            } else
+            {
+                dir.listFiles().forEach((f) -> names.add(f.getName()));
+            }
+        }
+        synchronized (this)
+        {
+            Set<String> overlay = children.get(key);
+            if (overlay != null)
+            {
+                for (String name : overlay)
+                {
+                    if (name.endsWith("/") != directories)
+                    {
+                        continue;
+                    }
+                    String plain = directories ? name.substring(0,
+                            name.length() - 1) : name;
+                    if (nodes.get(key + name).type == DELETED)
+                    {
+                        names.remove(plain);
+                    } else
+                    {
+                        names.add(plain);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+        }
+        flusher.shutdown();
+        flush();
+    }
+
+    private static final class Node
+    {
+
+        private final byte type;
+        private final ByteBuffer data;
+        private final long created;
+        private final long modified;
+        private boolean onDisk;
+        private boolean dirty = true;
+
+        Node(byte type, ByteBuffer data, long created, long modified,
+                boolean onDisk)
+        {
+            this.type = type;
+            this.data = data;
+            this.created = created;
+            this.modified = modified;
+            this.onDisk = onDisk;
+        }
+
+        int length()
+        {
+            return data == null ? 0 : data.remaining();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import net.bplaced.clayn.cfs.CFileSystem;
+
+/**
+ * A {@link CFileSystem} implementation that stores all files and directories
+ * inside of a few large segment files in a local directory instead of creating
+ * a local file for every one of them. This is meant for a huge amount of small
+ * files where the {@link ClaynFileSystem} would waste inodes and make listing,
+ * backup and deletion slow. The contents of a file are buffered in memory until
+ * the stream gets closed, so large files should still be stored in a
+ * {@link ClaynFileSystem}.<br><br>
+ * The index of all entries is kept in memory and rebuilt from the segments
+ * when the filesystem gets created. Overwritten and deleted entries are
+ * removed by a background compaction. A filesystem should be
+ * {@link #close() closed} when it isn't used anymore. Filesystems created with
+ * {@link #subFileSystem(java.lang.String)} share the segments with this one
+ * and closing them has no effect.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public class PackFileSystem extends StoreFileSystem implements Closeable
+{
+
+    /**
+     * The default size after which a new segment gets started.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+    /**
+     * The default share of dead bytes in a segment that triggers its
+     * compaction.
+     */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    private static final long COMPACTION_INTERVAL = 30_000;
+    private final PackStore store;
+    private final boolean owner;
+
+    /**
+     * Creates a new filesystem that stores its segments in the given
+     * directory. The directory gets created if it doesn't exist. Existing
+     * segments will be loaded.
+     *
+     * @param root the directory for the segments
+     * @throws IOException if an I/O Exception occures
+     */
+    public PackFileSystem(File root) throws IOException
+    {
+        this(root, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Creates a new filesystem that stores its segments in the given
+     * directory.
+     *
+     * @param root the directory for the segments
+     * @param segmentSize the size in bytes after which a new segment gets
+     * started. Must be between 1 KiB and 1 GiB
+     * @param compactionThreshold the share of dead bytes (between {@code 0}
+     * and {@code 1}) that causes a segment to be compacted
+     * @throws IOException if an I/O Exception occures
+     */
+    public PackFileSystem(File root, long segmentSize,
+            double compactionThreshold) throws IOException
+    {
+        this(createStore(root, segmentSize, compactionThreshold), "/", null,
+                true);
+    }
+
+    private PackFileSystem(PackStore store, String base,
+            Map<String, List<StoreDirectory>> watched, boolean owner)
+    {
+        super(store, base, watched);
+        this.store = store;
+        this.owner = owner;
+    }
+
+    private static PackStore createStore(File root, long segmentSize,
+            double compactionThreshold) throws IOException
+    {
+        if (segmentSize < 1024 || segmentSize > 1 << 30)
+        {
+            throw new IllegalArgumentException(
+                    "Segment size must be between 1 KiB and 1 GiB");
+        }
+        if (compactionThreshold < 0 || compactionThreshold > 1)
+        {
+            throw new IllegalArgumentException(
+                    "Compaction threshold must be between 0 and 1");
+        }
+        return new PackStore(root, segmentSize, compactionThreshold,
+                COMPACTION_INTERVAL);
+    }
+
+    @Override
+    StoreFileSystem createView(String base,
+            Map<String, List<StoreDirectory>> watched)
+    {
+        return new PackFileSystem(store, base, watched, false);
+    }
+
+    /**
+     * Compacts all segments that reached the compaction threshold right now
+     * instead of waiting for the background compaction.
+     *
+     * @throws IOException if an I/O Exception occures
+     */
+    public void compact() throws IOException
+    {
+        store.compact();
+    }
+
+    /**
+     * Closes the segments of this filesystem. Does nothing for filesystems
+     * created with {@link #subFileSystem(java.lang.String)}.
+     *
+     * @throws IOException if an I/O Exception occures
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (owner)
+        {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,703 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store that appends all entries into segment files. Every change appends a
+ * record to the active segment, the newest record of a key wins. The index of
+ * all keys is kept in memory and rebuilt from the segments when the store gets
+ * opened. Sealed segments are memory mapped and served to readers without
+ * copying. A background thread rewrites the live records of segments that
+ * contain too many overwritten or deleted records and removes the old segment
+ * afterwards.<br><br>
+ * A record has the layout
+ * {@code magic(4) type(1) modified(8) created(8) pathLength(4) dataLength(4) path data}.
+ * Records that were only written partially (e.g. because of a crash) are
+ * truncated when the store gets opened. A file that gets created by opening
+ * it for writing only gets a record when the stream is closed.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @impl
+ */
+final class PackStore implements EntryStore
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(PackStore.class);
+    private static final int MAGIC = 0x43465350;
+    private static final byte TYPE_FILE = 1;
+    private static final byte TYPE_DIRECTORY = 2;
+    private static final byte TYPE_DELETE = 3;
+    private static final int HEADER = 4 + 1 + 8 + 8 + 4 + 4;
+    private static final String SUFFIX = ".seg";
+
+    private final File directory;
+    private final long segmentSize;
+    private final double compactionThreshold;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final Map<String, Set<String>> children = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final List<File> obsolete = new ArrayList<>();
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+    private boolean closed;
+
+    PackStore(File directory, long segmentSize, double compactionThreshold,
+            long compactionInterval) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        Files.createDirectories(directory.toPath());
+        load();
+        compactor = Executors.newSingleThreadScheduledExecutor((r)
+                ->
+                {
+                    Thread t = new Thread(r, "cfs-pack-compactor");
+                    t.setDaemon(true);
+                    return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compactSafe, compactionInterval,
+                compactionInterval, TimeUnit.MILLISECONDS);
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Opened pack store {} with {} entries", directory,
+                    index.size());
+        }
+    }
+
+    private void load() throws IOException
+    {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        List<Integer> ids = new ArrayList<>();
+        for (File f : files == null ? new File[0] : files)
+        {
+            String name = f.getName();
+            try
+            {
+                ids.add(Integer.parseInt(name.substring(0,
+                        name.length() - SUFFIX.length())));
+            } catch (NumberFormatException ex)
+            {
+                LOG.warn("Ignoring unknown file {} in pack store", f);
+            }
+        }
+        ids.sort(null);
+        for (int id : ids)
+        {
+            Segment s = openSegment(id);
+            segments.put(id, s);
+            scan(s, this::apply);
+        }
+        if (segments.isEmpty() || segments.lastEntry().getValue().size >= segmentSize)
+        {
+            roll();
+        } else
+        {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    private void apply(String key, Entry e)
+    {
+        if (e.type == TYPE_DELETE)
+        {
+            remove(key);
+            e.segment.dead += e.length;
+        } else
+        {
+            e.segment.keys.add(key);
+            put(key, e);
+        }
+    }
+
+    /**
+     * Reads all records of the given segment in order. Damaged records at the
+     * end of the segment get truncated.
+     */
+    private void scan(Segment s, RecordVisitor visitor) throws IOException
+    {
+        long size = s.channel.size();
+        long pos = 0;
+        ByteBuffer head = ByteBuffer.allocate(HEADER);
+        while (pos + HEADER <= size)
+        {
+            head.clear();
+            readFully(s.channel, head, pos);
+            head.flip();
+            if (head.getInt() != MAGIC)
+            {
+                break;
+            }
+            byte type = head.get();
+            long modified = head.getLong();
+            long created = head.getLong();
+            int pathLength = head.getInt();
+            int dataLength = head.getInt();
+            if (type < TYPE_FILE || type > TYPE_DELETE || pathLength < 0 || dataLength < 0
+                    || pos + HEADER + pathLength + dataLength > size)
+            {
+                break;
+            }
+            ByteBuffer path = ByteBuffer.allocate(pathLength);
+            readFully(s.channel, path, pos + HEADER);
+            String key = new String(path.array(), StandardCharsets.UTF_8);
+            int length = HEADER + pathLength + dataLength;
+            visitor.visit(key, new Entry(s, pos, length, pos + HEADER + pathLength,
+                    dataLength, type, modified, created));
+            pos += length;
+        }
+        if (pos < size)
+        {
+            LOG.warn("Truncating {} damaged bytes of {}", size - pos, s.file);
+            s.channel.truncate(pos);
+        }
+        s.size = pos;
+    }
+
+    private Segment openSegment(int id) throws IOException
+    {
+        File f = new File(directory, String.format("%08d%s", id, SUFFIX));
+        return new Segment(id, f, FileChannel.open(f.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+    }
+
+    private void roll() throws IOException
+    {
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment s = openSegment(id);
+        segments.put(id, s);
+        active = s;
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Started new segment {}", s.file);
+        }
+    }
+
+    private Entry write(byte type, String key, long modified, long created,
+            ByteBuffer... data) throws IOException
+    {
+        byte[] path = key.getBytes(StandardCharsets.UTF_8);
+        int dataLength = 0;
+        for (ByteBuffer b : data)
+        {
+            dataLength += b.remaining();
+        }
+        int length = HEADER + path.length + dataLength;
+        if (active.size > 0 && active.size + length > segmentSize)
+        {
+            roll();
+        }
+        ByteBuffer head = ByteBuffer.allocate(HEADER + path.length);
+        head.putInt(MAGIC).put(type).putLong(modified).putLong(created).putInt(
+                path.length).putInt(dataLength).put(path);
+        head.flip();
+        long pos = active.size;
+        writeFully(active.channel, head, pos);
+        long dataPos = pos + HEADER + path.length;
+        long p = dataPos;
+        for (ByteBuffer b : data)
+        {
+            int remaining = b.remaining();
+            writeFully(active.channel, b, p);
+            p += remaining;
+        }
+        active.size += length;
+        if (type != TYPE_DELETE)
+        {
+            active.keys.add(key);
+        }
+        return new Entry(active, pos, length, dataPos, dataLength, type,
+                modified, created);
+    }
+
+    private void tombstone(String key) throws IOException
+    {
+        Entry old = index.get(key);
+        if (old != null && old.offset < 0)
+        {
+            remove(key);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry t = write(TYPE_DELETE, key, now, now);
+        t.segment.dead += t.length;
+        remove(key);
+    }
+
+    private void put(String key, Entry e)
+    {
+        Entry old = index.put(key, e);
+        if (old != null)
+        {
+            old.segment.dead += old.length;
+        } else if (!"/".equals(key))
+        {
+            children.computeIfAbsent(parentOf(key), (k) -> new HashSet<>()).add(
+                    key.substring(parentOf(key).length()));
+        }
+    }
+
+    private void remove(String key)
+    {
+        Entry old = index.remove(key);
+        if (old == null)
+        {
+            return;
+        }
+        old.segment.dead += old.length;
+        String parent = parentOf(key);
+        Set<String> names = children.get(parent);
+        if (names != null)
+        {
+            names.remove(key.substring(parent.length()));
+            if (names.isEmpty())
+            {
+                children.remove(parent);
+            }
+        }
+    }
+
+    private static String parentOf(String key)
+    {
+        int end = key.endsWith("/") ? key.length() - 1 : key.length();
+        return key.substring(0, key.lastIndexOf('/', end - 1) + 1);
+    }
+
+    /**
+     * Returns the data of the given entry. Data of sealed segments is served
+     * directly from the mapping of the segment.
+     */
+    private ByteBuffer data(Entry e) throws IOException
+    {
+        if (e.dataLength == 0)
+        {
+            return ByteBuffer.allocate(0);
+        }
+        if (e.segment != active && e.segment.size <= Integer.MAX_VALUE)
+        {
+            ByteBuffer buf = e.segment.map().duplicate();
+            buf.position((int) e.dataOffset);
+            buf.limit((int) e.dataOffset + e.dataLength);
+            return buf.slice();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(e.dataLength);
+        readFully(e.segment.channel, buf, e.dataOffset);
+        buf.flip();
+        return buf;
+    }
+
+    private Entry file(String key) throws IOException
+    {
+        Entry e = index.get(key);
+        if (e == null || e.type != TYPE_FILE)
+        {
+            throw new NoSuchFileException(key);
+        }
+        return e;
+    }
+
+    @Override
+    public synchronized boolean isFile(String key)
+    {
+        Entry e = index.get(key);
+        return e != null && e.type == TYPE_FILE;
+    }
+
+    @Override
+    public synchronized boolean isDirectory(String key)
+    {
+        Entry e = index.get(key);
+        return "/".equals(key) || (e != null && e.type == TYPE_DIRECTORY);
+    }
+
+    @Override
+    public synchronized void createFile(String key) throws IOException
+    {
+        if (index.containsKey(key))
+        {
+            throw new FileAlreadyExistsException(key);
+        }
+        long now = System.currentTimeMillis();
+        put(key, write(TYPE_FILE, key, now, now));
+    }
+
+    @Override
+    public synchronized void createDirectory(String key) throws IOException
+    {
+        if ("/".equals(key) || index.containsKey(key))
+        {
+            throw new FileAlreadyExistsException(key);
+        }
+        long now = System.currentTimeMillis();
+        put(key, write(TYPE_DIRECTORY, key, now, now));
+    }
+
+    @Override
+    public synchronized void deleteFile(String key) throws IOException
+    {
+        file(key);
+        tombstone(key);
+    }
+
+    @Override
+    public synchronized void deleteDirectory(String key) throws IOException
+    {
+        if (!isDirectory(key))
+        {
+            throw new NoSuchFileException(key);
+        }
+        if (children.containsKey(key))
+        {
+            throw new DirectoryNotEmptyException(key);
+        }
+        tombstone(key);
+    }
+
+    @Override
+    public synchronized InputStream openRead(String key) throws IOException
+    {
+        return new ByteBufferInputStream(data(file(key)));
+    }
+
+    @Override
+    public synchronized OutputStream openWrite(String key, boolean append) throws IOException
+    {
+        if (isDirectory(key))
+        {
+            throw new IOException(key + " is a directory");
+        }
+        if (!index.containsKey(key))
+        {
+            long now = System.currentTimeMillis();
+            put(key, new Entry(active, -1, 0, 0, 0, TYPE_FILE, now, now));
+        }
+        return new ByteArrayOutputStream()
+        {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException
+            {
+                if (closed)
+                {
+                    return;
+                }
+                closed = true;
+                commit(key, ByteBuffer.wrap(buf, 0, count), append);
+            }
+        };
+    }
+
+    private synchronized void commit(String key, ByteBuffer data, boolean append) throws IOException
+    {
+        checkOpen();
+        Entry old = index.get(key);
+        long now = System.currentTimeMillis();
+        long created = old == null ? now : old.created;
+        if (append && old != null && old.type == TYPE_FILE)
+        {
+            put(key, write(TYPE_FILE, key, now, created, data(old), data));
+        } else
+        {
+            put(key, write(TYPE_FILE, key, now, created, data));
+        }
+    }
+
+    @Override
+    public synchronized long size(String key) throws IOException
+    {
+        return file(key).dataLength;
+    }
+
+    @Override
+    public synchronized LocalFileAttributes attributes(String key)
+    {
+        Entry e = index.get(key);
+        if (e == null)
+        {
+            return null;
+        }
+        LocalFileAttributes attr = new LocalFileAttributes();
+        attr.setMod(e.modified);
+        attr.setCreate(e.created);
+        attr.setUsed(e.modified);
+        return attr;
+    }
+
+    @Override
+    public synchronized List<String> list(String key, boolean directories) throws IOException
+    {
+        Set<String> names = children.get(key);
+        List<String> result = new ArrayList<>();
+        if (names == null)
+        {
+            return result;
+        }
+        for (String name : names)
+        {
+            if (name.endsWith("/") == directories)
+            {
+                result.add(directories ? name.substring(0, name.length() - 1) : name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rewrites every sealed segment whose share of dead records reached the
+     * compaction threshold. Tombstones are only kept if an older segment
+     * still contains a record of their key.
+     */
+    synchronized void compact() throws IOException
+    {
+        checkOpen();
+        deleteObsolete();
+        for (Segment s : new ArrayList<>(segments.values()))
+        {
+            if (s == active || s.dead < s.size * compactionThreshold)
+            {
+                continue;
+            }
+            compact(s);
+        }
+    }
+
+    private void compact(Segment s) throws IOException
+    {
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Compacting {} with {} of {} bytes dead", s.file, s.dead,
+                    s.size);
+        }
+        Segment target = active;
+        scan(s, (key, e)
+                ->
+                {
+                    Entry current = index.get(key);
+                    if (e.type == TYPE_DELETE)
+                    {
+                        if (current == null && heldByOlder(key, s.id))
+                        {
+                            Entry t = write(TYPE_DELETE, key, e.modified,
+                                    e.created);
+                            t.segment.dead += t.length;
+                        }
+                    } else if (current != null && current.segment == s
+                            && current.offset == e.offset)
+                    {
+                        put(key, write(current.type, key, current.modified,
+                                current.created, data(current)));
+                    }
+        });
+        // The rewritten records must be on the disk before the old ones are gone
+        for (Segment written : segments.tailMap(target.id, true).values())
+        {
+            written.channel.force(false);
+        }
+        segments.remove(s.id);
+        s.channel.close();
+        s.mapped = null;
+        if (!s.file.delete())
+        {
+            obsolete.add(s.file);
+        }
+    }
+
+    private boolean heldByOlder(String key, int id)
+    {
+        for (Segment older : segments.headMap(id).values())
+        {
+            if (older.keys.contains(key))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retries to delete segments that could not be deleted after their
+     * compaction, e.g. because a reader still had them mapped on a platform
+     * that doesn't allow deleting mapped files.
+     */
+    private void deleteObsolete()
+    {
+        for (Iterator<File> it = obsolete.iterator(); it.hasNext();)
+        {
+            if (it.next().delete())
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private void compactSafe()
+    {
+        try
+        {
+            compact();
+        } catch (IOException ex)
+        {
+            LOG.warn("Compaction of {} failed", directory, ex);
+        }
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Pack store " + directory + " is closed");
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        compactor.shutdownNow();
+        for (Segment s : segments.values())
+        {
+            s.channel.close();
+        }
+        deleteObsolete();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException
+    {
+        int start = buf.position();
+        while (buf.hasRemaining())
+        {
+            if (channel.read(buf, pos + buf.position() - start) < 0)
+            {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException
+    {
+        int start = buf.position();
+        while (buf.hasRemaining())
+        {
+            channel.write(buf, pos + buf.position() - start);
+        }
+    }
+
+    private interface RecordVisitor
+    {
+
+        void visit(String key, Entry entry) throws IOException;
+    }
+
+    private static final class Segment
+    {
+
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        /**
+         * The keys of all file and directory records in this segment.
+         */
+        private final Set<String> keys = new HashSet<>();
+        private long size;
+        private long dead;
+        private MappedByteBuffer mapped;
+
+        Segment(int id, File file, FileChannel channel)
+        {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        ByteBuffer map() throws IOException
+        {
+            if (mapped == null)
+            {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return mapped;
+        }
+
+        @Override
+        public String toString()
+        {
+            return file.toString();
+        }
+    }
+
+    private static final class Entry
+    {
+
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final long dataOffset;
+        private final int dataLength;
+        private final byte type;
+        private final long modified;
+        private final long created;
+
+        Entry(Segment segment, long offset, int length, long dataOffset,
+                int dataLength, byte type, long modified, long created)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.type = type;
+            this.modified = modified;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A lock of a single file acquired from a {@link ClaynFileSystem}. The lock
+ * must be closed by the thread that acquired it. Closing it more than once has
+ * no effect.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @see ClaynFileSystem#lock(net.bplaced.clayn.cfs.SimpleFile, boolean, boolean)
+ */
+public class PathLock implements Closeable
+{
+
+    private final Releaser releaser;
+    private final boolean exclusive;
+    private boolean released;
+
+    PathLock(Releaser releaser, boolean exclusive)
+    {
+        this.releaser = releaser;
+        this.exclusive = exclusive;
+    }
+
+    public boolean isExclusive()
+    {
+        return exclusive;
+    }
+
+    /**
+     * Releases this lock.
+     *
+     * @throws IOException if releasing the lock of the operating system
+     * failed. The lock inside of the JVM is released anyway.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (released)
+        {
+            return;
+        }
+        released = true;
+        releaser.release();
+    }
+
+    interface Releaser
+    {
+
+        void release() throws IOException;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of all directory paths used in a {@link ClaynFileSystem}. Every path
+ * is represented by exactly one {@link Node} that gets created the first time
+ * the path is used and is shared by all directories with that path. The nodes
+ * cache their hash and path so that comparing and hashing directories doesn't
+ * need to walk up to the root. The table only references nodes and path
+ * segments weakly, so a node gets removed after no directory and no child
+ * node uses it anymore.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class PathTable
+{
+
+    private final String separator;
+    private final Map<String, WeakReference<String>> segments = new WeakHashMap<>();
+    private final ReferenceQueue<Node> cleared = new ReferenceQueue<>();
+    private final Node root;
+
+    PathTable(String separator)
+    {
+        this.separator = separator;
+        this.root = new Node(this, null, null);
+    }
+
+    Node getRoot()
+    {
+        return root;
+    }
+
+    private String intern(String segment)
+    {
+        synchronized (segments)
+        {
+            WeakReference<String> ref = segments.get(segment);
+            String existing = ref == null ? null : ref.get();
+            if (existing == null)
+            {
+                segments.put(segment, new WeakReference<>(segment));
+                existing = segment;
+            }
+            return existing;
+        }
+    }
+
+    /**
+     * Removes the entries of all nodes that got garbage collected.
+     */
+    private void expunge()
+    {
+        Reference<? extends Node> ref;
+        while ((ref = cleared.poll()) != null)
+        {
+            NodeRef node = (NodeRef) ref;
+            node.owner.remove(node.name, node);
+        }
+    }
+
+    private static final class NodeRef extends WeakReference<Node>
+    {
+
+        private final String name;
+        private final Map<String, NodeRef> owner;
+
+        NodeRef(Node node, ReferenceQueue<Node> queue,
+                Map<String, NodeRef> owner)
+        {
+            super(node, queue);
+            this.name = node.name;
+            this.owner = owner;
+        }
+    }
+
+    static final class Node
+    {
+
+        private final PathTable table;
+        private final Node parent;
+        private final String name;
+        private final int hash;
+        private volatile ConcurrentHashMap<String, NodeRef> children;
+        private volatile String path;
+
+        private Node(PathTable table, Node parent, String name)
+        {
+            this.table = table;
+            this.parent = parent;
+            this.name = name;
+            this.hash = parent == null ? 0 : 31 * parent.hash + name.hashCode();
+        }
+
+        /**
+         * Returns the node for the child with the given name.
+         */
+        Node child(String name)
+        {
+            ConcurrentHashMap<String, NodeRef> map = children;
+            if (map == null)
+            {
+                synchronized (this)
+                {
+                    map = children;
+                    if (map == null)
+                    {
+                        map = new ConcurrentHashMap<>();
+                        children = map;
+                    }
+                }
+            }
+            NodeRef ref = map.get(name);
+            Node child = ref == null ? null : ref.get();
+            if (child != null)
+            {
+                return child;
+            }
+            table.expunge();
+            Node[] result = new Node[1];
+            ConcurrentHashMap<String, NodeRef> owner = map;
+            map.compute(table.intern(name), (key, old) ->
+            {
+                Node existing = old == null ? null : old.get();
+                if (existing != null)
+                {
+                    result[0] = existing;
+                    return old;
+                }
+                result[0] = new Node(table, this, key);
+                return new NodeRef(result[0], table.cleared, owner);
+            });
+            return result[0];
+        }
+
+        /**
+         * Returns the path of the directory represented by this node. The path
+         * starts and ends with the separator.
+         */
+        String getPath()
+        {
+            String p = path;
+            if (p == null)
+            {
+                p = parent == null ? table.separator : parent.getPath() + name + table.separator;
+                path = p;
+            }
+            return p;
+        }
+
+        /**
+         * Checks if this node represents the same path as the given one. Nodes
+         * of the same table are only equal if they are the same node.
+         */
+        boolean samePath(Node other)
+        {
+            if (this == other)
+            {
+                return true;
+            }
+            return table != other.table && hash == other.hash && getPath().equals(
+                    other.getPath());
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public String toString()
+        {
+            return getPath();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import net.bplaced.clayn.cfs.SimpleFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of scratch files that get reused instead of being created and deleted
+ * for every use. The files are stored in a directory next to the root of the
+ * filesystem named like the root with the suffix {@code .scratch}, so they
+ * are not part of the filesystem. The first use adopts the scratch files left
+ * over from earlier runs and creates files until the pool is full, left over
+ * files that don't fit into the pool get deleted. Files are truncated when
+ * they are handed out again, released files that don't fit into the pool get
+ * deleted.<br><br>
+ * Every file in the pool is locked exclusively through a lock file next to
+ * it until the pool gets closed or the file gets deleted. Files that are
+ * locked by the pool of another filesystem using the same area are neither
+ * adopted nor deleted. The scratch files themselves aren't locked because
+ * closing any stream to them would release the lock on some platforms.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class ScratchPool
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScratchPool.class);
+    private static final String SUFFIX = ".scratch";
+    private static final String PREFIX = "scratch-";
+    private static final String LOCK_SUFFIX = ".lock";
+    private final ClaynFileSystem owner;
+    private final File area;
+    private final Deque<CFSSimpleFileImpl> idle = new ArrayDeque<>();
+    private final Set<CFSSimpleFileImpl> leased = ConcurrentHashMap.newKeySet();
+    private final Map<String, FileChannel> locks = new HashMap<>();
+    private ClaynFileSystem fs;
+    private int size = 16;
+    private int next;
+
+    ScratchPool(ClaynFileSystem owner, File root)
+    {
+        File abs = root.getAbsoluteFile();
+        this.owner = owner;
+        this.area = new File(abs.getParentFile(), abs.getName() + SUFFIX);
+    }
+
+    File getArea()
+    {
+        return area;
+    }
+
+    synchronized int getSize()
+    {
+        return size;
+    }
+
+    synchronized void setSize(int size) throws IOException
+    {
+        if (size < 0)
+        {
+            throw new IllegalArgumentException("Pool size must not be negative");
+        }
+        this.size = size;
+        while (idle.size() > size)
+        {
+            delete(idle.pollLast().getFile());
+        }
+    }
+
+    synchronized CFSSimpleFileImpl acquire() throws IOException
+    {
+        if (fs == null)
+        {
+            fs = owner.openScratch(area);
+            adopt();
+            while (idle.size() < size)
+            {
+                idle.push(create());
+            }
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Filled the scratch pool in {} with {} files", area,
+                        idle.size());
+            }
+        }
+        CFSSimpleFileImpl file = idle.poll();
+        if (file == null)
+        {
+            file = create();
+        } else
+        {
+            truncate(file.getFile());
+        }
+        leased.add(file);
+        return file;
+    }
+
+    /**
+     * Puts the scratch files of earlier runs into the pool and deletes the
+     * ones that don't fit. Files locked by another pool are skipped. New
+     * files are numbered after the highest existing one.
+     */
+    private void adopt() throws IOException
+    {
+        File[] files = area.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        CFSDirectoryImpl dir = (CFSDirectoryImpl) fs.getRoot();
+        int adopted = 0;
+        int deleted = 0;
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (!file.isFile() || !name.startsWith(PREFIX))
+            {
+                continue;
+            }
+            int number;
+            try
+            {
+                number = Integer.parseInt(name.substring(PREFIX.length()));
+            } catch (NumberFormatException ex)
+            {
+                continue;
+            }
+            next = Math.max(next, number + 1);
+            if (!lock(file))
+            {
+                continue;
+            }
+            if (!file.isFile())
+            {
+                // Deleted by the pool that used it before
+                delete(file);
+                continue;
+            }
+            if (idle.size() < size)
+            {
+                idle.push(dir.createFile(name));
+                adopted++;
+            } else
+            {
+                delete(file);
+                deleted++;
+            }
+        }
+        if (LOG.isDebugEnabled() && adopted + deleted > 0)
+        {
+            LOG.debug("Adopted {} and deleted {} left over scratch files in {}",
+                    adopted, deleted, area);
+        }
+    }
+
+    private CFSSimpleFileImpl create() throws IOException
+    {
+        CFSDirectoryImpl dir = (CFSDirectoryImpl) fs.getRoot();
+        while (true)
+        {
+            CFSSimpleFileImpl file = dir.createFile(PREFIX + next++);
+            try
+            {
+                Files.createFile(file.getFile().toPath());
+            } catch (FileAlreadyExistsException ex)
+            {
+                // Created by another filesystem using the same area
+                continue;
+            }
+            if (lock(file.getFile()))
+            {
+                return file;
+            }
+            // Adopted by another filesystem right after it was created
+        }
+    }
+
+    private static File lockFile(File file)
+    {
+        return new File(file.getParentFile(), file.getName() + LOCK_SUFFIX);
+    }
+
+    /**
+     * Locks the given scratch file for this pool.
+     *
+     * @return {@code false} if the file is locked by another pool
+     */
+    private boolean lock(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(lockFile(file).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try
+        {
+            FileLock lock = channel.tryLock();
+            if (lock != null)
+            {
+                locks.put(file.getName(), channel);
+                return true;
+            }
+        } catch (OverlappingFileLockException ex)
+        {
+            // Locked by a pool in this process
+        }
+        channel.close();
+        return false;
+    }
+
+    private void unlock(File file) throws IOException
+    {
+        FileChannel channel = locks.remove(file.getName());
+        if (channel != null)
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Deletes a scratch file of this pool and its lock file. The lock file is
+     * deleted while it is still locked so no other pool can lock it in the
+     * meantime.
+     */
+    private void delete(File file) throws IOException
+    {
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(lockFile(file).toPath());
+        unlock(file);
+    }
+
+    private static void truncate(File file) throws IOException
+    {
+        if (file.length() == 0)
+        {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE))
+        {
+            channel.truncate(0);
+        }
+    }
+
+    void release(SimpleFile file) throws IOException
+    {
+        if (!leased.remove(file))
+        {
+            throw new IllegalArgumentException(file + " is no scratch file");
+        }
+        CFSSimpleFileImpl scratch = (CFSSimpleFileImpl) file;
+        synchronized (this)
+        {
+            if (fs == null)
+            {
+                // Released after the pool was closed, kept for adoption
+                return;
+            }
+            if (idle.size() < size)
+            {
+                idle.push(scratch);
+            } else
+            {
+                delete(scratch.getFile());
+            }
+        }
+    }
+
+    /**
+     * Deletes all files that aren't in use.
+     */
+    synchronized void clear() throws IOException
+    {
+        while (!idle.isEmpty())
+        {
+            delete(idle.poll().getFile());
+        }
+    }
+
+    /**
+     * Releases the locks of all files, so they can be adopted by other
+     * filesystems. The files are kept.
+     */
+    synchronized void close() throws IOException
+    {
+        IOException failure = null;
+        for (FileChannel channel : locks.values())
+        {
+            try
+            {
+                channel.close();
+            } catch (IOException ex)
+            {
+                failure = ex;
+            }
+        }
+        locks.clear();
+        idle.clear();
+        fs = null;
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+}
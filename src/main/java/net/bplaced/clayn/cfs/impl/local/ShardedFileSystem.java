@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import net.bplaced.clayn.cfs.CFileSystem;
+
+/**
+ * A {@link CFileSystem} implementation that spreads its files over several
+ * local root directories, e.g. on different disks, while showing a single
+ * tree. Every file is stored in one of the roots, chosen by a consistent hash
+ * of its path. Directories are created in all roots and listings merge the
+ * contents of all roots in parallel.<br><br>
+ * The root a file belongs to is chosen by the position of the root, not by
+ * its path, so the roots must always be given in the same order but can be
+ * moved or mounted somewhere else. The first root contains the complete
+ * directory tree. New roots should be added with
+ * {@link #addRoot(java.io.File)} which appends the root and moves the files
+ * that belong to it. If the roots were changed otherwise or moving the files
+ * was interrupted, files that are not in the root they belong to are still
+ * found by searching all roots, but {@link #rebalance()} should be called to
+ * move them.<br><br>
+ * The filesystem uses its own threads for the listings and should be
+ * {@link #close() closed} when it isn't used anymore. Filesystems created
+ * with {@link #subFileSystem(java.lang.String)} share the roots with this one
+ * and closing them has no effect.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public class ShardedFileSystem extends StoreFileSystem implements Closeable
+{
+
+    private final ShardedStore store;
+    private final boolean owner;
+
+    /**
+     * Creates a new filesystem using the given root directories. The
+     * directories get created if they don't exist.
+     *
+     * @param roots the root directories. Must contain at least one directory
+     * @throws IOException if an I/O Exception occures
+     */
+    public ShardedFileSystem(File... roots) throws IOException
+    {
+        this(createStore(roots), "/", null, true);
+    }
+
+    private ShardedFileSystem(ShardedStore store, String base,
+            Map<String, List<StoreDirectory>> watched, boolean owner)
+    {
+        super(store, base, watched);
+        this.store = store;
+        this.owner = owner;
+    }
+
+    private static ShardedStore createStore(File[] roots) throws IOException
+    {
+        if (roots == null || roots.length == 0)
+        {
+            throw new IllegalArgumentException(
+                    "At least one root directory is required");
+        }
+        List<Path> paths = new ArrayList<>();
+        for (File root : roots)
+        {
+            paths.add(root.toPath());
+        }
+        return new ShardedStore(paths, BatchRunner.createDefaultExecutor(),
+                true);
+    }
+
+    @Override
+    StoreFileSystem createView(String base,
+            Map<String, List<StoreDirectory>> watched)
+    {
+        return new ShardedFileSystem(store, base, watched, false);
+    }
+
+    /**
+     * Returns the root directories of this filesystem in the order they are
+     * used.
+     *
+     * @return the root directories
+     */
+    public List<File> getRoots()
+    {
+        return store.getRoots().stream().map(Path::toFile).collect(
+                Collectors.toList());
+    }
+
+    /**
+     * Adds a new root directory and moves all files that belong to it. Only
+     * the files that belong to the new root are moved. The filesystem can be
+     * used while the files are moved, but finding files that weren't moved
+     * yet takes longer.
+     *
+     * @param root the new root directory
+     * @throws IOException if an I/O Exception occures
+     */
+    public void addRoot(File root) throws IOException
+    {
+        store.addRoot(root.toPath());
+    }
+
+    /**
+     * Moves all files that are stored in a wrong root directory to the root
+     * they belong to and creates missing directories in all roots.
+     *
+     * @throws IOException if an I/O Exception occures
+     */
+    public void rebalance() throws IOException
+    {
+        store.rebalance();
+    }
+
+    /**
+     * Stops the threads used for the listings. Does nothing for filesystems
+     * created with {@link #subFileSystem(java.lang.String)}.
+     *
+     * @throws IOException if an I/O Exception occures
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (owner)
+        {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store that spreads files over several root directories. Every file belongs
+ * to the root chosen by a consistent hash of its key, so adding a root only
+ * moves the files that now belong to it. Directories are created in all
+ * roots, the first root always contains the complete tree. Listings are
+ * merged from all roots in parallel. The virtual nodes of a root are keyed on
+ * its position in the list of roots, so the roots can be moved to other
+ * paths without changing where the files belong as long as their order
+ * stays the same.<br><br>
+ * Files that aren't found in the root they belong to are looked up in all
+ * roots, so files are found while a rebalance is running and after a
+ * rebalance was interrupted, e.g. by a crash. When the rebalance finds a file
+ * in a wrong root and the right root already contains the file, the file in
+ * the wrong root is considered outdated and deleted. Files are moved with
+ * hard links which never replace an existing file, so an outdated file can't
+ * overwrite a newer one.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @impl
+ */
+final class ShardedStore implements EntryStore
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            ShardedStore.class);
+    private static final int VIRTUAL_NODES = 128;
+
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private volatile Ring ring;
+
+    ShardedStore(List<Path> roots, Executor executor) throws IOException
+    {
+        this(roots, executor, false);
+    }
+
+    /**
+     * Creates a new store. If the store owns the executor, it gets shut down
+     * when the store is closed.
+     */
+    ShardedStore(List<Path> roots, Executor executor, boolean ownsExecutor)
+            throws IOException
+    {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        for (Path root : roots)
+        {
+            Files.createDirectories(root);
+        }
+        this.ring = new Ring(roots);
+    }
+
+    List<Path> getRoots()
+    {
+        return ring.roots;
+    }
+
+    private static Path resolve(Path root, String key)
+    {
+        String rel = key.substring(1);
+        return rel.isEmpty() ? root : root.resolve(rel);
+    }
+
+    private Path primary(String key)
+    {
+        return resolve(ring.roots.get(0), key);
+    }
+
+    private Path owner(String key)
+    {
+        return resolve(ring.owner(key), key);
+    }
+
+    /**
+     * Returns the path of the given file. If the file wasn't moved to the
+     * root it belongs to yet, it is searched in all roots.
+     */
+    private Path locate(String key)
+    {
+        Ring r = ring;
+        Path owner = resolve(r.owner(key), key);
+        if (r.roots.size() == 1 || Files.isRegularFile(owner))
+        {
+            return owner;
+        }
+        for (Path root : r.roots)
+        {
+            Path p = resolve(root, key);
+            if (Files.isRegularFile(p))
+            {
+                return p;
+            }
+        }
+        return owner;
+    }
+
+    @Override
+    public boolean isFile(String key)
+    {
+        return Files.isRegularFile(locate(key));
+    }
+
+    @Override
+    public boolean isDirectory(String key)
+    {
+        return Files.isDirectory(primary(key));
+    }
+
+    @Override
+    public void createFile(String key) throws IOException
+    {
+        if (isFile(key) || isDirectory(key + "/"))
+        {
+            throw new FileAlreadyExistsException(key);
+        }
+        Path p = owner(key);
+        Files.createDirectories(p.getParent());
+        Files.createFile(p);
+    }
+
+    @Override
+    public void createDirectory(String key) throws IOException
+    {
+        if (Files.isRegularFile(locate(key.substring(0, key.length() - 1))))
+        {
+            throw new FileAlreadyExistsException(key);
+        }
+        Files.createDirectory(primary(key));
+        Ring r = ring;
+        for (int i = 1; i < r.roots.size(); i++)
+        {
+            Files.createDirectories(resolve(r.roots.get(i), key));
+        }
+    }
+
+    @Override
+    public void deleteFile(String key) throws IOException
+    {
+        boolean deleted = false;
+        for (Path root : ring.roots)
+        {
+            deleted |= Files.deleteIfExists(resolve(root, key));
+        }
+        if (!deleted)
+        {
+            throw new NoSuchFileException(key);
+        }
+    }
+
+    @Override
+    public void deleteDirectory(String key) throws IOException
+    {
+        if (!isDirectory(key))
+        {
+            throw new NoSuchFileException(key);
+        }
+        if (!list(key, false).isEmpty() || !list(key, true).isEmpty())
+        {
+            throw new DirectoryNotEmptyException(key);
+        }
+        List<Path> roots = ring.roots;
+        for (int i = roots.size() - 1; i >= 0; i--)
+        {
+            Files.deleteIfExists(resolve(roots.get(i), key));
+        }
+    }
+
+    @Override
+    public InputStream openRead(String key) throws IOException
+    {
+        return Files.newInputStream(locate(key));
+    }
+
+    @Override
+    public OutputStream openWrite(String key, boolean append) throws IOException
+    {
+        Path owner = owner(key);
+        if (Files.isDirectory(owner))
+        {
+            throw new IOException(key + " is a directory");
+        }
+        Files.createDirectories(owner.getParent());
+        if (append)
+        {
+            Path current = locate(key);
+            if (!current.equals(owner))
+            {
+                move(current, owner);
+            }
+            return Files.newOutputStream(owner, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+        return Files.newOutputStream(owner);
+    }
+
+    @Override
+    public long size(String key) throws IOException
+    {
+        return Files.size(locate(key));
+    }
+
+    @Override
+    public LocalFileAttributes attributes(String key)
+    {
+        try
+        {
+            BasicFileAttributes bfa = Files.readAttributes(locate(key),
+                    BasicFileAttributes.class);
+            LocalFileAttributes attr = new LocalFileAttributes();
+            attr.setMod(bfa.lastModifiedTime().toMillis());
+            attr.setCreate(bfa.creationTime().toMillis());
+            attr.setUsed(bfa.lastAccessTime().toMillis());
+            return attr;
+        } catch (IOException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Lists the children of the given directory in all roots in parallel.
+     */
+    @Override
+    public List<String> list(String key, boolean directories) throws IOException
+    {
+        List<CompletableFuture<List<String>>> parts = new ArrayList<>();
+        for (Path root : ring.roots)
+        {
+            Path dir = resolve(root, key);
+            parts.add(CompletableFuture.supplyAsync(() -> listLocal(dir,
+                    directories), executor));
+        }
+        Set<String> names = new TreeSet<>();
+        try
+        {
+            for (CompletableFuture<List<String>> part : parts)
+            {
+                names.addAll(part.join());
+            }
+        } catch (CompletionException ex)
+        {
+            if (ex.getCause() instanceof IOException)
+            {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        }
+        return new ArrayList<>(names);
+    }
+
+    private static List<String> listLocal(Path dir, boolean directories)
+    {
+        if (!Files.isDirectory(dir))
+        {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+        {
+            for (Path p : stream)
+            {
+                if (directories ? Files.isDirectory(p) : Files.isRegularFile(p))
+                {
+                    names.add(p.getFileName().toString());
+                }
+            }
+        } catch (IOException ex)
+        {
+            throw new CompletionException(ex);
+        }
+        return names;
+    }
+
+    /**
+     * Adds a root and moves all files that belong to it.
+     */
+    synchronized void addRoot(Path root) throws IOException
+    {
+        Files.createDirectories(root);
+        List<Path> roots = new ArrayList<>(ring.roots);
+        Path normalized = root.toAbsolutePath().normalize();
+        if (roots.contains(normalized))
+        {
+            return;
+        }
+        roots.add(normalized);
+        ring = new Ring(roots);
+        rebalance();
+    }
+
+    /**
+     * Moves all files to the roots they belong to and creates missing
+     * directories. The roots are processed in parallel.
+     */
+    synchronized void rebalance() throws IOException
+    {
+        Ring r = ring;
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (Path root : r.roots)
+        {
+            tasks.add(CompletableFuture.runAsync(() -> rebalance(r, root),
+                    executor));
+        }
+        try
+        {
+            CompletableFuture.allOf(tasks.toArray(
+                    new CompletableFuture<?>[tasks.size()])).join();
+        } catch (CompletionException ex)
+        {
+            if (ex.getCause() instanceof IOException)
+            {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private void rebalance(Ring r, Path root)
+    {
+        int moved = 0;
+        try (Stream<Path> files = Files.walk(root))
+        {
+            for (Path p : (Iterable<Path>) files::iterator)
+            {
+                String rel = root.relativize(p).toString().replace(
+                        p.getFileSystem().getSeparator(), "/");
+                if (rel.isEmpty())
+                {
+                    continue;
+                }
+                if (Files.isDirectory(p))
+                {
+                    for (Path other : r.roots)
+                    {
+                        Files.createDirectories(other.resolve(rel));
+                    }
+                    continue;
+                }
+                Path target = resolve(r.owner("/" + rel), "/" + rel);
+                if (!target.equals(p))
+                {
+                    move(p, target);
+                    moved++;
+                }
+            }
+        } catch (IOException ex)
+        {
+            throw new CompletionException(ex);
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Moved {} files out of {}", moved, root);
+        }
+    }
+
+    /**
+     * Moves the given file unless the target already exists, in which case
+     * the source is outdated and gets deleted.
+     */
+    private static void move(Path source, Path target) throws IOException
+    {
+        Files.createDirectories(target.getParent());
+        try
+        {
+            Files.createLink(target, source);
+            Files.deleteIfExists(source);
+            return;
+        } catch (FileAlreadyExistsException ex)
+        {
+            Files.deleteIfExists(source);
+            return;
+        } catch (IOException | UnsupportedOperationException ex)
+        {
+            // Different volumes or no hard links, copy instead
+        }
+        if (Files.exists(target))
+        {
+            Files.deleteIfExists(source);
+            return;
+        }
+        Path tmp = target.resolveSibling(target.getFileName() + ".moving");
+        Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.COPY_ATTRIBUTES);
+        try
+        {
+            place(tmp, target);
+        } finally
+        {
+            Files.deleteIfExists(tmp);
+        }
+        Files.deleteIfExists(source);
+    }
+
+    /**
+     * Makes the given file available as target without replacing an existing
+     * target. Uses a hard link if possible, otherwise a move that checks the
+     * target before, which leaves a small window in which a target created
+     * concurrently gets replaced.
+     */
+    private static void place(Path file, Path target) throws IOException
+    {
+        try
+        {
+            Files.createLink(target, file);
+            return;
+        } catch (FileAlreadyExistsException ex)
+        {
+            return;
+        } catch (IOException | UnsupportedOperationException ex)
+        {
+            // No hard links on this filesystem
+        }
+        try
+        {
+            Files.move(file, target);
+        } catch (FileAlreadyExistsException ex)
+        {
+            // A newer file was created in the meantime
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (ownsExecutor && executor instanceof ExecutorService)
+        {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * Consistent hash ring of the roots. Every root is placed on the ring
+     * several times to spread the keys evenly. The positions only depend on
+     * the index of a root, not on its path.
+     */
+    private static final class Ring
+    {
+
+        private final List<Path> roots;
+        private final TreeMap<Long, Path> nodes = new TreeMap<>();
+
+        Ring(List<Path> roots)
+        {
+            List<Path> normalized = new ArrayList<>();
+            for (Path root : roots)
+            {
+                normalized.add(root.toAbsolutePath().normalize());
+            }
+            this.roots = Collections.unmodifiableList(normalized);
+            for (int index = 0; index < normalized.size(); index++)
+            {
+                for (int i = 0; i < VIRTUAL_NODES; i++)
+                {
+                    nodes.put(hash(index + "#" + i), normalized.get(index));
+                }
+            }
+        }
+
+        Path owner(String key)
+        {
+            Map.Entry<Long, Path> e = nodes.ceilingEntry(hash(key));
+            return e == null ? nodes.firstEntry().getValue() : e.getValue();
+        }
+
+        /**
+         * 64 bit FNV-1a hash with a final mix of the bits.
+         */
+        private static long hash(String s)
+        {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : s.getBytes(StandardCharsets.UTF_8))
+            {
+                h ^= b & 0xFF;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates snapshots and clones of directory trees by hard linking their files
+ * and breaks these links before a file gets written. Snapshots are stored in
+ * a directory next to the root of the filesystem named like the root with the
+ * suffix {@code .snapshots}, so they are not part of the filesystem. If the
+ * files can't be linked, e.g. because the target is on another volume, they
+ * get copied.<br><br>
+ * Creating a snapshot or clone also creates the snapshot directory, links
+ * are only checked before writing if it exists. The number of links is read
+ * from the {@code unix:nlink} attribute. On systems without it, the linked
+ * files are recorded in the file {@code .links} inside of the snapshot
+ * directory and only these get replaced before writing. Replacing a file
+ * copies it into the snapshot directory first, so the copy doesn't show up
+ * next to the file.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class Snapshots
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(Snapshots.class);
+    private static final String SUFFIX = ".snapshots";
+    private static final String LINKS = ".links";
+    private static final String REMOVED = "-";
+    private final File area;
+    private final boolean linkCount;
+    private volatile boolean linked;
+    private Set<String> links;
+    private int linkLines;
+    private BufferedWriter journal;
+
+    Snapshots(File root)
+    {
+        this(root, hasLinkCount(root.getAbsoluteFile().toPath()));
+    }
+
+    /**
+     * @param linkCount {@code false} to record the linked files instead of
+     * reading the number of links
+     */
+    Snapshots(File root, boolean linkCount)
+    {
+        File abs = root.getAbsoluteFile();
+        this.area = new File(abs.getParentFile(), abs.getName() + SUFFIX);
+        this.linkCount = linkCount;
+        this.linked = area.isDirectory();
+    }
+
+    File getArea()
+    {
+        return area;
+    }
+
+    File getSnapshot(String name) throws IOException
+    {
+        checkName(name);
+        File snapshot = new File(area, name);
+        if (!snapshot.isDirectory())
+        {
+            throw new NoSuchFileException(snapshot.toString());
+        }
+        return snapshot;
+    }
+
+    List<String> list()
+    {
+        File[] dirs = area.listFiles(File::isDirectory);
+        List<String> result = new ArrayList<>();
+        if (dirs != null)
+        {
+            for (File dir : dirs)
+            {
+                result.add(dir.getName());
+            }
+            result.sort(null);
+        }
+        return result;
+    }
+
+    void delete(String name) throws IOException
+    {
+        File snapshot = getSnapshot(name);
+        untrack(snapshot.toPath());
+        Files.walkFileTree(snapshot.toPath(), new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,
+                    IOException exc) throws IOException
+            {
+                if (exc != null)
+                {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void checkName(String name)
+    {
+        if (name == null || name.isEmpty() || name.startsWith(".")
+                || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0)
+        {
+            throw new IllegalArgumentException("Invalid snapshot name: " + name);
+        }
+    }
+
+    /**
+     * Creates a snapshot of the given directory with the given name.
+     */
+    File create(File source, String name) throws IOException
+    {
+        checkName(name);
+        File target = new File(area, name);
+        if (target.exists())
+        {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        Files.createDirectories(area.toPath());
+        link(source.toPath(), target.toPath());
+        return target;
+    }
+
+    /**
+     * Recreates the directory tree of the source in the target and hard links
+     * all files. The target must not exist.
+     */
+    void link(Path source, Path target) throws IOException
+    {
+        Path src = source.toAbsolutePath().normalize();
+        Path dst = target.toAbsolutePath().normalize();
+        if (!Files.isDirectory(src))
+        {
+            throw new NoSuchFileException(src.toString());
+        }
+        if (Files.exists(dst))
+        {
+            throw new FileAlreadyExistsException(dst.toString());
+        }
+        if (dst.startsWith(src))
+        {
+            throw new IOException("Can't link " + src + " into itself");
+        }
+        Files.createDirectories(area.toPath());
+        linked = true;
+        boolean track = !linkCount;
+        List<Path> tracked = new ArrayList<>();
+        long start = System.nanoTime();
+        int[] counts = new int[2];
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>()
+        {
+            private boolean copy;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException
+            {
+                Files.createDirectory(dst.resolve(src.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException
+            {
+                Path to = dst.resolve(src.relativize(file));
+                if (!copy)
+                {
+                    try
+                    {
+                        Files.createLink(to, file);
+                        if (track)
+                        {
+                            tracked.add(file);
+                            tracked.add(to);
+                        }
+                        counts[0]++;
+                        return FileVisitResult.CONTINUE;
+                    } catch (UnsupportedOperationException | FileSystemException ex)
+                    {
+                        if (LOG.isDebugEnabled())
+                        {
+                            LOG.debug("Can't link {}, copying instead: {}",
+                                    file, ex.getMessage());
+                        }
+                        copy = true;
+                    }
+                }
+                Files.copy(file, to, StandardCopyOption.COPY_ATTRIBUTES);
+                counts[1]++;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (!tracked.isEmpty())
+        {
+            track(tracked);
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Linked {} and copied {} files from {} to {} in {} ms",
+                    counts[0], counts[1], src, dst,
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    private static boolean hasLinkCount(Path path)
+    {
+        Path existing = path;
+        while (existing != null && !Files.exists(existing))
+        {
+            existing = existing.getParent();
+        }
+        try
+        {
+            return existing != null && Files.getFileStore(existing).supportsFileAttributeView(
+                    "unix");
+        } catch (IOException ex)
+        {
+            return false;
+        }
+    }
+
+    private static String key(Path path)
+    {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Loads the recorded links. Removed links are recorded as lines starting
+     * with {@code -}.
+     */
+    private Set<String> links() throws IOException
+    {
+        if (links == null)
+        {
+            links = new HashSet<>();
+            Path file = new File(area, LINKS).toPath();
+            if (Files.exists(file))
+            {
+                for (String line : Files.readAllLines(file,
+                        StandardCharsets.UTF_8))
+                {
+                    linkLines++;
+                    if (line.startsWith(REMOVED))
+                    {
+                        links.remove(line.substring(1));
+                    } else if (!line.isEmpty())
+                    {
+                        links.add(line);
+                    }
+                }
+            }
+        }
+        return links;
+    }
+
+    private synchronized void track(List<Path> files) throws IOException
+    {
+        Set<String> known = links();
+        for (Path file : files)
+        {
+            if (known.add(key(file)))
+            {
+                record(key(file));
+            }
+        }
+        journal.flush();
+    }
+
+    /**
+     * Forgets the recorded links of all files inside of the given directory.
+     */
+    private synchronized void untrack(Path dir) throws IOException
+    {
+        if (links == null && !new File(area, LINKS).exists())
+        {
+            return;
+        }
+        String prefix = key(dir) + File.separator;
+        List<String> removed = new ArrayList<>();
+        for (String key : links())
+        {
+            if (key.startsWith(prefix))
+            {
+                removed.add(key);
+            }
+        }
+        for (String key : removed)
+        {
+            links.remove(key);
+            record(REMOVED + key);
+        }
+        if (journal != null)
+        {
+            journal.flush();
+        }
+        compact();
+    }
+
+    /**
+     * Checks if the given file was linked and forgets it, since it gets
+     * replaced afterwards.
+     */
+    private synchronized boolean untrackFile(Path file) throws IOException
+    {
+        if (links == null && !new File(area, LINKS).exists())
+        {
+            return false;
+        }
+        String key = key(file);
+        if (!links().remove(key))
+        {
+            return false;
+        }
+        record(REMOVED + key);
+        journal.flush();
+        compact();
+        return true;
+    }
+
+    private void record(String line) throws IOException
+    {
+        if (journal == null)
+        {
+            journal = Files.newBufferedWriter(new File(area, LINKS).toPath(),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+        journal.write(line);
+        journal.write('\n');
+        linkLines++;
+    }
+
+    private void compact() throws IOException
+    {
+        if (linkLines <= 2 * links.size() + 1024)
+        {
+            return;
+        }
+        if (journal != null)
+        {
+            journal.close();
+            journal = null;
+        }
+        Path file = new File(area, LINKS).toPath();
+        Path tmp = file.resolveSibling(LINKS + ".tmp");
+        Files.write(tmp, links, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        linkLines = links.size();
+    }
+
+    /**
+     * Makes sure the given file isn't shared with a snapshot or clone before
+     * writing to it by replacing it with a copy.
+     *
+     * @param keepContent {@code false} if the file gets truncated anyway, so
+     * the copy can be empty
+     */
+    void breakLink(Path file, boolean keepContent) throws IOException
+    {
+        if (!linked)
+        {
+            return;
+        }
+        if (!linkCount)
+        {
+            if (!untrackFile(file) || !Files.exists(file))
+            {
+                return;
+            }
+        } else
+        {
+            try
+            {
+                if (((Number) Files.getAttribute(file, "unix:nlink")).intValue() <= 1)
+                {
+                    return;
+                }
+            } catch (NoSuchFileException ex)
+            {
+                return;
+            }
+        }
+        replace(file, keepContent);
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Broke link of {}", file);
+        }
+    }
+
+    /**
+     * Replaces the given file with a copy that is created in the snapshot
+     * directory, or next to the file if the snapshot directory is on another
+     * volume.
+     */
+    private void replace(Path file, boolean keepContent) throws IOException
+    {
+        try
+        {
+            replace(file, Files.createTempFile(area.toPath(), "cow", null),
+                    keepContent);
+        } catch (AtomicMoveNotSupportedException ex)
+        {
+            replace(file, Files.createTempFile(file.toAbsolutePath().getParent(),
+                    "." + file.getFileName(), ".cow"), keepContent);
+        }
+    }
+
+    private static void replace(Path file, Path tmp, boolean keepContent) throws IOException
+    {
+        try
+        {
+            if (keepContent)
+            {
+                Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.COPY_ATTRIBUTES);
+            } else
+            {
+                // Recreate to get the default permissions instead of the
+                // restricted ones of temporary files
+                Files.delete(tmp);
+                Files.createFile(tmp);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex)
+        {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+    }
+}
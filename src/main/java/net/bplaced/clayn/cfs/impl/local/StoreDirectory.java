@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import net.bplaced.clayn.cfs.AbstractActiveDirectory;
+import net.bplaced.clayn.cfs.ActiveDirectory;
+import net.bplaced.clayn.cfs.Directory;
+import net.bplaced.clayn.cfs.FileModification;
+import net.bplaced.clayn.cfs.SimpleFile;
+import net.bplaced.clayn.cfs.SimpleFileFilter;
+import net.bplaced.clayn.cfs.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Directory of a {@link StoreFileSystem}. Activating the directory doesn't
+ * create any threads, the listeners get called by the thread that made the
+ * change.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public class StoreDirectory extends AbstractActiveDirectory
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            StoreDirectory.class);
+    private final StoreFileSystem fs;
+    private final String path;
+    private final StoreDirectory parent;
+    private final String partName;
+    private boolean active;
+
+    StoreDirectory(StoreFileSystem fs, String path, StoreDirectory parent,
+            String partName)
+    {
+        this.fs = fs;
+        this.path = path;
+        this.parent = parent;
+        this.partName = partName;
+    }
+
+    StoreFileSystem getFs()
+    {
+        return fs;
+    }
+
+    String getKey()
+    {
+        return fs.toKey(path);
+    }
+
+    StoreFile createFile(String name)
+    {
+        return new StoreFile(this, name);
+    }
+
+    void fire(SimpleFile file, FileModification.Modification mod, long time)
+    {
+        Consumer<FileModification> listener = onModification;
+        if (mod == FileModification.Modification.CREATE)
+        {
+            listener = onCreate;
+        } else if (mod == FileModification.Modification.DELETE)
+        {
+            listener = onDelete;
+        }
+        Optional.ofNullable(listener).ifPresent((l) -> l.accept(
+                new FileModification(file, mod, time)));
+    }
+
+    @Override
+    public ActiveDirectory changeDirectory(String path) throws IOException
+    {
+        boolean fromRoot = path.startsWith("/");
+        path = IOUtils.cleanPath(path);
+        String parts[] = path.split("/");
+        StoreDirectory end = this;
+        if (fromRoot)
+        {
+            end = (StoreDirectory) fs.getActiveRoot();
+        }
+        for (String part : parts)
+        {
+            if (part.isEmpty() || ".".equals(part))
+            {
+                //This directory
+            } else if ("..".equals(part))
+            {
+                if (end.getParent() == null)
+                {
+                    throw new IOException(
+                            "No parent directory available for 'root' directory");
+                }
+                end = end.parent;
+            } else
+            {
+                end = new StoreDirectory(fs, end.path + part + "/", end, part);
+            }
+        }
+        return end;
+    }
+
+    @Override
+    public ActiveDirectory getParent()
+    {
+        return parent;
+    }
+
+    @Override
+    public SimpleFile getFile(String name) throws IOException
+    {
+        return createFile(name);
+    }
+
+    @Override
+    public void mkDir() throws IOException
+    {
+        if (parent != null && !parent.exists())
+        {
+            throw new IOException("Parent " + parent + " does not exist");
+        }
+        fs.getStore().createDirectory(getKey());
+    }
+
+    @Override
+    public boolean exists()
+    {
+        return fs.getStore().isDirectory(getKey());
+    }
+
+    @Override
+    public List<SimpleFile> listFiles(SimpleFileFilter sff) throws IOException
+    {
+        return fs.getStore().list(getKey(), false).stream().map(
+                this::createFile).filter(sff).collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Directory> listDirectories() throws IOException
+    {
+        return fs.getStore().list(getKey(), true).stream().map(
+                (name) -> new StoreDirectory(fs, path + name + "/", this, name)).collect(
+                Collectors.toList());
+    }
+
+    @Override
+    public void delete() throws IOException
+    {
+        if (!exists())
+        {
+            return;
+        }
+        for (Directory dir : listDirectories())
+        {
+            dir.delete();
+        }
+        for (SimpleFile file : listFiles())
+        {
+            file.delete();
+        }
+        if (parent == null)
+        {
+            return;
+        }
+        fs.getStore().deleteDirectory(getKey());
+    }
+
+    @Override
+    public synchronized void activate()
+    {
+        if (active)
+        {
+            return;
+        }
+        active = true;
+        fs.register(this);
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Activated {}", this);
+        }
+    }
+
+    @Override
+    public synchronized void deactivate()
+    {
+        if (!active)
+        {
+            return;
+        }
+        active = false;
+        fs.unregister(this);
+    }
+
+    @Override
+    public String getName()
+    {
+        return partName == null ? "/" : partName;
+    }
+
+    @Override
+    public String getPath()
+    {
+        return path;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = 5;
+        hash = 61 * hash + System.identityHashCode(fs.getStore());
+        hash = 61 * hash + Objects.hashCode(getKey());
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (obj == null)
+        {
+            return false;
+        }
+        if (getClass() != obj.getClass())
+        {
+            return false;
+        }
+        final StoreDirectory other = (StoreDirectory) obj;
+        return fs.getStore() == other.fs.getStore() && Objects.equals(getKey(),
+                other.getKey());
+    }
+}
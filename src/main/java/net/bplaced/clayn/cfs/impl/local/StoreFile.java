@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.util.Objects;
+import net.bplaced.clayn.cfs.Directory;
+import net.bplaced.clayn.cfs.FileAttributes;
+import net.bplaced.clayn.cfs.FileModification;
+import net.bplaced.clayn.cfs.SimpleFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * File of a {@link StoreFileSystem}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public class StoreFile implements SimpleFile
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(StoreFile.class);
+    private final StoreDirectory parent;
+    private final String name;
+
+    StoreFile(StoreDirectory parent, String name)
+    {
+        this.parent = parent;
+        this.name = name;
+    }
+
+    private EntryStore store()
+    {
+        return parent.getFs().getStore();
+    }
+
+    private String getKey()
+    {
+        return parent.getKey() + name;
+    }
+
+    private void checkParent() throws IOException
+    {
+        if (!parent.exists())
+        {
+            throw new NoSuchFileException(getPath());
+        }
+    }
+
+    @Override
+    public boolean exists()
+    {
+        return store().isFile(getKey());
+    }
+
+    @Override
+    public void create() throws IOException
+    {
+        checkParent();
+        store().createFile(getKey());
+        parent.getFs().fire(this, FileModification.Modification.CREATE);
+    }
+
+    @Override
+    public void delete() throws IOException
+    {
+        if (!exists())
+        {
+            return;
+        }
+        store().deleteFile(getKey());
+        parent.getFs().fire(this, FileModification.Modification.DELETE);
+    }
+
+    @Override
+    public InputStream openRead() throws IOException
+    {
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Open {} for reading", getPath());
+        }
+        if (parent.getFs().getFileSettings().getCreateOnAccess())
+        {
+            createSafe();
+        }
+        return store().openRead(getKey());
+    }
+
+    @Override
+    public OutputStream openWrite() throws IOException
+    {
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Open {} for writing", getPath());
+        }
+        return open(false);
+    }
+
+    @Override
+    public OutputStream openAppend() throws IOException
+    {
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Open {} for appending", getPath());
+        }
+        return open(true);
+    }
+
+    private OutputStream open(boolean append) throws IOException
+    {
+        if (parent.getFs().getFileSettings().getCreateOnAccess())
+        {
+            createSafe();
+        }
+        checkParent();
+        boolean existed = exists();
+        return new FilterOutputStream(store().openWrite(getKey(), append))
+        {
+            private boolean closed;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                if (closed)
+                {
+                    return;
+                }
+                closed = true;
+                super.close();
+                parent.getFs().fire(StoreFile.this,
+                        existed ? FileModification.Modification.MODIFY : FileModification.Modification.CREATE);
+            }
+        };
+    }
+
+    @Override
+    public Directory getParent()
+    {
+        return parent;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public long getSize() throws IOException
+    {
+        return store().size(getKey());
+    }
+
+    @Override
+    public Charset getCharset()
+    {
+        return parent.getFs().getCharset();
+    }
+
+    @Override
+    public FileAttributes getFileAttributes()
+    {
+        return new FileAttributes()
+        {
+            @Override
+            public long lastModified()
+            {
+                LocalFileAttributes attr = store().attributes(getKey());
+                return attr == null ? -1 : attr.lastModified();
+            }
+
+            @Override
+            public long creationTime()
+            {
+                LocalFileAttributes attr = store().attributes(getKey());
+                return attr == null ? -1 : attr.creationTime();
+            }
+
+            @Override
+            public long lastUsed()
+            {
+                LocalFileAttributes attr = store().attributes(getKey());
+                return attr == null ? -1 : attr.lastUsed();
+            }
+        };
+    }
+
+    @Override
+    public String getPath()
+    {
+        return toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return parent.toString() + name;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = 3;
+        hash = 53 * hash + Objects.hashCode(this.parent);
+        hash = 53 * hash + Objects.hashCode(this.name);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (obj == null)
+        {
+            return false;
+        }
+        if (getClass() != obj.getClass())
+        {
+            return false;
+        }
+        final StoreFile other = (StoreFile) obj;
+        if (!Objects.equals(this.name, other.name))
+        {
+            return false;
+        }
+        return Objects.equals(this.parent, other.parent);
+    }
+}
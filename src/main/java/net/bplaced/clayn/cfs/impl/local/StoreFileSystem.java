@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import net.bplaced.clayn.cfs.ActiveDirectory;
+import net.bplaced.clayn.cfs.CFileSystem;
+import net.bplaced.clayn.cfs.FileModification;
+import net.bplaced.clayn.cfs.FileSettings;
+import net.bplaced.clayn.cfs.SimpleFileSettings;
+
+/**
+ * Base for filesystems that don't map their files one to one onto the local
+ * filesystem but keep them in an {@link EntryStore}. Paths follow the same
+ * rules as for the {@link ClaynFileSystem}. Active directories are supported
+ * but will only be informed about changes that were made through a filesystem
+ * sharing the same store.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @impl
+ */
+public abstract class StoreFileSystem implements CFileSystem
+{
+
+    final FileSettings SETTINGS = new SimpleFileSettings();
+    private Charset charset = Charset.defaultCharset();
+    private final EntryStore store;
+    private final String base;
+    private final Map<String, List<StoreDirectory>> watched;
+    private final StoreDirectory root;
+
+    StoreFileSystem(EntryStore store, String base,
+            Map<String, List<StoreDirectory>> watched)
+    {
+        this.store = store;
+        this.base = base;
+        this.watched = watched == null ? new ConcurrentHashMap<>() : watched;
+        this.root = new StoreDirectory(this, "/", null, null);
+    }
+
+    EntryStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * Converts a path of this filesystem into the key used by the store.
+     */
+    String toKey(String path)
+    {
+        return base + path.substring(1);
+    }
+
+    /**
+     * Creates a filesystem that uses the same store with the given key as
+     * root.
+     */
+    abstract StoreFileSystem createView(String base,
+            Map<String, List<StoreDirectory>> watched);
+
+    void register(StoreDirectory dir)
+    {
+        watched.compute(toKey(dir.getPath()), (k, dirs) ->
+        {
+            List<StoreDirectory> handles = dirs != null ? dirs
+                    : new CopyOnWriteArrayList<>();
+            handles.add(dir);
+            return handles;
+        });
+    }
+
+    void unregister(StoreDirectory dir)
+    {
+        watched.computeIfPresent(toKey(dir.getPath()), (k, dirs) ->
+        {
+            dirs.removeIf((d) -> d == dir);
+            return dirs.isEmpty() ? null : dirs;
+        });
+    }
+
+    void fire(StoreFile file, FileModification.Modification mod)
+    {
+        List<StoreDirectory> dirs = watched.get(toKey(
+                file.getParent().getPath()));
+        if (dirs == null || dirs.isEmpty())
+        {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        for (StoreDirectory dir : dirs)
+        {
+            dir.fire(dir.createFile(file.getName()), mod, time);
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     *
+     * @return {@code true}
+     */
+    @Override
+    public boolean isActiveDirectorySupported()
+    {
+        return true;
+    }
+
+    @Override
+    public ActiveDirectory getActiveRoot() throws IOException
+    {
+        return getRoot();
+    }
+
+    @Override
+    public ActiveDirectory getActiveDirectory(String path) throws IOException
+    {
+        return getDirectory(path);
+    }
+
+    @Override
+    public ActiveDirectory getDirectory(String path) throws IOException
+    {
+        return root.changeDirectory(path);
+    }
+
+    @Override
+    public ActiveDirectory getRoot() throws IOException
+    {
+        return root;
+    }
+
+    @Override
+    public FileSettings getFileSettings()
+    {
+        return SETTINGS;
+    }
+
+    /**
+     * Sets the charset for this filesystem. {@code null} values are allowed.
+     *
+     * @param charset the charset for the filesystem. If {@code null}
+     * {@link Charset#defaultCharset()} will be used.
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset == null ? Charset.defaultCharset() : charset;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    @Override
+    public CFileSystem subFileSystem(String dir) throws IOException
+    {
+        StoreDirectory nRoot = (StoreDirectory) getDirectory(dir);
+        nRoot.mkDirs();
+        return createView(toKey(nRoot.getPath()), watched);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forces files and directories according to the {@link Durability} of a
+ * {@link ClaynFileSystem}. For {@link Durability#PERIODIC} all channels that
+ * are open for writing and all channels that got closed since the last run are
+ * forced together by a background thread, closed channels are only closed
+ * after they were forced. To not run out of file handles when many files get
+ * written within one interval, a closed channel is forced and closed right
+ * away once {@link #getMaxPending() too many} closed channels are pending.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class Syncer
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(Syncer.class);
+    private final Set<FileChannel> open = ConcurrentHashMap.newKeySet();
+    private final Set<FileChannel> closing = ConcurrentHashMap.newKeySet();
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+    private volatile Durability durability = Durability.NONE;
+    private volatile long interval = 1000;
+    private volatile int maxPending = 256;
+    private ScheduledExecutorService executor;
+
+    Durability getDurability()
+    {
+        return durability;
+    }
+
+    synchronized void setDurability(Durability durability)
+    {
+        this.durability = durability;
+        if (durability == Durability.PERIODIC)
+        {
+            schedule();
+        } else if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+            run();
+        }
+    }
+
+    long getInterval()
+    {
+        return interval;
+    }
+
+    synchronized void setInterval(long interval)
+    {
+        this.interval = interval;
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+            schedule();
+        }
+    }
+
+    int getMaxPending()
+    {
+        return maxPending;
+    }
+
+    /**
+     * Sets how many closed channels may wait for the next run of
+     * {@link Durability#PERIODIC}.
+     */
+    void setMaxPending(int maxPending)
+    {
+        if (maxPending < 0)
+        {
+            throw new IllegalArgumentException(
+                    "Pending channels must not be negative");
+        }
+        this.maxPending = maxPending;
+    }
+
+    private void schedule()
+    {
+        if (executor != null)
+        {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor((r)
+                ->
+                {
+                    Thread t = new Thread(r, "cfs-syncer");
+                    t.setDaemon(true);
+                    return t;
+        });
+        executor.scheduleWithFixedDelay(this::run, interval, interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called after a channel for writing was opened.
+     */
+    void opened(FileChannel channel)
+    {
+        if (durability == Durability.PERIODIC)
+        {
+            open.add(channel);
+        }
+    }
+
+    /**
+     * Closes the given channel and forces it if required.
+     *
+     * @param channel the channel to close
+     * @param file the file of the channel
+     */
+    void close(FileChannel channel, Path file) throws IOException
+    {
+        boolean tracked = open.remove(channel);
+        switch (durability)
+        {
+            case ON_CLOSE:
+                try (FileChannel c = channel)
+                {
+                    force(c);
+                }
+                break;
+            case ON_CLOSE_DIRECTORY:
+                try (FileChannel c = channel)
+                {
+                    force(c);
+                }
+                forceDirectory(file.toAbsolutePath().getParent());
+                break;
+            case PERIODIC:
+                if (tracked)
+                {
+                    directories.add(file.toAbsolutePath().getParent());
+                    if (closing.size() < maxPending)
+                    {
+                        closing.add(channel);
+                        break;
+                    }
+                    try (FileChannel c = channel)
+                    {
+                        force(c);
+                    }
+                } else
+                {
+                    channel.close();
+                }
+                break;
+            default:
+                channel.close();
+        }
+    }
+
+    /**
+     * Stops the background thread and forces everything that is still
+     * pending.
+     */
+    synchronized void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+        }
+        run();
+    }
+
+    /**
+     * Called after an entry of the given directory was created or deleted.
+     */
+    void changed(Path directory) throws IOException
+    {
+        switch (durability)
+        {
+            case ON_CLOSE_DIRECTORY:
+                forceDirectory(directory);
+                break;
+            case PERIODIC:
+                directories.add(directory.toAbsolutePath());
+                break;
+            default:
+        }
+    }
+
+    private void force(FileChannel channel) throws IOException
+    {
+        try
+        {
+            channel.force(true);
+        } catch (ClosedChannelException ex)
+        {
+            //Closed by someone else, nothing to do
+        }
+    }
+
+    static void forceDirectory(Path directory)
+    {
+        if (directory == null)
+        {
+            return;
+        }
+        try (FileChannel dir = FileChannel.open(directory,
+                StandardOpenOption.READ))
+        {
+            dir.force(true);
+        } catch (IOException ex)
+        {
+            if (LOG.isDebugEnabled())
+            {
+                LOG.debug("Forcing directory {} is not supported", directory);
+            }
+        }
+    }
+
+    private void run()
+    {
+        List<FileChannel> closed = new ArrayList<>(closing);
+        closing.removeAll(closed);
+        List<Path> dirs = new ArrayList<>(directories);
+        directories.removeAll(dirs);
+        for (FileChannel channel : open)
+        {
+            try
+            {
+                force(channel);
+            } catch (IOException ex)
+            {
+                LOG.warn("Failed to force an open file", ex);
+            }
+        }
+        for (FileChannel channel : closed)
+        {
+            try (FileChannel c = channel)
+            {
+                force(c);
+            } catch (IOException ex)
+            {
+                LOG.warn("Failed to force a closed file", ex);
+            }
+        }
+        dirs.forEach(Syncer::forceDirectory);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Unbuffered outputstream for a file channel that leaves closing the channel
+ * to the {@link Syncer} of the filesystem.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class SyncingOutputStream extends OutputStream
+{
+
+    private final FileChannel channel;
+    private final Path file;
+    private final Syncer syncer;
+    private final boolean trim;
+    private boolean closed;
+
+    SyncingOutputStream(FileChannel channel, Path file, Syncer syncer)
+    {
+        this(channel, file, syncer, false);
+    }
+
+    /**
+     * @param trim {@code true} if the file was extended in advance and must
+     * be cut to the written bytes on closing
+     */
+    SyncingOutputStream(FileChannel channel, Path file, Syncer syncer,
+            boolean trim)
+    {
+        this.channel = channel;
+        this.file = file;
+        this.syncer = syncer;
+        this.trim = trim;
+        syncer.opened(channel);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[]
+        {
+            (byte) b
+        }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        while (buf.hasRemaining())
+        {
+            channel.write(buf);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            if (trim)
+            {
+                channel.truncate(channel.position());
+            }
+        } finally
+        {
+            syncer.close(channel, file);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the bytes and operations per second of one or more filesystems using
+ * token buckets. Each bucket holds up to one second of its rate. A request
+ * is granted as soon as the bucket holds enough tokens for it (or is full for
+ * requests larger than the bucket) and may drive the bucket into debt, which
+ * later requests have to wait for. {@link IOPriority#BACKGROUND Background}
+ * requests additionally have to leave a reserve of a quarter of the bucket
+ * for foreground requests, so background I/O can't use up the whole capacity.
+ * The same throttle may be shared by several filesystems.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @see ClaynFileSystem#setThrottle(Throttle)
+ */
+public final class Throttle
+{
+
+    private static final double BACKGROUND_RESERVE = 0.25;
+    private final Bucket bytes;
+    private final Bucket ops;
+
+    /**
+     * Creates a new throttle.
+     *
+     * @param bytesPerSecond the maximum number of bytes read or written per
+     * second. Values {@code <= 0} disable the limit.
+     * @param opsPerSecond the maximum number of operations per second. Every
+     * read, write or skip call and every metadata operation counts as one
+     * operation, single byte reads and writes are counted like buffered ones.
+     * Values {@code <= 0} disable the limit.
+     */
+    public Throttle(long bytesPerSecond, long opsPerSecond)
+    {
+        this.bytes = bytesPerSecond > 0 ? new Bucket(bytesPerSecond) : null;
+        this.ops = opsPerSecond > 0 ? new Bucket(opsPerSecond) : null;
+    }
+
+    /**
+     * Waits until the given amount of bytes and operations may be used.
+     */
+    void acquire(long byteCount, int opCount, IOPriority priority) throws InterruptedIOException
+    {
+        if (bytes != null && byteCount > 0)
+        {
+            bytes.acquire(byteCount, priority);
+        }
+        if (ops != null && opCount > 0)
+        {
+            ops.acquire(opCount, priority);
+        }
+    }
+
+    private static final class Bucket
+    {
+
+        private final long rate;
+        private final double capacity;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        Bucket(long rate)
+        {
+            this.rate = rate;
+            this.capacity = rate;
+            this.tokens = rate;
+        }
+
+        void acquire(long amount, IOPriority priority) throws InterruptedIOException
+        {
+            double required = Math.min(amount, capacity);
+            if (priority == IOPriority.BACKGROUND)
+            {
+                required = Math.min(required + capacity * BACKGROUND_RESERVE,
+                        capacity);
+            }
+            long wait;
+            while ((wait = tryAcquire(amount, required)) > 0)
+            {
+                LockSupport.parkNanos(this, wait);
+                if (Thread.interrupted())
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while throttled");
+                }
+            }
+        }
+
+        /**
+         * @return {@code 0} if the tokens were taken or the time in
+         * nanoseconds until enough tokens will be available
+         */
+        private synchronized long tryAcquire(long amount, double required)
+        {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - last) * rate
+                    / (double) TimeUnit.SECONDS.toNanos(1));
+            last = now;
+            if (tokens >= required)
+            {
+                tokens -= amount;
+                return 0;
+            }
+            return Math.max(1, (long) ((required - tokens)
+                    * TimeUnit.SECONDS.toNanos(1) / rate));
+        }
+    }
+}
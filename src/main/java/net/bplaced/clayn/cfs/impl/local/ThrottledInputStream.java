@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Inputstream that charges the bytes it read to the throttles of a
+ * filesystem. Reads are charged afterwards since the amount of bytes isn't
+ * known before. Every call counts as one operation, except for single byte
+ * reads which only count as one operation per {@link #SINGLE_BYTE_OPS} calls
+ * so that reading byte by byte costs the same as reading through a buffer.
+ * Skipping counts as an operation but doesn't charge bytes, since the skipped
+ * bytes are not transferred.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class ThrottledInputStream extends FilterInputStream
+{
+
+    /**
+     * Number of single byte calls that count as one operation.
+     */
+    static final int SINGLE_BYTE_OPS = 8192;
+    private final ClaynFileSystem fs;
+    private int singles;
+
+    ThrottledInputStream(InputStream in, ClaynFileSystem fs)
+    {
+        super(in);
+        this.fs = fs;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = in.read();
+        fs.throttle(b < 0 ? 0 : 1, singles++ % SINGLE_BYTE_OPS == 0 ? 1 : 0);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int read = in.read(b, off, len);
+        fs.throttle(Math.max(0, read), 1);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        fs.throttle(0, 1);
+        return in.skip(n);
+    }
+}
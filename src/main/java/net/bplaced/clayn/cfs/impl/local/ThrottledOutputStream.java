@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Outputstream that waits for the throttles of a filesystem before writing.
+ * Every call counts as one operation, except for single byte writes which
+ * only count as one operation per
+ * {@link ThrottledInputStream#SINGLE_BYTE_OPS} calls.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class ThrottledOutputStream extends FilterOutputStream
+{
+
+    private final ClaynFileSystem fs;
+    private int singles;
+
+    ThrottledOutputStream(OutputStream out, ClaynFileSystem fs)
+    {
+        super(out);
+        this.fs = fs;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        fs.throttle(1, singles++ % ThrottledInputStream.SINGLE_BYTE_OPS == 0 ? 1 : 0);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        fs.throttle(len, 1);
+        out.write(b, off, len);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies the checksums of all files in a directory tree. The tree is
+ * walked first to find the files that have to be read: files without a
+ * checksum, files whose size or modification time differ from their
+ * checksum and, for a full verification, all other files. These files are
+ * then read by a fixed number of workers like a batch. Reading is limited by
+ * the throttles of the filesystem with {@link IOPriority#BACKGROUND} and the
+ * optional throttle of the verification.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class Verifier
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(Verifier.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final ClaynFileSystem fs;
+    private final ChecksumIndex index;
+    private final Path root;
+    private final Path directory;
+    private final boolean full;
+    private final Throttle limit;
+    private final Consumer<VerifyProgress> progress;
+    private final ChecksumAlgorithm algorithm;
+    private final List<Task> tasks = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger workers = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger verified = new AtomicInteger();
+    private final AtomicInteger updated = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<String> corrupted = Collections.synchronizedList(
+            new ArrayList<>());
+    private final Map<String, IOException> errors = Collections.synchronizedMap(
+            new LinkedHashMap<>());
+    private final CompletableFuture<VerifyResult> future = new CompletableFuture<>();
+    private long totalBytes;
+    private int removed;
+
+    Verifier(ClaynFileSystem fs, ChecksumIndex index, Path root, Path directory,
+            boolean full, Throttle limit, Consumer<VerifyProgress> progress,
+            ChecksumAlgorithm algorithm)
+    {
+        this.fs = fs;
+        this.index = index;
+        this.root = root;
+        this.directory = directory;
+        this.full = full;
+        this.limit = limit;
+        this.progress = progress;
+        this.algorithm = algorithm;
+    }
+
+    CompletableFuture<VerifyResult> start(Executor executor, int concurrency)
+    {
+        try
+        {
+            executor.execute(() -> prepare(executor, concurrency));
+        } catch (RejectedExecutionException ex)
+        {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    private void prepare(Executor executor, int concurrency)
+    {
+        try
+        {
+            collect();
+        } catch (IOException | RuntimeException ex)
+        {
+            future.completeExceptionally(ex);
+            return;
+        }
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Verifying {} files with {} bytes in {}", tasks.size(),
+                    totalBytes, directory);
+        }
+        int count = Math.max(1, Math.min(concurrency, tasks.size()));
+        workers.set(count);
+        for (int i = 0; i < count; i++)
+        {
+            try
+            {
+                executor.execute(this::work);
+            } catch (RejectedExecutionException ex)
+            {
+                future.completeExceptionally(ex);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Walks the directory to find the files to read and removes the
+     * checksums of files that don't exist anymore.
+     */
+    private void collect() throws IOException
+    {
+        Set<String> seen = new HashSet<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException
+            {
+                if (!attrs.isRegularFile())
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+                String key = index.key(file);
+                seen.add(key);
+                ChecksumIndex.Entry entry = index.get(key);
+                long modified = attrs.lastModifiedTime().toMillis();
+                if (entry != null && entry.matches(attrs.size(), modified)
+                        && !full)
+                {
+                    skipped.incrementAndGet();
+                    return FileVisitResult.CONTINUE;
+                }
+                Task task = new Task(file, key, attrs.size(), modified,
+                        entry != null && entry.matches(attrs.size(), modified)
+                        ? entry : null);
+                tasks.add(task);
+                totalBytes += task.size;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc)
+            {
+                errors.put(path(file), exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (String key : index.keys(index.key(directory)))
+        {
+            if (!seen.contains(key) && !Files.exists(index.resolve(key)))
+            {
+                index.remove(key);
+                removed++;
+            }
+        }
+    }
+
+    private void work()
+    {
+        int i;
+        try
+        {
+            while (!future.isDone() && (i = next.getAndIncrement()) < tasks.size())
+            {
+                Task task = tasks.get(i);
+                try
+                {
+                    verify(task);
+                } catch (IOException ex)
+                {
+                    if (LOG.isDebugEnabled())
+                    {
+                        LOG.debug("Failed to verify {}", task.file, ex);
+                    }
+                    errors.put(path(task.file), ex);
+                }
+                if (progress != null)
+                {
+                    progress.accept(new VerifyProgress(done.incrementAndGet(),
+                            tasks.size(), bytes.get(), totalBytes));
+                }
+            }
+        } catch (RuntimeException ex)
+        {
+            future.completeExceptionally(ex);
+        }
+        if (workers.decrementAndGet() == 0)
+        {
+            future.complete(new VerifyResult(verified.get(), updated.get(),
+                    skipped.get(), removed, bytes.get(),
+                    new ArrayList<>(corrupted), new LinkedHashMap<>(errors)));
+        }
+    }
+
+    private void verify(Task task) throws IOException
+    {
+        ChecksumAlgorithm used = task.entry == null ? algorithm : task.entry.algorithm;
+        ChecksumAlgorithm.Hasher hasher = used.newHasher();
+        acquire(0, 1);
+        try (InputStream in = Files.newInputStream(task.file))
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+            {
+                hasher.update(buffer, 0, read);
+                bytes.addAndGet(read);
+                acquire(read, 0);
+            }
+        }
+        BasicFileAttributes attrs = Files.readAttributes(task.file,
+                BasicFileAttributes.class);
+        if (attrs.size() != task.size
+                || attrs.lastModifiedTime().toMillis() != task.lastModified)
+        {
+            skipped.incrementAndGet();
+            return;
+        }
+        String value = hasher.finish();
+        if (task.entry == null)
+        {
+            index.put(task.key, new ChecksumIndex.Entry(used, task.size,
+                    task.lastModified, value));
+            updated.incrementAndGet();
+        } else if (task.entry.value.equals(value))
+        {
+            verified.incrementAndGet();
+        } else
+        {
+            LOG.warn("Checksum of {} doesn't match", task.file);
+            corrupted.add(path(task.file));
+        }
+    }
+
+    private void acquire(long n, int ops) throws IOException
+    {
+        fs.throttle(n, ops, IOPriority.BACKGROUND);
+        if (limit != null)
+        {
+            limit.acquire(n, ops, IOPriority.BACKGROUND);
+        }
+    }
+
+    private String path(Path file)
+    {
+        return "/" + root.relativize(file).toString().replace(
+                root.getFileSystem().getSeparator(), "/");
+    }
+
+    private static final class Task
+    {
+
+        private final Path file;
+        private final String key;
+        private final long size;
+        private final long lastModified;
+        private final ChecksumIndex.Entry entry;
+
+        /**
+         * @param entry the checksum to compare with or {@code null} to
+         * compute a new one
+         */
+        Task(Path file, String key, long size, long lastModified,
+                ChecksumIndex.Entry entry)
+        {
+            this.file = file;
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.entry = entry;
+        }
+    }
+}
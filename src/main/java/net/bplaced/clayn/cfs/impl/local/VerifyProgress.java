@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+/**
+ * The progress of a running {@link ClaynFileSystem#verify(java.lang.String,
+ * boolean, Throttle, java.util.function.Consumer) verification}. Only files
+ * that have to be read are counted.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public final class VerifyProgress
+{
+
+    private final int files;
+    private final int totalFiles;
+    private final long bytes;
+    private final long totalBytes;
+
+    VerifyProgress(int files, int totalFiles, long bytes, long totalBytes)
+    {
+        this.files = files;
+        this.totalFiles = totalFiles;
+        this.bytes = bytes;
+        this.totalBytes = totalBytes;
+    }
+
+    public int getFiles()
+    {
+        return files;
+    }
+
+    public int getTotalFiles()
+    {
+        return totalFiles;
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return files + "/" + totalFiles + " files, " + bytes + "/" + totalBytes
+                + " bytes";
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a {@link ClaynFileSystem#verify(java.lang.String, boolean,
+ * Throttle, java.util.function.Consumer) verification}. Paths are relative
+ * to the root of the filesystem that was verified.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public final class VerifyResult
+{
+
+    private final int verified;
+    private final int updated;
+    private final int skipped;
+    private final int removed;
+    private final long bytes;
+    private final List<String> corrupted;
+    private final Map<String, IOException> errors;
+
+    VerifyResult(int verified, int updated, int skipped, int removed,
+            long bytes, List<String> corrupted, Map<String, IOException> errors)
+    {
+        this.verified = verified;
+        this.updated = updated;
+        this.skipped = skipped;
+        this.removed = removed;
+        this.bytes = bytes;
+        this.corrupted = corrupted;
+        this.errors = errors;
+    }
+
+    /**
+     * Returns the number of files that were read and matched their checksum.
+     *
+     * @return the number of intact files
+     */
+    public int getVerified()
+    {
+        return verified;
+    }
+
+    /**
+     * Returns the number of files that had no checksum or were changed
+     * without this filesystem and got a new checksum.
+     *
+     * @return the number of new checksums
+     */
+    public int getUpdated()
+    {
+        return updated;
+    }
+
+    /**
+     * Returns the number of files that weren't read, because they are
+     * unchanged and only changed files were verified or because they changed
+     * while being read.
+     *
+     * @return the number of skipped files
+     */
+    public int getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * Returns the number of checksums that were removed because their file
+     * doesn't exist anymore.
+     *
+     * @return the number of removed checksums
+     */
+    public int getRemoved()
+    {
+        return removed;
+    }
+
+    /**
+     * Returns the number of bytes read.
+     *
+     * @return the number of bytes
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns the files whose content doesn't match their checksum although
+     * their size and modification time didn't change.
+     *
+     * @return the paths of the corrupted files
+     */
+    public List<String> getCorrupted()
+    {
+        return corrupted;
+    }
+
+    /**
+     * Returns the files that couldn't be read.
+     *
+     * @return the paths of the files and the exception
+     */
+    public Map<String, IOException> getErrors()
+    {
+        return errors;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "verified=" + verified + ", updated=" + updated + ", skipped="
+                + skipped + ", removed=" + removed + ", corrupted="
+                + corrupted + ", errors=" + errors.keySet();
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import net.bplaced.clayn.cfs.FileModification;
+import net.bplaced.clayn.cfs.SimpleFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the changes of a directory to its {@link WatchSubscriber
+ * subscribers}. Every subscriber has its own bounded buffer and gets its
+ * changes on its own executor, so a slow subscriber only delays itself unless
+ * it uses {@link OverflowStrategy#BLOCK}. Changes are delivered by a single
+ * task per subscriber at a time that runs as long as there are buffered and
+ * requested changes.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+final class WatchPublisher
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            WatchPublisher.class);
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    void subscribe(WatchSubscriber subscriber, Executor executor,
+            int bufferSize, OverflowStrategy overflow)
+    {
+        if (subscriber == null || executor == null || overflow == null)
+        {
+            throw new NullPointerException();
+        }
+        if (bufferSize <= 0)
+        {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        Subscription s = new Subscription(subscriber, executor, bufferSize,
+                overflow);
+        subscriptions.add(s);
+        s.schedule();
+    }
+
+    boolean hasSubscribers()
+    {
+        return !subscriptions.isEmpty();
+    }
+
+    void publish(SimpleFile file, FileModification.Modification mod, long time)
+    {
+        for (Subscription s : subscriptions)
+        {
+            s.offer(new Event(file, mod, time));
+        }
+    }
+
+    /**
+     * Completes all subscriptions once their buffered changes were
+     * delivered.
+     */
+    void complete()
+    {
+        for (Subscription s : subscriptions)
+        {
+            s.terminate(null);
+        }
+    }
+
+    /**
+     * Ends all subscriptions with the given error once their buffered
+     * changes were delivered. Subscribing again afterwards is possible.
+     */
+    void fail(Throwable error)
+    {
+        for (Subscription s : subscriptions)
+        {
+            s.terminate(error);
+        }
+    }
+
+    /**
+     * Merges two changes of the same file.
+     *
+     * @return the merged change or {@code null} if the changes cancel each
+     * other out
+     */
+    private static FileModification.Modification merge(
+            FileModification.Modification old, FileModification.Modification mod)
+    {
+        if (old == FileModification.Modification.CREATE)
+        {
+            return mod == FileModification.Modification.DELETE ? null : old;
+        }
+        if (old == FileModification.Modification.DELETE
+                && mod == FileModification.Modification.CREATE)
+        {
+            return FileModification.Modification.MODIFY;
+        }
+        return mod;
+    }
+
+    private static final class Event
+    {
+
+        private final SimpleFile file;
+        private final FileModification.Modification mod;
+        private final long time;
+
+        Event(SimpleFile file, FileModification.Modification mod, long time)
+        {
+            this.file = file;
+            this.mod = mod;
+            this.time = time;
+        }
+    }
+
+    private final class Subscription implements WatchSubscription
+    {
+
+        private final WatchSubscriber subscriber;
+        private final Executor executor;
+        private final int capacity;
+        private final OverflowStrategy overflow;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        private final ArrayDeque<Event> queue;
+        private final LinkedHashMap<String, Event> coalesced;
+        private final AtomicInteger wip = new AtomicInteger();
+        private long demand;
+        private long dropped;
+        private boolean subscribed;
+        private boolean cancelled;
+        private boolean completed;
+        private Throwable completion;
+        private boolean done;
+        private Throwable error;
+
+        Subscription(WatchSubscriber subscriber, Executor executor,
+                int capacity, OverflowStrategy overflow)
+        {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.capacity = capacity;
+            this.overflow = overflow;
+            boolean coalesce = overflow == OverflowStrategy.COALESCE;
+            this.queue = coalesce ? null : new ArrayDeque<>();
+            this.coalesced = coalesce ? new LinkedHashMap<>() : null;
+        }
+
+        private int size()
+        {
+            return queue != null ? queue.size() : coalesced.size();
+        }
+
+        private Event poll()
+        {
+            if (queue != null)
+            {
+                return queue.pollFirst();
+            }
+            Iterator<Event> it = coalesced.values().iterator();
+            Event e = it.next();
+            it.remove();
+            return e;
+        }
+
+        private void clear()
+        {
+            if (queue != null)
+            {
+                queue.clear();
+            } else
+            {
+                coalesced.clear();
+            }
+            notFull.signalAll();
+        }
+
+        void offer(Event e)
+        {
+            lock.lock();
+            try
+            {
+                if (cancelled || done || completed)
+                {
+                    return;
+                }
+                if (coalesced != null)
+                {
+                    offerCoalesced(e);
+                } else
+                {
+                    while (queue.size() >= capacity
+                            && overflow == OverflowStrategy.BLOCK
+                            && !cancelled && !completed && !done)
+                    {
+                        try
+                        {
+                            notFull.await();
+                        } catch (InterruptedException ex)
+                        {
+                            Thread.currentThread().interrupt();
+                            dropped++;
+                            return;
+                        }
+                    }
+                    if (cancelled || completed || done)
+                    {
+                        return;
+                    }
+                    if (queue.size() >= capacity)
+                    {
+                        queue.pollFirst();
+                        dropped++;
+                    }
+                    queue.addLast(e);
+                }
+            } finally
+            {
+                lock.unlock();
+            }
+            schedule();
+        }
+
+        private void offerCoalesced(Event e)
+        {
+            String key = e.file.getPath();
+            Event old = coalesced.get(key);
+            if (old != null)
+            {
+                FileModification.Modification mod = merge(old.mod, e.mod);
+                if (mod == null)
+                {
+                    coalesced.remove(key);
+                } else
+                {
+                    coalesced.put(key, new Event(e.file, mod, e.time));
+                }
+                return;
+            }
+            if (coalesced.size() >= capacity)
+            {
+                poll();
+                dropped++;
+            }
+            coalesced.put(key, e);
+        }
+
+        void terminate(Throwable cause)
+        {
+            lock.lock();
+            try
+            {
+                if (!completed)
+                {
+                    completed = true;
+                    completion = cause;
+                }
+                notFull.signalAll();
+            } finally
+            {
+                lock.unlock();
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n)
+        {
+            lock.lock();
+            try
+            {
+                if (n <= 0)
+                {
+                    if (error == null)
+                    {
+                        error = new IllegalArgumentException(
+                                "Requested changes must be positive");
+                    }
+                } else
+                {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            } finally
+            {
+                lock.unlock();
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel()
+        {
+            lock.lock();
+            try
+            {
+                cancelled = true;
+                clear();
+            } finally
+            {
+                lock.unlock();
+            }
+            schedule();
+        }
+
+        @Override
+        public long getDropped()
+        {
+            lock.lock();
+            try
+            {
+                return dropped;
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+
+        void schedule()
+        {
+            if (wip.getAndIncrement() != 0)
+            {
+                return;
+            }
+            try
+            {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException ex)
+            {
+                LOG.warn("Executor rejected delivery of changes, cancelling subscription",
+                        ex);
+                lock.lock();
+                try
+                {
+                    cancelled = true;
+                    done = true;
+                    clear();
+                } finally
+                {
+                    lock.unlock();
+                }
+                subscriptions.remove(this);
+            }
+        }
+
+        private void drain()
+        {
+            int missed = 1;
+            do
+            {
+                if (!subscribed)
+                {
+                    subscribed = true;
+                    try
+                    {
+                        subscriber.onSubscribe(this);
+                    } catch (RuntimeException ex)
+                    {
+                        fail(ex);
+                    }
+                }
+                deliver();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliver()
+        {
+            while (true)
+            {
+                Event e = null;
+                Throwable err = null;
+                boolean complete = false;
+                lock.lock();
+                try
+                {
+                    if (done)
+                    {
+                        return;
+                    }
+                    if (error != null || cancelled)
+                    {
+                        err = cancelled ? null : error;
+                        done = true;
+                        clear();
+                    } else if (size() == 0)
+                    {
+                        done = completed;
+                        complete = completed;
+                        err = completion;
+                    } else if (demand > 0)
+                    {
+                        e = poll();
+                        if (demand != Long.MAX_VALUE)
+                        {
+                            demand--;
+                        }
+                        notFull.signalAll();
+                    }
+                } finally
+                {
+                    lock.unlock();
+                }
+                if (done)
+                {
+                    subscriptions.remove(this);
+                    signal(err, complete);
+                    return;
+                }
+                if (e == null)
+                {
+                    return;
+                }
+                try
+                {
+                    subscriber.onNext(new FileModification(e.file, e.mod,
+                            e.time));
+                } catch (RuntimeException ex)
+                {
+                    fail(ex);
+                }
+            }
+        }
+
+        private void signal(Throwable err, boolean complete)
+        {
+            try
+            {
+                if (err != null)
+                {
+                    subscriber.onError(err);
+                } else if (complete)
+                {
+                    subscriber.onComplete();
+                }
+            } catch (RuntimeException ex)
+            {
+                LOG.warn("Subscriber failed to handle the end of its subscription",
+                        ex);
+            }
+        }
+
+        private void fail(Throwable ex)
+        {
+            lock.lock();
+            try
+            {
+                if (error == null)
+                {
+                    error = ex;
+                }
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import net.bplaced.clayn.cfs.FileModification;
+
+/**
+ * Receives the changes of an activated {@link CFSDirectoryImpl directory}.
+ * The methods of a subscriber are never called concurrently and only on the
+ * executor given when subscribing. {@link #onNext(FileModification)} is only
+ * called as often as requested through the subscription.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ * @see CFSDirectoryImpl#subscribe(WatchSubscriber, java.util.concurrent.Executor, int, OverflowStrategy)
+ */
+public interface WatchSubscriber
+{
+
+    /**
+     * Called once before any other method. No changes are delivered until
+     * they are {@link WatchSubscription#request(long) requested}.
+     *
+     * @param subscription the subscription of this subscriber
+     */
+    void onSubscribe(WatchSubscription subscription);
+
+    /**
+     * Called for every requested change.
+     *
+     * @param modification the change
+     */
+    void onNext(FileModification modification);
+
+    /**
+     * Called if the subscription ended because of an error, e.g. because
+     * {@link #onNext(FileModification)} threw an exception or the directory
+     * can't be watched anymore because it got deleted. In the latter case a
+     * new subscription can be made once the directory was created and
+     * activated again. No more methods get called afterwards.
+     *
+     * @param error the error
+     */
+    default void onError(Throwable error)
+    {
+    }
+
+    /**
+     * Called if the filesystem got closed while the directory was active. No
+     * more methods get called afterwards.
+     */
+    default void onComplete()
+    {
+    }
+}
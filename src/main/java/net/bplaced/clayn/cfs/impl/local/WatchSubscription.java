@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+/**
+ * Connection between an activated {@link CFSDirectoryImpl directory} and a
+ * {@link WatchSubscriber}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ * @since 0.3.0
+ */
+public interface WatchSubscription
+{
+
+    /**
+     * Requests the given number of changes. Requests add up. Changes that
+     * occur while nothing is requested are buffered.
+     *
+     * @param n the number of changes. Must be positive, otherwise the
+     * subscription gets cancelled with an error.
+     */
+    void request(long n);
+
+    /**
+     * Stops the delivery of changes. Buffered changes are discarded.
+     */
+    void cancel();
+
+    /**
+     * Returns the number of changes that were discarded because the buffer
+     * was full.
+     *
+     * @return the number of discarded changes
+     */
+    long getDropped();
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the operations run by {@link BatchRunner}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class BatchRunnerTest
+{
+
+    private File root;
+    private ClaynFileSystem fs;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = LocalBaseTest.newFolder();
+        fs = new ClaynFileSystem(root);
+    }
+
+    private List<BatchResult> run(BatchOperation... ops)
+    {
+        List<BatchResult> results = fs.submitBatch(Arrays.asList(ops)).join();
+        for (BatchResult r : results)
+        {
+            assertTrue(r.toString(), r.isSuccess());
+        }
+        return results;
+    }
+
+    @Test
+    public void testDeleteFile() throws Exception
+    {
+        run(BatchOperation.mkDirs("dir"));
+        run(BatchOperation.write("dir/file", new byte[3]));
+        assertTrue(new File(root, "dir/file").isFile());
+        run(BatchOperation.delete("dir/file"));
+        assertFalse(new File(root, "dir/file").exists());
+        assertTrue(new File(root, "dir").isDirectory());
+    }
+
+    @Test
+    public void testDeleteDirectory() throws Exception
+    {
+        run(BatchOperation.mkDirs("dir/sub"));
+        run(BatchOperation.create("dir/sub/file"));
+        run(BatchOperation.delete("dir"));
+        assertFalse(new File(root, "dir").exists());
+    }
+
+    @Test
+    public void testStatKeepsOrder() throws Exception
+    {
+        List<BatchOperation> writes = new ArrayList<>();
+        List<BatchOperation> stats = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            writes.add(BatchOperation.write("file" + i, new byte[i]));
+            stats.add(BatchOperation.stat("file" + i));
+        }
+        stats.add(BatchOperation.stat("missing"));
+        fs.setBatchConcurrency(4);
+        run(writes.toArray(new BatchOperation[writes.size()]));
+        List<BatchResult> results = run(stats.toArray(
+                new BatchOperation[stats.size()]));
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals(i, results.get(i).getSize());
+        }
+        assertEquals(-1, results.get(50).getSize());
+    }
+
+    @Test
+    public void testFailureDoesNotAffectOthers() throws Exception
+    {
+        List<BatchResult> results = fs.submitBatch(Arrays.asList(
+                BatchOperation.write("missing/file", new byte[1]),
+                BatchOperation.write("file", new byte[1]))).join();
+        assertFalse(results.get(0).isSuccess());
+        assertTrue(results.get(1).isSuccess());
+        assertEquals(1, new File(root, "file").length());
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.Checksum;
+import net.bplaced.clayn.cfs.SimpleFile;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the {@link Crc32c} checksum, the persistence of the
+ * {@link ChecksumIndex} and the {@link Verifier}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class ChecksumTest
+{
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = LocalBaseTest.newFolder();
+    }
+
+    private static long crc(Checksum checksum, byte[] data, int off, int len)
+    {
+        checksum.reset();
+        checksum.update(data, off, len);
+        return checksum.getValue();
+    }
+
+    private static byte[] filled(int length, int value)
+    {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    @Test
+    public void testCrc32cVectors()
+    {
+        for (Checksum checksum : new Checksum[]
+        {
+            new Crc32c(), Crc32c.create()
+        })
+        {
+            byte[] digits = "123456789".getBytes(StandardCharsets.US_ASCII);
+            assertEquals(0xe3069283L, crc(checksum, digits, 0, digits.length));
+            assertEquals(0x8a9136aaL, crc(checksum, filled(32, 0), 0, 32));
+            assertEquals(0x62a8ab43L, crc(checksum, filled(32, 0xff), 0, 32));
+            checksum.reset();
+            for (byte b : digits)
+            {
+                checksum.update(b);
+            }
+            assertEquals(0xe3069283L, checksum.getValue());
+        }
+    }
+
+    @Test
+    public void testCombine()
+    {
+        byte[] data = new byte[10000];
+        new Random(42).nextBytes(data);
+        Checksum checksum = new Crc32c();
+        long whole = crc(checksum, data, 0, data.length);
+        for (int cut : new int[]
+        {
+            0, 1, 7, 4096, 9999, 10000
+        })
+        {
+            long first = crc(checksum, data, 0, cut);
+            long second = crc(checksum, data, cut, data.length - cut);
+            assertEquals("Cut at " + cut, whole, Crc32c.combine(first, second,
+                    data.length - cut));
+        }
+    }
+
+    @Test
+    public void testJournalRoundTrip() throws Exception
+    {
+        ChecksumIndex index = new ChecksumIndex(root);
+        index.put("a", new ChecksumIndex.Entry(ChecksumAlgorithm.CRC32C, 3, 10,
+                "0000abcd"));
+        index.put("dir/with space\nand\\slash", new ChecksumIndex.Entry(
+                ChecksumAlgorithm.SHA_256, 5, 20, "ff"));
+        index.put("removed", new ChecksumIndex.Entry(ChecksumAlgorithm.CRC32C,
+                1, 1, "00000001"));
+        index.remove("removed");
+        index.put("a", new ChecksumIndex.Entry(ChecksumAlgorithm.CRC32C, 4, 11,
+                "0000abce"));
+        index.close();
+
+        ChecksumIndex loaded = new ChecksumIndex(root);
+        ChecksumIndex.Entry a = loaded.get("a");
+        assertEquals(ChecksumAlgorithm.CRC32C, a.algorithm);
+        assertTrue(a.matches(4, 11));
+        assertEquals("0000abce", a.value);
+        ChecksumIndex.Entry escaped = loaded.get("dir/with space\nand\\slash");
+        assertEquals(ChecksumAlgorithm.SHA_256, escaped.algorithm);
+        assertEquals("ff", escaped.value);
+        assertNull(loaded.get("removed"));
+        assertEquals(Collections.singletonList("dir/with space\nand\\slash"),
+                loaded.keys("dir"));
+        loaded.close();
+    }
+
+    @Test
+    public void testJournalGetsCompacted() throws Exception
+    {
+        ChecksumIndex index = new ChecksumIndex(root);
+        for (int i = 0; i < 2000; i++)
+        {
+            index.put("a", new ChecksumIndex.Entry(ChecksumAlgorithm.CRC32C, i,
+                    i, "00000000"));
+        }
+        index.close();
+        assertEquals(2000, Files.readAllLines(index.getFile()).size());
+        ChecksumIndex loaded = new ChecksumIndex(root);
+        assertTrue(loaded.get("a").matches(1999, 1999));
+        loaded.close();
+        assertEquals(1, Files.readAllLines(index.getFile()).size());
+    }
+
+    private static void write(SimpleFile file, String content) throws Exception
+    {
+        try (OutputStream out = file.openWrite())
+        {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testVerifierFindsCorruption() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setChecksumAlgorithm(ChecksumAlgorithm.CRC32C);
+        write(fs.getRoot().getFile("intact"), "intact content");
+        SimpleFile file = fs.getRoot().getFile("corrupt");
+        write(file, "some content");
+        File real = ((CFSSimpleFileImpl) file).getFile();
+        long modified = real.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(real, "rw"))
+        {
+            raf.seek(3);
+            raf.write('X');
+        }
+        assertTrue(real.setLastModified(modified));
+
+        VerifyResult quick = fs.verify("", false, null, null).get();
+        assertEquals(2, quick.getSkipped());
+        assertTrue(quick.getCorrupted().isEmpty());
+
+        VerifyResult full = fs.verify("", true, null, null).get();
+        assertEquals(1, full.getVerified());
+        assertEquals(Collections.singletonList("/corrupt"), full.getCorrupted());
+        fs.close();
+    }
+
+    @Test
+    public void testSnapshotsHaveTheirOwnIndex() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setChecksumAlgorithm(ChecksumAlgorithm.CRC32C);
+        fs.getDirectory("dir").mkDirs();
+        write(fs.getDirectory("dir").getFile("a"), "content");
+        ClaynFileSystem snapshot = fs.snapshot("dir", "snap");
+        assertEquals(Collections.singletonList("snap"), fs.listSnapshots());
+
+        VerifyResult result = snapshot.verify("", true, null, null).get();
+        assertEquals(1, result.getVerified());
+        assertEquals(0, result.getUpdated());
+        snapshot.close();
+
+        ChecksumIndex own = new ChecksumIndex(root);
+        assertEquals(Collections.singletonList("dir/a"), own.keys(""));
+        own.close();
+        File index = new ChecksumIndex(new File(root.getParentFile(),
+                root.getName() + ".snapshots/snap"), true).getFile().toFile();
+        assertTrue(index.isFile());
+        fs.deleteSnapshot("snap");
+        assertFalse(index.exists());
+        fs.close();
+    }
+}
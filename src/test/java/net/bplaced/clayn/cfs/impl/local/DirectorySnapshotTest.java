@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.bplaced.clayn.cfs.FileModification;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link ClaynFileSystem#replayState(java.io.File)} reports the
+ * changes made after {@link ClaynFileSystem#saveState(java.io.File)}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class DirectorySnapshotTest
+{
+
+    private File root;
+    private File state;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = LocalBaseTest.newFolder();
+        state = new File(LocalBaseTest.newFolder(), "state");
+    }
+
+    private static Map<String, FileModification.Modification> replay(
+            File root, File state, boolean full) throws Exception
+    {
+        Map<String, FileModification.Modification> changes = new ConcurrentHashMap<>();
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        CFSDirectoryImpl dir = (CFSDirectoryImpl) fs.getDirectory("watched");
+        dir.subscribe(new WatchSubscriber()
+        {
+            @Override
+            public void onSubscribe(WatchSubscription subscription)
+            {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(FileModification mod)
+            {
+                changes.put(mod.getFile().getName(), mod.getModification());
+            }
+        }, Runnable::run);
+        dir.activate();
+        try
+        {
+            fs.replayState(state, full);
+        } finally
+        {
+            fs.close();
+        }
+        return changes;
+    }
+
+    private static void save(File root, File state) throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.getDirectory("watched").activate();
+        fs.saveState(state);
+        fs.close();
+    }
+
+    private static void touch(File file, long modified) throws Exception
+    {
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(modified));
+    }
+
+    @Test
+    public void testReplayFindsChangedFiles() throws Exception
+    {
+        File watched = new File(root, "watched");
+        watched.mkdirs();
+        Files.write(new File(watched, "same").toPath(), new byte[3]);
+        Files.write(new File(watched, "edited").toPath(), new byte[3]);
+        Files.write(new File(watched, "deleted").toPath(), new byte[3]);
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.getDirectory("watched").activate();
+        fs.saveState(state);
+        fs.close();
+
+        long dirModified = watched.lastModified();
+        File edited = new File(watched, "edited");
+        Files.write(edited.toPath(), new byte[]
+        {
+            1, 2, 3
+        });
+        Files.setLastModifiedTime(edited.toPath(), FileTime.fromMillis(
+                edited.lastModified() + 10_000));
+        watched.setLastModified(dirModified);
+
+        Map<String, FileModification.Modification> changes = replay(root, state,
+                true);
+        assertEquals(changes.toString(), 1, changes.size());
+        assertEquals(FileModification.Modification.MODIFY, changes.get("edited"));
+
+        Files.delete(new File(watched, "deleted").toPath());
+        Files.write(new File(watched, "created").toPath(), new byte[1]);
+        changes = replay(root, state, false);
+        assertEquals(changes.toString(), 3, changes.size());
+        assertEquals(FileModification.Modification.DELETE, changes.get("deleted"));
+        assertEquals(FileModification.Modification.CREATE, changes.get("created"));
+    }
+
+    /**
+     * Directories whose modification time didn't change are not listed, so
+     * a file edited in place is only found by a full comparison.
+     */
+    @Test
+    public void testUnchangedDirectoriesAreSkipped() throws Exception
+    {
+        File watched = new File(root, "watched");
+        File sub = new File(watched, "sub");
+        sub.mkdirs();
+        File edited = new File(sub, "edited");
+        Files.write(edited.toPath(), new byte[3]);
+        long old = System.currentTimeMillis() - 60_000;
+        touch(sub, old);
+        touch(watched, old);
+        save(root, state);
+
+        Files.write(edited.toPath(), new byte[5]);
+        touch(sub, old);
+        assertEquals(0, replay(root, state, false).size());
+        assertEquals(FileModification.Modification.MODIFY, replay(root, state,
+                true).get("edited"));
+
+        Files.write(new File(sub, "created").toPath(), new byte[1]);
+        Map<String, FileModification.Modification> changes = replay(root, state,
+                false);
+        assertEquals(changes.toString(), 2, changes.size());
+        assertEquals(FileModification.Modification.CREATE, changes.get("created"));
+        assertEquals(FileModification.Modification.MODIFY, changes.get("edited"));
+    }
+
+    @Test
+    public void testSubtreesAreCompared() throws Exception
+    {
+        File watched = new File(root, "watched");
+        File removed = new File(watched, "removed/deeper");
+        removed.mkdirs();
+        Files.write(new File(removed, "gone").toPath(), new byte[1]);
+        Files.write(new File(watched, "removed/also-gone").toPath(), new byte[1]);
+        save(root, state);
+
+        Files.delete(new File(removed, "gone").toPath());
+        Files.delete(removed.toPath());
+        Files.delete(new File(watched, "removed/also-gone").toPath());
+        Files.delete(new File(watched, "removed").toPath());
+        File added = new File(watched, "added/deeper");
+        added.mkdirs();
+        Files.write(new File(added, "new").toPath(), new byte[1]);
+
+        Map<String, FileModification.Modification> changes = replay(root, state,
+                false);
+        assertEquals(changes.toString(), 3, changes.size());
+        assertEquals(FileModification.Modification.DELETE, changes.get("gone"));
+        assertEquals(FileModification.Modification.DELETE, changes.get(
+                "also-gone"));
+        assertEquals(FileModification.Modification.CREATE, changes.get("new"));
+    }
+
+    @Test
+    public void testStateIsSavedOnClose() throws Exception
+    {
+        File watched = new File(root, "watched");
+        watched.mkdirs();
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setStateFile(state);
+        fs.getDirectory("watched").activate();
+        fs.close();
+        assertTrue(state.isFile());
+
+        Files.write(new File(watched, "created").toPath(), new byte[1]);
+        assertEquals(FileModification.Modification.CREATE, replay(root, state,
+                false).get("created"));
+    }
+}
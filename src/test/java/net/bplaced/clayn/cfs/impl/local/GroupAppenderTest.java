@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link GroupAppender appenders} write whole records in order
+ * and complete their futures.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class GroupAppenderTest
+{
+
+    private File root;
+    private ClaynFileSystem fs;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = LocalBaseTest.newFolder();
+        fs = new ClaynFileSystem(root);
+        fs.setAppendBatchSize(256);
+    }
+
+    private GroupAppender appender(ClaynFileSystem system, String name) throws Exception
+    {
+        return ((CFSSimpleFileImpl) system.getRoot().getFile(name)).getAppender();
+    }
+
+    @Test
+    public void testRecordsAreWholeAndOrdered() throws Exception
+    {
+        int threads = 4;
+        int records = 500;
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            int id = t;
+            Thread w = new Thread(() ->
+            {
+                try (GroupAppender appender = appender(fs, "log"))
+                {
+                    CompletableFuture<Void> last = null;
+                    for (int i = 0; i < records; i++)
+                    {
+                        last = appender.append((id + ":" + i + "\n").getBytes(
+                                StandardCharsets.UTF_8));
+                    }
+                    last.get(10, TimeUnit.SECONDS);
+                } catch (Exception ex)
+                {
+                    synchronized (errors)
+                    {
+                        errors.add(ex);
+                    }
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers)
+        {
+            w.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        List<String> lines = Files.readAllLines(new File(root, "log").toPath(),
+                StandardCharsets.UTF_8);
+        assertEquals(threads * records, lines.size());
+        int[] next = new int[threads];
+        for (String line : lines)
+        {
+            String[] parts = line.split(":");
+            assertEquals(2, parts.length);
+            int id = Integer.parseInt(parts[0]);
+            assertEquals(next[id]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    @Test
+    public void testDurableRecordCompletes() throws Exception
+    {
+        try (GroupAppender appender = appender(fs, "durable"))
+        {
+            appender.append("a".getBytes(StandardCharsets.UTF_8), true).get(10,
+                    TimeUnit.SECONDS);
+        }
+        assertEquals(1, new File(root, "durable").length());
+    }
+
+    @Test
+    public void testAppendAfterCloseFails() throws Exception
+    {
+        GroupAppender appender = appender(fs, "closed");
+        appender.close();
+        try
+        {
+            appender.append(new byte[1]).get(10, TimeUnit.SECONDS);
+            fail("Appending to a closed appender succeeded");
+        } catch (ExecutionException ex)
+        {
+            assertTrue(ex.getCause() instanceof java.io.IOException);
+        }
+    }
+
+    /**
+     * The last appender gets closed without waiting for its records, so the
+     * next appender replaces a queue that is still writing.
+     */
+    @Test
+    public void testReopenKeepsOrder() throws Exception
+    {
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < 100; i++)
+        {
+            try (GroupAppender appender = appender(fs, "reopened"))
+            {
+                last = appender.append((i + "\n").getBytes(
+                        StandardCharsets.UTF_8));
+            }
+        }
+        last.get(10, TimeUnit.SECONDS);
+        List<String> lines = Files.readAllLines(new File(root, "reopened")
+                .toPath(), StandardCharsets.UTF_8);
+        assertEquals(100, lines.size());
+        for (int i = 0; i < lines.size(); i++)
+        {
+            assertEquals(String.valueOf(i), lines.get(i));
+        }
+    }
+
+    @Test
+    public void testSubFileSystemSharesQueue() throws Exception
+    {
+        ClaynFileSystem sub = (ClaynFileSystem) fs.subFileSystem("sub");
+        try (GroupAppender a = appender(sub, "shared");
+                GroupAppender b = ((CFSSimpleFileImpl) fs.getDirectory("sub").getFile(
+                        "shared")).getAppender())
+        {
+            a.append(new byte[1]).get(10, TimeUnit.SECONDS);
+            b.append(new byte[1]).get(10, TimeUnit.SECONDS);
+            int writers = 0;
+            for (Thread t : Thread.getAllStackTraces().keySet())
+            {
+                if (t.getName().equals("cfs-appender-shared"))
+                {
+                    writers++;
+                }
+            }
+            assertEquals(1, writers);
+        }
+        assertEquals(2, new File(root, "sub/shared").length());
+    }
+}
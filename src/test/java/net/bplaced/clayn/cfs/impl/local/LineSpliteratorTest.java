@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the records returned by {@link LineSpliterator} and the fallback for
+ * charsets it doesn't support.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class LineSpliteratorTest
+{
+
+    private ClaynFileSystem fs;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        fs = new ClaynFileSystem(LocalBaseTest.newFolder());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        fs.close();
+    }
+
+    private CFSSimpleFileImpl file(String content, Charset charset)
+            throws Exception
+    {
+        CFSDirectoryImpl dir = (CFSDirectoryImpl) fs.getRoot();
+        File real = new File(dir.getDirectory(), "data-" + charset.name());
+        Files.write(real.toPath(), content.getBytes(charset));
+        return new CFSSimpleFileImpl(real.toPath(), dir, charset);
+    }
+
+    private static List<String> collect(Stream<String> stream)
+    {
+        try (Stream<String> s = stream)
+        {
+            return s.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testSupportedCharsets()
+    {
+        assertTrue(LineSpliterator.supports(StandardCharsets.UTF_8, '\n'));
+        assertTrue(LineSpliterator.supports(StandardCharsets.US_ASCII, '\n'));
+        assertTrue(LineSpliterator.supports(StandardCharsets.ISO_8859_1, ';'));
+        assertTrue(LineSpliterator.supports(Charset.forName("ISO-8859-15"),
+                '\n'));
+        assertFalse(LineSpliterator.supports(StandardCharsets.UTF_16, '\n'));
+        assertFalse(LineSpliterator.supports(StandardCharsets.UTF_16LE, '\n'));
+        assertFalse(LineSpliterator.supports(Charset.forName("Shift_JIS"),
+                '\\'));
+        assertFalse(LineSpliterator.supports(StandardCharsets.UTF_8, 'ä'));
+    }
+
+    @Test
+    public void testLines() throws Exception
+    {
+        CFSSimpleFileImpl file = file("a\r\nb\n\r\nc\rd\n", StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("a", "b", "", "c\rd"), collect(file.lines()));
+        assertEquals(Arrays.asList("a\r", "b", "\r", "c\rd"), collect(
+                file.records('\n')));
+    }
+
+    @Test
+    public void testTrailingSeparator() throws Exception
+    {
+        assertEquals(Arrays.asList("a", "b"), collect(file("a;b;",
+                StandardCharsets.UTF_8).records(';')));
+        assertEquals(Arrays.asList("a", "b"), collect(file("a;b",
+                StandardCharsets.UTF_8).records(';')));
+        assertEquals(Arrays.asList("a", ""), collect(file("a;;",
+                StandardCharsets.UTF_8).records(';')));
+        assertEquals(Collections.emptyList(), collect(file("",
+                StandardCharsets.UTF_8).lines()));
+    }
+
+    /**
+     * The fallback for unsupported charsets must return the same records.
+     */
+    @Test
+    public void testCharsets() throws Exception
+    {
+        String content = "äöü;€\r\nx;\n;y\n";
+        List<String> lines = Arrays.asList("äöü;€", "x;",
+                ";y");
+        List<String> records = Arrays.asList("äöü", "€\r\nx",
+                "\n", "y\n");
+        for (Charset cs : new Charset[]
+        {
+            StandardCharsets.UTF_8, Charset.forName("ISO-8859-15"),
+            StandardCharsets.UTF_16BE, StandardCharsets.UTF_16LE
+        })
+        {
+            assertEquals(cs.name(), lines, collect(file(content, cs).lines()));
+            assertEquals(cs.name(), records, collect(file(content, cs).records(
+                    ';')));
+        }
+        // Both characters contain the byte of a backslash in Shift_JIS
+        String japanese = "ソ表\\能\n";
+        Charset sjis = Charset.forName("Shift_JIS");
+        assertEquals(Arrays.asList("ソ表", "能\n"), collect(file(
+                japanese, sjis).records('\\')));
+        assertEquals(Arrays.asList("ソ表\\能"), collect(file(
+                japanese, sjis).lines()));
+    }
+
+    @Test
+    public void testSplitting() throws Exception
+    {
+        List<String> expected = new ArrayList<>();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; content.length() < 3 << 20; i++)
+        {
+            String line = "line " + i + " ä";
+            expected.add(line);
+            content.append(line).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        CFSSimpleFileImpl file = file(content.toString(), StandardCharsets.UTF_8);
+        assertEquals(expected, collect(file.lines().parallel()));
+
+        try (FileChannel channel = FileChannel.open(file.getFile().toPath(),
+                StandardOpenOption.READ))
+        {
+            LineSpliterator suffix = new LineSpliterator(channel, fs,
+                    StandardCharsets.UTF_8, '\n', true, 0, channel.size());
+            Spliterator<String> prefix = suffix.trySplit();
+            assertNotNull(prefix);
+            List<String> lines = new ArrayList<>();
+            prefix.forEachRemaining(lines::add);
+            assertTrue(lines.size() > 0 && lines.size() < expected.size());
+            suffix.forEachRemaining(lines::add);
+            assertEquals(expected, lines);
+        }
+    }
+
+    @Test
+    public void testThrottleChargesConsumedBytes() throws Exception
+    {
+        StringBuilder content = new StringBuilder("first\n");
+        while (content.length() < 2000)
+        {
+            content.append("0123456789\n");
+        }
+        CFSSimpleFileImpl file = file(content.toString(), StandardCharsets.UTF_8);
+        Throttle throttle = new Throttle(1000, 0);
+        fs.setThrottle(throttle);
+        try (Stream<String> lines = file.lines())
+        {
+            assertEquals("first", lines.findFirst().get());
+        }
+        long start = System.nanoTime();
+        throttle.acquire(900, 0, IOPriority.FOREGROUND);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Waited " + waited, waited < 500);
+
+        Thread.sleep(1000);
+        assertEquals(1 + (content.length() - 6) / 11, collect(file.lines())
+                .size());
+        start = System.nanoTime();
+        throttle.acquire(1, 0, IOPriority.FOREGROUND);
+        waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Waited " + waited, waited >= 700);
+    }
+}
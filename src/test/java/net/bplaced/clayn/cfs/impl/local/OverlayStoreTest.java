@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the {@link OverlayStore} writes deletions that happen while a
+ * flush is running.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class OverlayStoreTest
+{
+
+    private static final int SIZE = 16 * 1024 * 1024;
+    private File root;
+    private OverlayStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = LocalBaseTest.newFolder();
+        store = new OverlayStore(new ClaynFileSystem(root), 4L * SIZE, false,
+                3_600_000);
+    }
+
+    private void write(String key) throws Exception
+    {
+        try (OutputStream out = store.openWrite(key, false))
+        {
+            out.write(new byte[SIZE]);
+        }
+    }
+
+    @Test
+    public void testDeleteDuringFlush() throws Exception
+    {
+        for (int i = 0; i < 5; i++)
+        {
+            String name = "file" + i;
+            File file = new File(root, name);
+            write("/" + name);
+            assertFalse(file.exists());
+            AtomicReference<Exception> error = new AtomicReference<>();
+            Thread flusher = new Thread(() ->
+            {
+                try
+                {
+                    store.flush();
+                } catch (Exception ex)
+                {
+                    error.set(ex);
+                }
+            });
+            flusher.start();
+            while (!file.exists() && flusher.isAlive())
+            {
+                Thread.yield();
+            }
+            store.deleteFile("/" + name);
+            flusher.join();
+            assertNull(error.get());
+            assertFalse(store.isFile("/" + name));
+            store.flush();
+            assertFalse(name + " came back from disk", file.exists());
+            assertFalse(store.isFile("/" + name));
+        }
+        store.close();
+    }
+
+    @Test
+    public void testDeleteDirectoryDuringFlush() throws Exception
+    {
+        store.createDirectory("/dir/");
+        write("/other");
+        Thread flusher = new Thread(() ->
+        {
+            try
+            {
+                store.flush();
+            } catch (Exception ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        });
+        flusher.start();
+        while (!new File(root, "dir").exists() && flusher.isAlive())
+        {
+            Thread.yield();
+        }
+        store.deleteDirectory("/dir/");
+        flusher.join();
+        store.flush();
+        assertFalse(new File(root, "dir").exists());
+        assertFalse(store.isDirectory("/dir/"));
+        assertTrue(new File(root, "other").isFile());
+        store.close();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the records the {@link PackStore} writes and keeps during
+ * compaction.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class PackStoreTest
+{
+
+    private static final int HEADER = 29;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        dir = LocalBaseTest.newFolder();
+    }
+
+    private PackStore open(long segmentSize) throws IOException
+    {
+        return new PackStore(dir, segmentSize, 0.5, 3_600_000);
+    }
+
+    private long stored()
+    {
+        long size = 0;
+        for (File f : dir.listFiles())
+        {
+            size += f.length();
+        }
+        return size;
+    }
+
+    private static void write(PackStore store, String key, int length) throws IOException
+    {
+        try (OutputStream out = store.openWrite(key, false))
+        {
+            out.write(new byte[length]);
+        }
+    }
+
+    @Test
+    public void testWriteCreatesSingleRecord() throws Exception
+    {
+        try (PackStore store = open(1 << 20))
+        {
+            write(store, "/a", 10);
+            assertTrue(store.isFile("/a"));
+            assertEquals(10, store.size("/a"));
+        }
+        assertEquals(HEADER + 2 + 10, stored());
+    }
+
+    @Test
+    public void testOpenWriteShowsEmptyFile() throws Exception
+    {
+        try (PackStore store = open(1 << 20))
+        {
+            OutputStream out = store.openWrite("/a", false);
+            assertTrue(store.isFile("/a"));
+            assertEquals(0, store.size("/a"));
+            assertEquals(-1, store.openRead("/a").read());
+            store.deleteFile("/a");
+            out.close();
+            assertTrue(store.isFile("/a"));
+        }
+        assertEquals(HEADER + 2, stored());
+    }
+
+    @Test
+    public void testCompactionDropsUnneededTombstones() throws Exception
+    {
+        try (PackStore store = open(64))
+        {
+            write(store, "/keep", 64 - HEADER - 5);
+            store.createFile("/a");
+            store.deleteFile("/a");
+            write(store, "/z", 10);
+            store.compact();
+        }
+        assertEquals(64 + HEADER + 2 + 10, stored());
+        try (PackStore store = open(64))
+        {
+            assertFalse(store.isFile("/a"));
+            assertTrue(store.isFile("/keep"));
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsNeededTombstones() throws Exception
+    {
+        try (PackStore store = open(200))
+        {
+            store.createFile("/a");
+            write(store, "/keep", 100);
+            write(store, "/f", 40);
+            store.deleteFile("/a");
+            write(store, "/g", 150);
+            store.deleteFile("/f");
+            store.compact();
+            assertFalse(store.isFile("/a"));
+        }
+        try (PackStore store = open(200))
+        {
+            assertFalse(store.isFile("/a"));
+            assertFalse(store.isFile("/f"));
+            assertTrue(store.isFile("/keep"));
+            assertTrue(store.isFile("/g"));
+        }
+    }
+}
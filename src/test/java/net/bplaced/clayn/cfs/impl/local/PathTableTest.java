@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.lang.ref.WeakReference;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that the {@link PathTable} gives every path a single node and
+ * releases nodes that are no longer used.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class PathTableTest
+{
+
+    @Test
+    public void testSamePathSameNode()
+    {
+        PathTable table = new PathTable("/");
+        PathTable.Node a = table.getRoot().child("a").child("b");
+        PathTable.Node b = table.getRoot().child(new String("a")).child(
+                new String("b"));
+        assertSame(a, b);
+        assertTrue(a.samePath(b));
+        assertEquals("/a/b/", a.getPath());
+        assertEquals("/", table.getRoot().getPath());
+        assertFalse(a.samePath(table.getRoot().child("a")));
+    }
+
+    @Test
+    public void testEqualPathsOfDifferentTables()
+    {
+        PathTable.Node a = new PathTable("/").getRoot().child("a").child("b");
+        PathTable.Node b = new PathTable("/").getRoot().child("a").child("b");
+        PathTable.Node c = new PathTable("/").getRoot().child("a").child("c");
+        assertNotSame(a, b);
+        assertTrue(a.samePath(b));
+        assertTrue(b.samePath(a));
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.samePath(c));
+    }
+
+    @Test
+    public void testDirectoriesShareNodes() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(LocalBaseTest.newFolder());
+        CFSDirectoryImpl a = (CFSDirectoryImpl) fs.getDirectory("x/y");
+        CFSDirectoryImpl b = (CFSDirectoryImpl) fs.getRoot().changeDirectory(
+                "x").changeDirectory("y");
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(a.toString(), b.toString());
+    }
+
+    @Test
+    public void testUnusedNodesAreReleased() throws Exception
+    {
+        PathTable table = new PathTable("/");
+        WeakReference<PathTable.Node> node = new WeakReference<>(
+                table.getRoot().child("gone").child("child"));
+        WeakReference<String> segment = new WeakReference<>(segment(table));
+        awaitCleared(node);
+        PathTable.Node again = table.getRoot().child("gone").child("child");
+        assertEquals("/gone/child/", again.getPath());
+        assertSame(again, table.getRoot().child("gone").child("child"));
+        awaitCleared(segment);
+    }
+
+    private static void awaitCleared(WeakReference<?> ref) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + 10_000;
+        while (ref.get() != null && System.currentTimeMillis() < end)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+    }
+
+    /**
+     * Creates a node for a new segment and returns the segment.
+     */
+    private static String segment(PathTable table)
+    {
+        String segment = new String("segment");
+        table.getRoot().child(segment);
+        return segment;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks {@link CFSSimpleFileImpl#openWrite(long)}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class PreallocationTest
+{
+
+    private ClaynFileSystem fs;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        fs = new ClaynFileSystem(LocalBaseTest.newFolder());
+    }
+
+    private CFSSimpleFileImpl file(String name) throws Exception
+    {
+        return (CFSSimpleFileImpl) fs.getRoot().getFile(name);
+    }
+
+    @Test
+    public void testFileIsCutOnClose() throws Exception
+    {
+        CFSSimpleFileImpl file = file("data");
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte) (i + 1);
+        }
+        try (OutputStream out = file.openWrite(200 * 1024))
+        {
+            assertEquals(200 * 1024, file.getSize());
+            out.write(data);
+            assertEquals(200 * 1024, file.getSize());
+        }
+        assertEquals(data.length, file.getSize());
+        assertArrayEquals(data, Files.readAllBytes(file.getFile().toPath()));
+    }
+
+    @Test
+    public void testWritingMoreThanExpected() throws Exception
+    {
+        CFSSimpleFileImpl file = file("more");
+        byte[] data = new byte[300];
+        data[299] = 1;
+        try (OutputStream out = file.openWrite(100))
+        {
+            out.write(data);
+        }
+        assertArrayEquals(data, Files.readAllBytes(file.getFile().toPath()));
+    }
+
+    @Test
+    public void testReplacesContent() throws Exception
+    {
+        CFSSimpleFileImpl file = file("old");
+        Files.write(file.getFile().toPath(), new byte[]
+        {
+            1, 2, 3, 4, 5, 6, 7, 8
+        });
+        try (OutputStream out = file.openWrite(6))
+        {
+            out.write(9);
+        }
+        assertArrayEquals(new byte[]
+        {
+            9
+        }, Files.readAllBytes(file.getFile().toPath()));
+    }
+
+    /**
+     * The zeros are really written, so they are charged to the throttle. A
+     * file that only got extended would cost nothing.
+     */
+    @Test
+    public void testZerosAreWritten() throws Exception
+    {
+        Throttle throttle = new Throttle(1000, 0);
+        fs.setThrottle(throttle);
+        CFSSimpleFileImpl file = file("throttled");
+        file.openWrite(2000).close();
+        long start = System.nanoTime();
+        throttle.acquire(1, 0, IOPriority.FOREGROUND);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Waited " + waited, waited >= 700);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSize() throws Exception
+    {
+        file("negative").openWrite(-1);
+    }
+}
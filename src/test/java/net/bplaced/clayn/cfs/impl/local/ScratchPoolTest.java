@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import net.bplaced.clayn.cfs.SimpleFile;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the {@link ScratchPool} reuses its files and takes care of the
+ * files left over from earlier runs.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class ScratchPoolTest
+{
+
+    private File root;
+    private File area;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = LocalBaseTest.newFolder();
+        area = new File(root.getAbsoluteFile().getParentFile(), root.getName()
+                + ".scratch");
+    }
+
+    private String[] scratchFiles()
+    {
+        String[] names = area.list((dir, name) -> !name.endsWith(".lock"));
+        if (names == null)
+        {
+            return new String[0];
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+    private static void write(SimpleFile file, String content) throws IOException
+    {
+        try (OutputStream out = file.openWrite())
+        {
+            out.write(content.getBytes("UTF-8"));
+        }
+    }
+
+    @Test
+    public void testReleasedFilesAreReused() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setScratchPoolSize(2);
+        SimpleFile file = fs.getScratchFile();
+        assertEquals(2, scratchFiles().length);
+        write(file, "data");
+        fs.releaseScratchFile(file);
+        SimpleFile again = fs.getScratchFile();
+        assertSame(file, again);
+        assertEquals(0, again.getSize());
+        assertEquals(2, scratchFiles().length);
+        fs.close();
+    }
+
+    @Test
+    public void testFilesOutsideThePoolAreDeleted() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setScratchPoolSize(1);
+        SimpleFile a = fs.getScratchFile();
+        SimpleFile b = fs.getScratchFile();
+        assertNotSame(a, b);
+        assertEquals(2, scratchFiles().length);
+        fs.releaseScratchFile(a);
+        fs.releaseScratchFile(b);
+        assertEquals(1, scratchFiles().length);
+        fs.clearScratchFiles();
+        assertEquals(0, scratchFiles().length);
+        fs.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseForeignFile() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.releaseScratchFile(fs.getRoot().getFile("foreign"));
+    }
+
+    @Test
+    public void testLeftOverFilesAreAdopted() throws Exception
+    {
+        assertTrue(area.mkdirs());
+        for (int i = 0; i < 5; i++)
+        {
+            Files.write(new File(area, "scratch-" + i).toPath(), new byte[10]);
+        }
+        Files.write(new File(area, "other").toPath(), new byte[1]);
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setScratchPoolSize(3);
+        SimpleFile file = fs.getScratchFile();
+        assertEquals(0, file.getSize());
+        assertEquals(4, scratchFiles().length);
+        assertTrue(Arrays.asList(scratchFiles()).contains("other"));
+        SimpleFile a = fs.getScratchFile();
+        SimpleFile b = fs.getScratchFile();
+        SimpleFile extra = fs.getScratchFile();
+        assertEquals("scratch-5", extra.getName());
+        assertEquals(0, a.getSize() + b.getSize());
+        assertEquals(5, scratchFiles().length);
+        fs.close();
+    }
+
+    @Test
+    public void testPoolIsSharedWithSubFileSystems() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setScratchPoolSize(1);
+        ClaynFileSystem sub = (ClaynFileSystem) fs.subFileSystem("sub");
+        SimpleFile file = sub.getScratchFile();
+        fs.releaseScratchFile(file);
+        assertSame(file, fs.getScratchFile());
+        assertFalse(new File(root, "sub.scratch").exists());
+        fs.close();
+    }
+
+    @Test
+    public void testFilesOfOtherFileSystemsAreNotAdopted() throws Exception
+    {
+        ClaynFileSystem first = new ClaynFileSystem(root);
+        first.setScratchPoolSize(2);
+        SimpleFile leased = first.getScratchFile();
+        ClaynFileSystem second = new ClaynFileSystem(root);
+        second.setScratchPoolSize(2);
+        SimpleFile other = second.getScratchFile();
+        assertNotEquals(leased.getName(), other.getName());
+        assertEquals(4, scratchFiles().length);
+        second.clearScratchFiles();
+        assertEquals(3, scratchFiles().length);
+        assertTrue(leased.exists());
+
+        first.close();
+        ClaynFileSystem third = new ClaynFileSystem(root);
+        third.setScratchPoolSize(3);
+        Set<String> names = new TreeSet<>();
+        for (int i = 0; i < 3; i++)
+        {
+            names.add(third.getScratchFile().getName());
+        }
+        assertEquals(new TreeSet<>(Arrays.asList("scratch-0", "scratch-1",
+                "scratch-4")), names);
+        assertTrue(other.exists());
+        second.close();
+        third.close();
+    }
+
+    @Test
+    public void testSnapshotsShareThePool() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setScratchPoolSize(1);
+        ClaynFileSystem snapshot = fs.snapshot("/", "a");
+        SimpleFile file = snapshot.getScratchFile();
+        fs.releaseScratchFile(file);
+        assertSame(file, fs.getScratchFile());
+        assertEquals(Collections.singletonList("a"), fs.listSnapshots());
+        fs.deleteSnapshot("a");
+        assertTrue(fs.listSnapshots().isEmpty());
+        fs.close();
+    }
+}
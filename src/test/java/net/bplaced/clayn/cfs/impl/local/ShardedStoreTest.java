@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the {@link ShardedStore} finds files in wrong roots and never
+ * replaces newer files while moving them.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class ShardedStoreTest
+{
+
+    private List<Path> roots;
+    private ShardedStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        roots = Arrays.asList(LocalBaseTest.newFolder().toPath(),
+                LocalBaseTest.newFolder().toPath(),
+                LocalBaseTest.newFolder().toPath());
+        store = new ShardedStore(roots, Runnable::run);
+    }
+
+    private void write(String key, String content) throws Exception
+    {
+        try (OutputStream out = store.openWrite(key, false))
+        {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private String read(String key) throws Exception
+    {
+        try (InputStream in = store.openRead(key))
+        {
+            byte[] data = new byte[(int) store.size(key)];
+            assertEquals(data.length, in.read(data));
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    }
+
+    private Path owner(String key)
+    {
+        for (Path root : roots)
+        {
+            Path p = root.resolve(key.substring(1));
+            if (Files.isRegularFile(p))
+            {
+                return p;
+            }
+        }
+        throw new AssertionError(key + " not found");
+    }
+
+    private Path other(Path owner, String key)
+    {
+        for (Path root : roots)
+        {
+            Path p = root.resolve(key.substring(1));
+            if (!p.equals(owner))
+            {
+                return p;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    @Test
+    public void testFindsFilesInWrongRoot() throws Exception
+    {
+        write("/file", "content");
+        Path owner = owner("/file");
+        Path stray = other(owner, "/file");
+        Files.move(owner, stray);
+        ShardedStore reopened = new ShardedStore(roots, Runnable::run);
+        assertTrue(reopened.isFile("/file"));
+        store = reopened;
+        assertEquals("content", read("/file"));
+        reopened.rebalance();
+        assertTrue(Files.isRegularFile(owner));
+        assertFalse(Files.exists(stray));
+        reopened.deleteFile("/file");
+        assertFalse(reopened.isFile("/file"));
+    }
+
+    @Test
+    public void testDeleteRemovesStrayCopies() throws Exception
+    {
+        write("/file", "new");
+        Path owner = owner("/file");
+        Path stray = other(owner, "/file");
+        Files.write(stray, "old".getBytes(StandardCharsets.UTF_8));
+        store.deleteFile("/file");
+        assertFalse(store.isFile("/file"));
+        assertFalse(Files.exists(stray));
+    }
+
+    @Test
+    public void testRebalanceKeepsNewerFile() throws Exception
+    {
+        write("/file", "new");
+        Path owner = owner("/file");
+        Path stray = other(owner, "/file");
+        Files.write(stray, "old".getBytes(StandardCharsets.UTF_8));
+        store.rebalance();
+        assertArrayEquals("new".getBytes(StandardCharsets.UTF_8),
+                Files.readAllBytes(owner));
+        assertFalse(Files.exists(stray));
+        assertEquals("new", read("/file"));
+    }
+
+    @Test
+    public void testAddRootMovesFiles() throws Exception
+    {
+        store.createDirectory("/dir/");
+        for (int i = 0; i < 50; i++)
+        {
+            write("/dir/file" + i, "content" + i);
+        }
+        Path added = LocalBaseTest.newFolder().toPath();
+        store.addRoot(added);
+        assertEquals(4, store.getRoots().size());
+        assertEquals(50, store.list("/dir/", false).size());
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals("content" + i, read("/dir/file" + i));
+        }
+        try (Stream<Path> moved = Files.list(added.resolve("dir")))
+        {
+            assertTrue(moved.count() > 0);
+        }
+    }
+
+    @Test
+    public void testPlacementSurvivesMovedRoots() throws Exception
+    {
+        store.createDirectory("/dir/");
+        for (int i = 0; i < 50; i++)
+        {
+            write("/dir/file" + i, "content" + i);
+        }
+        List<Path> moved = new ArrayList<>();
+        for (Path root : roots)
+        {
+            Path target = LocalBaseTest.newFolder().toPath().resolve("moved");
+            Files.move(root, target);
+            moved.add(target);
+        }
+        List<Integer> before = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            before.add(moved.indexOf(ownerRoot(moved, "/dir/file" + i)));
+        }
+        roots = moved;
+        store = new ShardedStore(moved, Runnable::run);
+        store.rebalance();
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals(before.get(i).intValue(), moved.indexOf(ownerRoot(
+                    moved, "/dir/file" + i)));
+            assertEquals("content" + i, read("/dir/file" + i));
+        }
+    }
+
+    private Path ownerRoot(List<Path> in, String key)
+    {
+        for (Path root : in)
+        {
+            if (Files.isRegularFile(root.resolve(key.substring(1))))
+            {
+                return root;
+            }
+        }
+        throw new AssertionError(key + " not found");
+    }
+
+    @Test
+    public void testCloseShutsDownOwnedExecutor() throws Exception
+    {
+        ExecutorService owned = Executors.newSingleThreadExecutor();
+        ExecutorService shared = Executors.newSingleThreadExecutor();
+        new ShardedStore(roots, owned, true).close();
+        new ShardedStore(roots, shared).close();
+        assertTrue(owned.isShutdown());
+        assertFalse(shared.isShutdown());
+        shared.shutdown();
+    }
+}
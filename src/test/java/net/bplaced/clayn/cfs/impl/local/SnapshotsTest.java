@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.bplaced.clayn.cfs.SimpleFile;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that snapshots and clones keep their content when the files they
+ * were taken from are written.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class SnapshotsTest
+{
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = new File(LocalBaseTest.newFolder(), "root");
+    }
+
+    private static void write(SimpleFile file, String content, boolean append) throws Exception
+    {
+        try (OutputStream out = append ? file.openAppend() : file.openWrite())
+        {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String read(File file) throws Exception
+    {
+        return new String(Files.readAllBytes(file.toPath()),
+                StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSnapshotKeepsContent() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.getDirectory("data").mkDirs();
+        write(fs.getDirectory("data").getFile("a"), "a", false);
+        write(fs.getDirectory("data").getFile("b"), "b", false);
+        ClaynFileSystem snapshot = fs.snapshot("data", "first");
+        write(fs.getDirectory("data").getFile("a"), "changed", false);
+        write(fs.getDirectory("data").getFile("b"), "+", true);
+        assertEquals("changed", read(new File(root, "data/a")));
+        assertEquals("b+", read(new File(root, "data/b")));
+        File area = new File(root.getParentFile(), "root.snapshots");
+        assertEquals("a", read(new File(area, "first/a")));
+        assertEquals("b", read(new File(area, "first/b")));
+        assertEquals(2, snapshot.getRoot().listFiles().size());
+        assertEquals(Collections.singletonList("first"), fs.listSnapshots());
+        assertEquals(Arrays.asList("a", "b"), sortedNames(new File(root, "data")));
+        fs.deleteSnapshot("first");
+        assertTrue(fs.listSnapshots().isEmpty());
+    }
+
+    @Test
+    public void testCloneSurvivesRestart() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.getDirectory("src").mkDirs();
+        write(fs.getDirectory("src").getFile("file"), "content", false);
+        fs.cloneDirectory("src", "copy");
+        fs.close();
+
+        ClaynFileSystem reopened = new ClaynFileSystem(root);
+        write(reopened.getDirectory("copy").getFile("file"), "changed", false);
+        write(reopened.getDirectory("src").getFile("file"), "+", true);
+        assertEquals("content+", read(new File(root, "src/file")));
+        assertEquals("changed", read(new File(root, "copy/file")));
+        assertEquals(Collections.singletonList("file"), sortedNames(new File(
+                root, "copy")));
+        assertTrue(reopened.listSnapshots().isEmpty());
+    }
+
+    @Test
+    public void testTrackedLinksWithoutLinkCount() throws Exception
+    {
+        Files.createDirectories(root.toPath());
+        Path src = root.toPath().resolve("src");
+        Files.createDirectories(src);
+        Files.write(src.resolve("file"), new byte[]
+        {
+            1, 2, 3
+        });
+        Snapshots snapshots = new Snapshots(root, false);
+        Path dst = root.toPath().resolve("dst");
+        snapshots.link(src, dst);
+        snapshots.breakLink(src.resolve("file"), true);
+        Files.write(src.resolve("file"), new byte[]
+        {
+            4
+        }, StandardOpenOption.APPEND);
+        assertArrayEquals(new byte[]
+        {
+            1, 2, 3
+        }, Files.readAllBytes(dst.resolve("file")));
+
+        Snapshots reopened = new Snapshots(root, false);
+        reopened.breakLink(dst.resolve("file"), false);
+        Files.write(dst.resolve("file"), new byte[]
+        {
+            9
+        });
+        assertArrayEquals(new byte[]
+        {
+            1, 2, 3, 4
+        }, Files.readAllBytes(src.resolve("file")));
+        long modified = Files.getLastModifiedTime(dst.resolve("file")).toMillis();
+        reopened.breakLink(dst.resolve("file"), true);
+        assertEquals(modified, Files.getLastModifiedTime(dst.resolve("file")).toMillis());
+        assertFalse(Files.exists(src.resolve("file.cow")));
+    }
+
+    private static List<String> sortedNames(File dir)
+    {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that sub filesystems share the {@link Syncer} of their parent and
+ * that closing the filesystem stops it.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class SyncerTest
+{
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = LocalBaseTest.newFolder();
+    }
+
+    private static int syncerThreads()
+    {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet())
+        {
+            if (t.isAlive() && t.getName().equals("cfs-syncer"))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void awaitSyncerThreads(int expected) throws Exception
+    {
+        long end = System.currentTimeMillis() + 5000;
+        while (syncerThreads() != expected && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, syncerThreads());
+    }
+
+    @Test
+    public void testSubFileSystemsShareSyncer() throws Exception
+    {
+        int before = syncerThreads();
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setDurability(Durability.PERIODIC);
+        ClaynFileSystem a = (ClaynFileSystem) fs.subFileSystem("a");
+        ClaynFileSystem b = (ClaynFileSystem) fs.subFileSystem("b");
+        assertSame(fs.getSyncer(), a.getSyncer());
+        assertSame(fs.getSyncer(), b.getSyncer());
+        assertEquals(Durability.PERIODIC, b.getDurability());
+        awaitSyncerThreads(before + 1);
+        a.close();
+        awaitSyncerThreads(before + 1);
+        fs.close();
+        awaitSyncerThreads(before);
+    }
+
+    @Test
+    public void testCloseForcesPendingFiles() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        fs.setDurability(Durability.PERIODIC);
+        fs.setSyncInterval(60_000);
+        try (OutputStream out = fs.getRoot().getFile("data").openWrite())
+        {
+            out.write(new byte[]
+            {
+                1, 2, 3
+            });
+        }
+        fs.setDurability(Durability.ON_CLOSE);
+        try (OutputStream out = fs.getRoot().getFile("data").openWrite())
+        {
+            out.write(1);
+        }
+        fs.close();
+        assertEquals(1, new File(root, "data").length());
+    }
+
+    @Test
+    public void testPendingChannelsAreBounded() throws Exception
+    {
+        Syncer syncer = new Syncer();
+        syncer.setInterval(60_000);
+        syncer.setDurability(Durability.PERIODIC);
+        syncer.setMaxPending(2);
+        List<FileChannel> channels = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+        {
+            Path file = new File(root, "file" + i).toPath();
+            FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            syncer.opened(channel);
+            channel.write(ByteBuffer.wrap(new byte[]
+            {
+                1
+            }));
+            syncer.close(channel, file);
+            channels.add(channel);
+        }
+        assertTrue(channels.get(0).isOpen());
+        assertTrue(channels.get(1).isOpen());
+        for (int i = 2; i < channels.size(); i++)
+        {
+            assertFalse(channels.get(i).isOpen());
+        }
+        syncer.shutdown();
+        for (FileChannel channel : channels)
+        {
+            assertFalse(channel.isOpen());
+        }
+    }
+}
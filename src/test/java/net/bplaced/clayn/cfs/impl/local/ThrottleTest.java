@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import net.bplaced.clayn.cfs.SimpleFile;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the limits and refilling of a {@link Throttle} and what the
+ * throttled streams charge.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class ThrottleTest
+{
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        root = LocalBaseTest.newFolder();
+    }
+
+    private static long millis(long start)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void testFullBucketDoesNotWait() throws Exception
+    {
+        Throttle throttle = new Throttle(1000, 10);
+        long start = System.nanoTime();
+        throttle.acquire(1000, 10, IOPriority.FOREGROUND);
+        assertTrue(millis(start) < 100);
+    }
+
+    @Test
+    public void testBytesRefill() throws Exception
+    {
+        Throttle throttle = new Throttle(1000, 0);
+        throttle.acquire(1000, 0, IOPriority.FOREGROUND);
+        long start = System.nanoTime();
+        throttle.acquire(300, 0, IOPriority.FOREGROUND);
+        long waited = millis(start);
+        assertTrue("Waited " + waited, waited >= 250 && waited < 1000);
+    }
+
+    @Test
+    public void testOpsLimit() throws Exception
+    {
+        Throttle throttle = new Throttle(0, 20);
+        long start = System.nanoTime();
+        for (int i = 0; i < 30; i++)
+        {
+            throttle.acquire(1 << 20, 1, IOPriority.FOREGROUND);
+        }
+        long waited = millis(start);
+        assertTrue("Waited " + waited, waited >= 400 && waited < 1500);
+    }
+
+    @Test
+    public void testLargeRequestCreatesDebt() throws Exception
+    {
+        Throttle throttle = new Throttle(1000, 0);
+        long start = System.nanoTime();
+        throttle.acquire(1500, 0, IOPriority.FOREGROUND);
+        assertTrue(millis(start) < 100);
+        throttle.acquire(1, 0, IOPriority.FOREGROUND);
+        long waited = millis(start);
+        assertTrue("Waited " + waited, waited >= 400 && waited < 1500);
+    }
+
+    @Test
+    public void testBackgroundLeavesReserve() throws Exception
+    {
+        Throttle throttle = new Throttle(1000, 0);
+        throttle.acquire(600, 0, IOPriority.FOREGROUND);
+        long start = System.nanoTime();
+        throttle.acquire(100, 0, IOPriority.FOREGROUND);
+        assertTrue(millis(start) < 100);
+        throttle.acquire(100, 0, IOPriority.BACKGROUND);
+        long waited = millis(start);
+        assertTrue("Waited " + waited, waited >= 30 && waited < 1000);
+    }
+
+    @Test
+    public void testStreamsCountCallsNotBytes() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        SimpleFile file = fs.getRoot().getFile("data");
+        fs.setThrottle(new Throttle(0, 10));
+        long start = System.nanoTime();
+        try (OutputStream out = file.openWrite())
+        {
+            for (int i = 0; i < 1000; i++)
+            {
+                out.write(i);
+            }
+        }
+        try (InputStream in = file.openRead())
+        {
+            while (in.read() >= 0)
+            {
+                // Only reading
+            }
+        }
+        long waited = millis(start);
+        assertTrue("Waited " + waited, waited < 500);
+        assertEquals(1000, new File(root, "data").length());
+    }
+
+    @Test
+    public void testSkipIsThrottled() throws Exception
+    {
+        ClaynFileSystem fs = new ClaynFileSystem(root);
+        SimpleFile file = fs.getRoot().getFile("data");
+        try (OutputStream out = file.openWrite())
+        {
+            out.write(new byte[100]);
+        }
+        fs.setThrottle(new Throttle(0, 10));
+        long start = System.nanoTime();
+        try (InputStream in = file.openRead())
+        {
+            for (int i = 0; i < 15; i++)
+            {
+                in.skip(1);
+            }
+        }
+        long waited = millis(start);
+        assertTrue("Waited " + waited, waited >= 300);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.cfs.impl.local;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import net.bplaced.clayn.cfs.FileModification;
+import net.bplaced.clayn.cfs.FileModification.Modification;
+import net.bplaced.clayn.cfs.SimpleFile;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the backpressure and overflow handling of the {@link WatchPublisher}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class WatchPublisherTest
+{
+
+    private ClaynFileSystem fs;
+    private WatchPublisher publisher;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        fs = new ClaynFileSystem(LocalBaseTest.newFolder());
+        publisher = new WatchPublisher();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        fs.close();
+    }
+
+    private SimpleFile file(String name) throws IOException
+    {
+        return fs.getRoot().getFile(name);
+    }
+
+    private void publish(String name, Modification mod) throws IOException
+    {
+        publisher.publish(file(name), mod, System.currentTimeMillis());
+    }
+
+    /**
+     * Waits until all tasks submitted to the executor so far ran.
+     */
+    private void sync() throws Exception
+    {
+        executor.submit(() ->
+        {
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testOnlyRequestedChangesAreDelivered() throws Exception
+    {
+        Recorder recorder = new Recorder(1);
+        publisher.subscribe(recorder, executor, 16, OverflowStrategy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++)
+        {
+            publish("file" + i, Modification.CREATE);
+        }
+        sync();
+        assertEquals(1, recorder.received().size());
+        recorder.subscription.request(2);
+        sync();
+        assertEquals(3, recorder.received().size());
+        recorder.subscription.request(Long.MAX_VALUE);
+        sync();
+        assertEquals(5, recorder.received().size());
+        assertEquals("file4", recorder.received().get(4).getFile().getName());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception
+    {
+        Recorder recorder = new Recorder(0);
+        publisher.subscribe(recorder, executor, 3, OverflowStrategy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++)
+        {
+            publish("file" + i, Modification.CREATE);
+        }
+        sync();
+        assertEquals(2, recorder.subscription.getDropped());
+        recorder.subscription.request(10);
+        sync();
+        List<FileModification> received = recorder.received();
+        assertEquals(3, received.size());
+        assertEquals("file2", received.get(0).getFile().getName());
+        assertEquals("file4", received.get(2).getFile().getName());
+    }
+
+    @Test
+    public void testCoalesceMergesChanges() throws Exception
+    {
+        Recorder recorder = new Recorder(0);
+        publisher.subscribe(recorder, executor, 16, OverflowStrategy.COALESCE);
+        publish("created", Modification.CREATE);
+        publish("created", Modification.DELETE);
+        publish("replaced", Modification.DELETE);
+        publish("replaced", Modification.CREATE);
+        publish("new", Modification.CREATE);
+        publish("new", Modification.MODIFY);
+        publish("changed", Modification.MODIFY);
+        publish("changed", Modification.DELETE);
+        sync();
+        recorder.subscription.request(10);
+        sync();
+        List<FileModification> received = recorder.received();
+        assertEquals(3, received.size());
+        assertEquals("replaced", received.get(0).getFile().getName());
+        assertEquals(Modification.MODIFY, received.get(0).getModification());
+        assertEquals("new", received.get(1).getFile().getName());
+        assertEquals(Modification.CREATE, received.get(1).getModification());
+        assertEquals("changed", received.get(2).getFile().getName());
+        assertEquals(Modification.DELETE, received.get(2).getModification());
+        assertEquals(0, recorder.subscription.getDropped());
+    }
+
+    @Test
+    public void testCoalesceDropsOldestFile() throws Exception
+    {
+        Recorder recorder = new Recorder(0);
+        publisher.subscribe(recorder, executor, 2, OverflowStrategy.COALESCE);
+        publish("a", Modification.CREATE);
+        publish("b", Modification.CREATE);
+        publish("a", Modification.MODIFY);
+        publish("c", Modification.CREATE);
+        sync();
+        assertEquals(1, recorder.subscription.getDropped());
+        recorder.subscription.request(10);
+        sync();
+        List<FileModification> received = recorder.received();
+        assertEquals(2, received.size());
+        assertEquals("b", received.get(0).getFile().getName());
+        assertEquals("c", received.get(1).getFile().getName());
+    }
+
+    @Test(timeout = 10000)
+    public void testBlockWaitsForDemand() throws Exception
+    {
+        Recorder recorder = new Recorder(0);
+        publisher.subscribe(recorder, executor, 2, OverflowStrategy.BLOCK);
+        sync();
+        CountDownLatch published = new CountDownLatch(1);
+        Thread producer = new Thread(() ->
+        {
+            try
+            {
+                for (int i = 0; i < 5; i++)
+                {
+                    publish("file" + i, Modification.CREATE);
+                }
+            } catch (IOException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+            published.countDown();
+        });
+        producer.start();
+        assertFalse(published.await(200, TimeUnit.MILLISECONDS));
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertTrue(published.await(5, TimeUnit.SECONDS));
+        producer.join();
+        sync();
+        assertEquals(5, recorder.received().size());
+        assertEquals(0, recorder.subscription.getDropped());
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseReleasesBlockedProducer() throws Exception
+    {
+        ClaynFileSystem closing = new ClaynFileSystem(LocalBaseTest.newFolder());
+        CFSDirectoryImpl dir = (CFSDirectoryImpl) closing.getDirectory("watched");
+        dir.mkDirs();
+        Recorder recorder = new Recorder(0);
+        dir.subscribe(recorder, executor, 2, OverflowStrategy.BLOCK);
+        dir.activate();
+        sync();
+        CountDownLatch published = new CountDownLatch(1);
+        Thread producer = new Thread(() ->
+        {
+            try
+            {
+                for (int i = 0; i < 5; i++)
+                {
+                    dir.fire(dir.getFile("file" + i), Modification.CREATE,
+                            System.currentTimeMillis());
+                }
+            } catch (IOException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+            published.countDown();
+        });
+        producer.start();
+        assertFalse(published.await(200, TimeUnit.MILLISECONDS));
+        closing.close();
+        assertTrue(published.await(5, TimeUnit.SECONDS));
+        producer.join();
+    }
+
+    @Test
+    public void testFailDeliversBufferedChangesFirst() throws Exception
+    {
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        publisher.subscribe(recorder, executor, 16, OverflowStrategy.DROP_OLDEST);
+        publish("file", Modification.DELETE);
+        publisher.fail(new IOException("invalid"));
+        sync();
+        assertEquals(1, recorder.received().size());
+        assertEquals("invalid", recorder.error.get().getMessage());
+        assertFalse(recorder.completed);
+        assertFalse(publisher.hasSubscribers());
+
+        Recorder again = new Recorder(Long.MAX_VALUE);
+        publisher.subscribe(again, executor, 16, OverflowStrategy.DROP_OLDEST);
+        publish("file", Modification.CREATE);
+        sync();
+        assertEquals(1, again.received().size());
+        assertNull(again.error.get());
+        publisher.complete();
+        sync();
+        assertTrue(again.completed);
+    }
+
+    @Test
+    public void testCancelStopsDelivery() throws Exception
+    {
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        publisher.subscribe(recorder, executor, 16, OverflowStrategy.DROP_OLDEST);
+        publish("a", Modification.CREATE);
+        sync();
+        recorder.subscription.cancel();
+        publish("b", Modification.CREATE);
+        sync();
+        assertEquals(1, recorder.received().size());
+        assertFalse(publisher.hasSubscribers());
+    }
+
+    private static final class Recorder implements WatchSubscriber
+    {
+
+        private final long initial;
+        private final List<FileModification> received = new ArrayList<>();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private volatile WatchSubscription subscription;
+        private volatile boolean completed;
+
+        Recorder(long initial)
+        {
+            this.initial = initial;
+        }
+
+        synchronized List<FileModification> received()
+        {
+            return new ArrayList<>(received);
+        }
+
+        @Override
+        public void onSubscribe(WatchSubscription subscription)
+        {
+            this.subscription = subscription;
+            if (initial > 0)
+            {
+                subscription.request(initial);
+            }
+        }
+
+        @Override
+        public synchronized void onNext(FileModification modification)
+        {
+            received.add(modification);
+        }
+
+        @Override
+        public void onError(Throwable error)
+        {
+            this.error.set(error);
+        }
+
+        @Override
+        public void onComplete()
+        {
+            completed = true;
+        }
+    }
+}
@@ -17,10 +17,14 @@
 package net.bplaced.clayn.test.base.local;
 
 import java.io.File;
+import java.io.IOException;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import net.bplaced.clayn.cfs.CFileSystem;
 import net.bplaced.clayn.cfs.impl.local.ClaynFileSystem;
+import net.bplaced.clayn.cfs.impl.local.OverlayFileSystem;
+import net.bplaced.clayn.cfs.impl.local.PackFileSystem;
+import net.bplaced.clayn.cfs.impl.local.ShardedFileSystem;
 import org.junit.rules.TemporaryFolder;
 
 /**
@@ -34,15 +38,44 @@ public interface LocalBaseTest
     public static final BooleanProperty CREATED = new SimpleBooleanProperty(
             false);
 
-    public default CFileSystem getLocalFileSystem() throws Exception
+    /**
+     * Creates a new folder in the temporary folder of the tests, which gets
+     * created on the first call.
+     *
+     * @return the new folder
+     * @throws IOException if the folder couldn't be created
+     */
+    public static File newFolder() throws IOException
     {
-        if (!CREATED.get())
+        synchronized (FOLDER)
         {
-            FOLDER.create();
-            CREATED.set(true);
+            if (!CREATED.get())
+            {
+                FOLDER.create();
+                CREATED.set(true);
+            }
+            return FOLDER.newFolder();
         }
-        File root = FOLDER.newFolder();
-        return new ClaynFileSystem(root);
+    }
+
+    public default CFileSystem getLocalFileSystem() throws Exception
+    {
+        return new ClaynFileSystem(newFolder());
+    }
+
+    public default CFileSystem getPackFileSystem() throws Exception
+    {
+        return new PackFileSystem(newFolder());
+    }
+
+    public default CFileSystem getOverlayFileSystem() throws Exception
+    {
+        return new OverlayFileSystem(new ClaynFileSystem(newFolder()));
+    }
+
+    public default CFileSystem getShardedFileSystem() throws Exception
+    {
+        return new ShardedFileSystem(newFolder(), newFolder(), newFolder());
     }
 
 }
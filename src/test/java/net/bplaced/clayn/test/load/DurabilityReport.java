@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.test.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import net.bplaced.clayn.cfs.impl.local.Durability;
+
+/**
+ * Result of {@link LoadHarness#runDurability(java.io.File,
+ * net.bplaced.clayn.cfs.impl.local.Durability...)}. Shows the latencies and
+ * the throughput of the operations for every {@link Durability} side by side
+ * and how much slower every level is than the first one that was run. Like
+ * the {@link LoadReport} it is written as {@code key=value} lines.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class DurabilityReport
+{
+
+    private final Map<Durability, LoadReport> reports;
+
+    DurabilityReport(Map<Durability, LoadReport> reports)
+    {
+        this.reports = Collections.unmodifiableMap(reports);
+    }
+
+    /**
+     * @return the reports of the runs mapped to their durability in the
+     * order they were run
+     */
+    public Map<Durability, LoadReport> getReports()
+    {
+        return reports;
+    }
+
+    /**
+     * Compares the throughput of an operation with the given durability to
+     * the one of the first durability that was run.
+     *
+     * @param durability the durability to compare
+     * @param op the operation
+     * @return how many times fewer operations were completed per second or
+     * {@code 0} if the operation wasn't run
+     */
+    public double getSlowdown(Durability durability, Operation op)
+    {
+        LoadReport report = reports.get(durability);
+        if (report == null || reports.isEmpty())
+        {
+            return 0;
+        }
+        double base = reports.values().iterator().next().getThroughput(op);
+        double throughput = report.getThroughput(op);
+        return base == 0 || throughput == 0 ? 0 : base / throughput;
+    }
+
+    public void writeTo(File file) throws IOException
+    {
+        Files.write(file.toPath(), toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Durability, LoadReport> e : reports.entrySet())
+        {
+            String p = "durability." + e.getKey() + ".";
+            LoadReport report = e.getValue();
+            line(sb, p + "errors", report.getTotalErrors());
+            for (Operation op : Operation.values())
+            {
+                if (report.getCount(op) > 0)
+                {
+                    line(sb, p + "op." + op + ".p50_us", report.getLatency(op,
+                            0.5) / 1000);
+                    line(sb, p + "op." + op + ".p99_us", report.getLatency(op,
+                            0.99) / 1000);
+                    line(sb, p + "op." + op + ".throughput_per_s", format(
+                            report.getThroughput(op)));
+                }
+            }
+        }
+        for (Durability durability : reports.keySet())
+        {
+            for (Operation op : Operation.values())
+            {
+                double slowdown = getSlowdown(durability, op);
+                if (slowdown > 0)
+                {
+                    line(sb, "slowdown." + durability + "." + op, format(
+                            slowdown));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private static void line(StringBuilder sb, String key, Object value)
+    {
+        sb.append(key).append('=').append(value).append('\n');
+    }
+}
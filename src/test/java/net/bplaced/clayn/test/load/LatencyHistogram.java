@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.test.load;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Thread safe histogram of latencies in nanoseconds. Values are stored in
+ * buckets with 64 sub buckets per power of two, so percentiles are at most
+ * about 1.6% too high.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public final class LatencyHistogram
+{
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_MASK = (1 << SUB_BITS) - 1;
+    private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BITS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    static int index(long value)
+    {
+        if (value <= SUB_MASK)
+        {
+            return (int) Math.max(0, value);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & SUB_MASK);
+    }
+
+    /**
+     * Returns the highest value that is stored in the given bucket.
+     */
+    static long highest(int index)
+    {
+        if (index <= SUB_MASK)
+        {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long sub = (1 << SUB_BITS) + (index & SUB_MASK);
+        return (sub << shift) + (1L << shift) - 1;
+    }
+
+    public void record(long nanos)
+    {
+        counts.incrementAndGet(index(nanos));
+        max.accumulate(nanos);
+    }
+
+    public long getCount()
+    {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below or at which the given share of all values is.
+     *
+     * @param share the share between {@code 0} and {@code 1}, e.g.
+     * {@code 0.99} for the 99th percentile
+     * @return the percentile in nanoseconds or {@code 0} if nothing was
+     * recorded
+     */
+    public long getPercentile(double share)
+    {
+        long total = getCount();
+        if (total == 0)
+        {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(share * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if (seen >= target)
+            {
+                return Math.min(highest(i), getMax());
+            }
+        }
+        return getMax();
+    }
+}
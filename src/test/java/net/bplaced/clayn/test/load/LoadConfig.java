@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.test.load;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import net.bplaced.clayn.cfs.impl.local.Durability;
+
+/**
+ * Settings of a {@link LoadHarness} run. The defaults are meant for a short
+ * run during the tests, longer soak runs can be configured with
+ * {@link #fromProperties(java.util.Properties)}.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class LoadConfig
+{
+
+    private int threads = 8;
+    private long rate = 0;
+    private long duration = 1000;
+    private int files = 32;
+    private int fileSize = 4096;
+    private boolean watching = true;
+    private int batchSize = 16;
+    private int batchConcurrency = 4;
+    private Durability durability = Durability.NONE;
+    private final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+
+    public LoadConfig()
+    {
+        mix.put(Operation.READ, 30);
+        mix.put(Operation.WRITE, 10);
+        mix.put(Operation.APPEND, 10);
+        mix.put(Operation.SHARED_APPEND, 5);
+        mix.put(Operation.CREATE_DELETE, 10);
+        mix.put(Operation.LIST, 5);
+        mix.put(Operation.STAT, 15);
+        mix.put(Operation.LOCK, 10);
+        mix.put(Operation.BATCH, 5);
+        mix.put(Operation.SEQUENTIAL, 5);
+    }
+
+    /**
+     * Creates a copy of the given configuration.
+     *
+     * @param other the configuration to copy
+     */
+    public LoadConfig(LoadConfig other)
+    {
+        threads = other.threads;
+        rate = other.rate;
+        duration = other.duration;
+        files = other.files;
+        fileSize = other.fileSize;
+        watching = other.watching;
+        batchSize = other.batchSize;
+        batchConcurrency = other.batchConcurrency;
+        durability = other.durability;
+        mix.putAll(other.mix);
+    }
+
+    /**
+     * Creates a configuration from properties with the prefix
+     * {@code cfs.load.}, e.g. {@code cfs.load.threads=32} or
+     * {@code cfs.load.mix.READ=50}. Missing properties keep their default.
+     *
+     * @param props the properties to read
+     * @return the configuration
+     */
+    public static LoadConfig fromProperties(Properties props)
+    {
+        LoadConfig config = new LoadConfig();
+        String p = "cfs.load.";
+        config.setThreads(Integer.parseInt(props.getProperty(p + "threads",
+                String.valueOf(config.threads))));
+        config.setRate(Long.parseLong(props.getProperty(p + "rate",
+                String.valueOf(config.rate))));
+        config.setDuration(Long.parseLong(props.getProperty(p + "duration",
+                String.valueOf(config.duration))));
+        config.setFiles(Integer.parseInt(props.getProperty(p + "files",
+                String.valueOf(config.files))));
+        config.setFileSize(Integer.parseInt(props.getProperty(p + "fileSize",
+                String.valueOf(config.fileSize))));
+        config.setWatching(Boolean.parseBoolean(props.getProperty(
+                p + "watching", String.valueOf(config.watching))));
+        config.setBatchSize(Integer.parseInt(props.getProperty(
+                p + "batchSize", String.valueOf(config.batchSize))));
+        config.setBatchConcurrency(Integer.parseInt(props.getProperty(
+                p + "batchConcurrency", String.valueOf(config.batchConcurrency))));
+        config.setDurability(Durability.valueOf(props.getProperty(
+                p + "durability", config.durability.name())));
+        for (Operation op : Operation.values())
+        {
+            String weight = props.getProperty(p + "mix." + op.name());
+            if (weight != null)
+            {
+                config.setWeight(op, Integer.parseInt(weight));
+            }
+        }
+        return config;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    public void setThreads(int threads)
+    {
+        if (threads <= 0)
+        {
+            throw new IllegalArgumentException("Threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    public long getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * Sets the operations per second each thread tries to run. Latencies are
+     * measured from the time an operation should have started, so a stalled
+     * filesystem shows up in the latencies of all operations that were
+     * delayed by it.
+     *
+     * @param rate the operations per second per thread or {@code 0} to run as
+     * fast as possible
+     */
+    public void setRate(long rate)
+    {
+        if (rate < 0)
+        {
+            throw new IllegalArgumentException("Rate must not be negative");
+        }
+        this.rate = rate;
+    }
+
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * Sets how long the load is run.
+     *
+     * @param duration the duration in milliseconds
+     */
+    public void setDuration(long duration)
+    {
+        if (duration <= 0)
+        {
+            throw new IllegalArgumentException("Duration must be positive");
+        }
+        this.duration = duration;
+    }
+
+    public int getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * Sets the number of files that are prepared for reading and writing.
+     *
+     * @param files the number of files
+     */
+    public void setFiles(int files)
+    {
+        if (files <= 0)
+        {
+            throw new IllegalArgumentException("Files must be positive");
+        }
+        this.files = files;
+    }
+
+    public int getFileSize()
+    {
+        return fileSize;
+    }
+
+    public void setFileSize(int fileSize)
+    {
+        if (fileSize < 0)
+        {
+            throw new IllegalArgumentException("File size must not be negative");
+        }
+        this.fileSize = fileSize;
+    }
+
+    public boolean isWatching()
+    {
+        return watching;
+    }
+
+    /**
+     * Sets if the directory used by {@link Operation#CREATE_DELETE} gets
+     * activated to check that every change is reported exactly once.
+     *
+     * @param watching {@code true} to watch the directory
+     */
+    public void setWatching(boolean watching)
+    {
+        this.watching = watching;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of stat operations run by {@link Operation#BATCH} and
+     * {@link Operation#SEQUENTIAL}.
+     *
+     * @param batchSize the operations per batch
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize <= 0)
+        {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchConcurrency()
+    {
+        return batchConcurrency;
+    }
+
+    /**
+     * Sets how many operations of a batch run at the same time. This is also
+     * the number of threads of the executor used for batches.
+     *
+     * @param batchConcurrency the concurrency of a batch
+     */
+    public void setBatchConcurrency(int batchConcurrency)
+    {
+        if (batchConcurrency <= 0)
+        {
+            throw new IllegalArgumentException("Concurrency must be positive");
+        }
+        this.batchConcurrency = batchConcurrency;
+    }
+
+    public Durability getDurability()
+    {
+        return durability;
+    }
+
+    public void setDurability(Durability durability)
+    {
+        this.durability = durability == null ? Durability.NONE : durability;
+    }
+
+    public Map<Operation, Integer> getMix()
+    {
+        return Collections.unmodifiableMap(mix);
+    }
+
+    /**
+     * Sets how often the given operation is run compared to the others.
+     *
+     * @param op the operation
+     * @param weight the weight or {@code 0} to not run the operation
+     */
+    public void setWeight(Operation op, int weight)
+    {
+        if (weight < 0)
+        {
+            throw new IllegalArgumentException("Weight must not be negative");
+        }
+        mix.put(op, weight);
+    }
+}
@@ -0,0 +1,740 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.test.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import net.bplaced.clayn.cfs.ActiveDirectory;
+import net.bplaced.clayn.cfs.Directory;
+import net.bplaced.clayn.cfs.FileModification;
+import net.bplaced.clayn.cfs.SimpleFile;
+import net.bplaced.clayn.cfs.impl.local.BatchOperation;
+import net.bplaced.clayn.cfs.impl.local.CFSDirectoryImpl;
+import net.bplaced.clayn.cfs.impl.local.CFSSimpleFileImpl;
+import net.bplaced.clayn.cfs.impl.local.ClaynFileSystem;
+import net.bplaced.clayn.cfs.impl.local.Durability;
+import net.bplaced.clayn.cfs.impl.local.GroupAppender;
+import net.bplaced.clayn.cfs.impl.local.OverflowStrategy;
+import net.bplaced.clayn.cfs.impl.local.PathLock;
+import net.bplaced.clayn.cfs.impl.local.ShardedFileSystem;
+import net.bplaced.clayn.cfs.impl.local.WatchSubscriber;
+import net.bplaced.clayn.cfs.impl.local.WatchSubscription;
+
+/**
+ * Runs a mix of concurrent operations against a {@link ClaynFileSystem} and
+ * reports the latencies of every operation, changes the active directories
+ * didn't report or reported more than once and threads or file handles that
+ * were left behind. Can be run from the command line for longer soak runs:
+ * <pre>
+ * java -Dcfs.load.duration=600000 -Dcfs.load.threads=64 ... LoadHarness [root] [report]
+ * </pre> With {@code -Dcfs.load.scaling=1,2,4,8} the load is run once for
+ * every thread count and a {@link ScalingReport} is written instead. With
+ * {@code -Dcfs.load.durabilities=NONE,PERIODIC} or
+ * {@code -Dcfs.load.durabilities=ALL} the load is run once for every
+ * {@link Durability} and a {@link DurabilityReport} is written. With
+ * {@code -Dcfs.load.shards=1,2,4} the load is run against a
+ * {@link ShardedFileSystem} once for every number of roots and a
+ * {@link ScalingReport} with the throughput per root count is written.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class LoadHarness
+{
+
+    /**
+     * Threads of the runtime that may be started by any code and are not
+     * counted as leaked.
+     */
+    private static final String[] IGNORED_THREADS =
+    {
+        "ForkJoinPool.commonPool", "Common-Cleaner", "Attach Listener",
+        "process reaper", "Signal Dispatcher", "Notification Thread"
+    };
+    private static final long SETTLE_TIME = 3000;
+    private final LoadConfig config;
+
+    public LoadHarness(LoadConfig config)
+    {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        File root = args.length > 0 ? new File(args[0]) : Files.createTempDirectory(
+                "cfs-load").toFile();
+        LoadHarness harness = new LoadHarness(LoadConfig.fromProperties(
+                System.getProperties()));
+        String scaling = System.getProperty("cfs.load.scaling");
+        String durabilities = System.getProperty("cfs.load.durabilities");
+        String shards = System.getProperty("cfs.load.shards");
+        String report;
+        if (shards != null)
+        {
+            String[] parts = shards.split(",");
+            int[] counts = new int[parts.length];
+            for (int i = 0; i < parts.length; i++)
+            {
+                counts[i] = Integer.parseInt(parts[i].trim());
+            }
+            report = harness.runSharded(root, counts).toString();
+        } else if (durabilities != null)
+        {
+            Durability[] levels;
+            if ("ALL".equalsIgnoreCase(durabilities.trim()))
+            {
+                levels = Durability.values();
+            } else
+            {
+                String[] parts = durabilities.split(",");
+                levels = new Durability[parts.length];
+                for (int i = 0; i < parts.length; i++)
+                {
+                    levels[i] = Durability.valueOf(parts[i].trim());
+                }
+            }
+            report = harness.runDurability(root, levels).toString();
+        } else if (scaling != null)
+        {
+            String[] parts = scaling.split(",");
+            int[] threads = new int[parts.length];
+            for (int i = 0; i < parts.length; i++)
+            {
+                threads[i] = Integer.parseInt(parts[i].trim());
+            }
+            report = harness.runScaling(root, threads).toString();
+        } else
+        {
+            report = harness.run(root).toString();
+        }
+        if (args.length > 1)
+        {
+            Files.write(new File(args[1]).toPath(), report.getBytes(
+                    StandardCharsets.UTF_8));
+        } else
+        {
+            System.out.print(report);
+        }
+    }
+
+    /**
+     * Runs the load against a new filesystem in the given directory.
+     *
+     * @param root the root directory for the filesystem
+     * @return the report of the run
+     * @throws IOException if the filesystem can't be prepared
+     * @throws InterruptedException if interrupted while waiting for the run
+     */
+    public LoadReport run(File root) throws IOException, InterruptedException
+    {
+        Set<Thread> threadsBefore = new HashSet<>(
+                Thread.getAllStackTraces().keySet());
+        long handlesBefore = openHandles();
+        LoadReport report = new LoadReport(config);
+        Run run = new Run(new ClaynFileSystem(root), report);
+        try
+        {
+            run.prepare();
+            run.execute();
+            run.awaitEvents();
+            report.setLockStatistics(run.fs.getLockStatistics());
+        } finally
+        {
+            run.close();
+        }
+        report.setLeakedThreads(leakedThreads(threadsBefore));
+        long handlesAfter = openHandles();
+        report.setLeakedHandles(handlesBefore < 0 || handlesAfter < 0 ? -1 : Math.max(
+                0, handlesAfter - handlesBefore));
+        return report;
+    }
+
+    /**
+     * Runs the load once for every given number of threads, each time
+     * against a new filesystem in a new directory inside of the given one.
+     *
+     * @param root the directory for the filesystems
+     * @param threads the thread counts to run
+     * @return the reports of all runs
+     * @throws IOException if a filesystem can't be prepared
+     * @throws InterruptedException if interrupted while waiting for a run
+     */
+    public ScalingReport runScaling(File root, int... threads) throws IOException, InterruptedException
+    {
+        Map<Integer, LoadReport> reports = new TreeMap<>();
+        for (int count : threads)
+        {
+            LoadConfig single = new LoadConfig(config);
+            single.setThreads(count);
+            reports.put(count, new LoadHarness(single).run(new File(root,
+                    "threads-" + count)));
+        }
+        return new ScalingReport("threads", reports);
+    }
+
+    /**
+     * Runs the load once for every given durability, each time against a
+     * new filesystem in a new directory inside of the given one.
+     *
+     * @param root the directory for the filesystems
+     * @param levels the durabilities to run, the first one is the baseline
+     * of the comparison
+     * @return the reports of all runs
+     * @throws IOException if a filesystem can't be prepared
+     * @throws InterruptedException if interrupted while waiting for a run
+     */
+    public DurabilityReport runDurability(File root, Durability... levels) throws IOException, InterruptedException
+    {
+        Map<Durability, LoadReport> reports = new LinkedHashMap<>();
+        for (Durability level : levels)
+        {
+            LoadConfig single = new LoadConfig(config);
+            single.setDurability(level);
+            reports.put(level, new LoadHarness(single).run(new File(root,
+                    "durability-" + level)));
+        }
+        return new DurabilityReport(reports);
+    }
+
+    /**
+     * Runs the load once for every given number of roots, each time against
+     * a new {@link ShardedFileSystem} with the roots in a new directory inside
+     * of the given one. Only the operations the sharded filesystem supports
+     * are run: {@link Operation#READ}, {@link Operation#WRITE},
+     * {@link Operation#CREATE_DELETE}, {@link Operation#LIST} and
+     * {@link Operation#STAT}. The roots only spread the load if they are on
+     * different disks, so the given directory should contain mount points
+     * named {@code roots-<count>/root-<index>} for real measurements.
+     *
+     * @param root the directory for the roots
+     * @param counts the numbers of roots to run
+     * @return the reports of all runs
+     * @throws IOException if a filesystem can't be prepared
+     * @throws InterruptedException if interrupted while waiting for a run
+     */
+    public ScalingReport runSharded(File root, int... counts) throws IOException, InterruptedException
+    {
+        Map<Integer, LoadReport> reports = new TreeMap<>();
+        for (int count : counts)
+        {
+            File[] roots = new File[count];
+            for (int i = 0; i < count; i++)
+            {
+                roots[i] = new File(root, "roots-" + count + "/root-" + i);
+            }
+            LoadReport report = new LoadReport(config);
+            try (ShardedFileSystem fs = new ShardedFileSystem(roots))
+            {
+                ShardedRun run = new ShardedRun(fs, report);
+                run.prepare();
+                run.execute();
+            }
+            reports.put(count, report);
+        }
+        return new ScalingReport("roots", reports);
+    }
+
+    private static List<String> leakedThreads(Set<Thread> before) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + SETTLE_TIME;
+        List<String> leaked;
+        do
+        {
+            leaked = new ArrayList<>();
+            for (Thread t : Thread.getAllStackTraces().keySet())
+            {
+                if (t.isAlive() && !before.contains(t) && !ignored(t.getName()))
+                {
+                    leaked.add(t.getName());
+                }
+            }
+            if (!leaked.isEmpty())
+            {
+                Thread.sleep(50);
+            }
+        } while (!leaked.isEmpty() && System.currentTimeMillis() < deadline);
+        return leaked;
+    }
+
+    private static boolean ignored(String name)
+    {
+        for (String prefix : IGNORED_THREADS)
+        {
+            if (name.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of open file handles of this process or {@code -1}
+     * if the runtime doesn't provide it.
+     */
+    private static long openHandles()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        try
+        {
+            Class<?> unix = Class.forName(
+                    "com.sun.management.UnixOperatingSystemMXBean");
+            if (unix.isInstance(os))
+            {
+                return ((Number) unix.getMethod("getOpenFileDescriptorCount").invoke(
+                        os)).longValue();
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            // Not available on this runtime
+        }
+        return -1;
+    }
+
+    /**
+     * Runs the chosen operations from the configured number of threads and
+     * records their latencies.
+     */
+    private abstract class Load
+    {
+
+        final LoadReport report;
+        private final Operation[] choices;
+
+        Load(LoadReport report, Set<Operation> supported)
+        {
+            this.report = report;
+            List<Operation> ops = new ArrayList<>();
+            config.getMix().forEach((op, weight) ->
+            {
+                for (int i = 0; supported.contains(op) && i < weight; i++)
+                {
+                    ops.add(op);
+                }
+            });
+            if (ops.isEmpty())
+            {
+                throw new IllegalArgumentException("No operation has a weight");
+            }
+            this.choices = ops.toArray(new Operation[ops.size()]);
+        }
+
+        abstract void run(Operation op, int id, long seq,
+                ThreadLocalRandom random) throws Exception;
+
+        void execute() throws InterruptedException
+        {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < config.getThreads(); i++)
+            {
+                int id = i;
+                Thread t = new Thread(() -> work(id, start), "load-worker-" + i);
+                workers.add(t);
+                t.start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread t : workers)
+            {
+                t.join();
+            }
+            report.setElapsed(System.nanoTime() - begin);
+        }
+
+        private void work(int id, CountDownLatch start)
+        {
+            try
+            {
+                start.await();
+            } catch (InterruptedException ex)
+            {
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long interval = config.getRate() == 0 ? 0 : TimeUnit.SECONDS.toNanos(
+                    1) / config.getRate();
+            long begin = System.nanoTime();
+            long end = begin + TimeUnit.MILLISECONDS.toNanos(config.getDuration());
+            long next = begin;
+            for (long seq = 0;; seq++)
+            {
+                long now = System.nanoTime();
+                if (interval > 0)
+                {
+                    if (next > now)
+                    {
+                        LockSupport.parkNanos(next - now);
+                    }
+                } else
+                {
+                    next = now;
+                }
+                if (next >= end)
+                {
+                    return;
+                }
+                Operation op = choices[random.nextInt(choices.length)];
+                LoadReport.Stats stats = report.getStats(op);
+                try
+                {
+                    run(op, id, seq, random);
+                    stats.latency.record(System.nanoTime() - next);
+                } catch (Exception ex)
+                {
+                    stats.failed(ex);
+                }
+                next += interval;
+            }
+        }
+    }
+
+    private final class Run extends Load
+    {
+
+        private final ClaynFileSystem fs;
+        private final ExecutorService batchExecutor;
+        private final ExecutorService watchExecutor;
+        private final List<SimpleFile> files = new ArrayList<>();
+        private final List<SimpleFile> logs = new ArrayList<>();
+        private final Set<String> expected = ConcurrentHashMap.newKeySet();
+        private final Map<String, AtomicInteger> created = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> deleted = new ConcurrentHashMap<>();
+        private Directory data;
+        private ActiveDirectory events;
+        private GroupAppender appender;
+        private byte[] content;
+
+        Run(ClaynFileSystem fs, LoadReport report)
+        {
+            super(report, EnumSet.allOf(Operation.class));
+            this.fs = fs;
+            AtomicInteger ids = new AtomicInteger();
+            this.batchExecutor = Executors.newFixedThreadPool(
+                    config.getBatchConcurrency(), (r)
+                    -> new Thread(r, "load-batch-" + ids.incrementAndGet()));
+            this.watchExecutor = Executors.newSingleThreadExecutor((r)
+                    -> new Thread(r, "load-watch"));
+        }
+
+        void prepare() throws IOException
+        {
+            fs.setDurability(config.getDurability());
+            fs.setBatchExecutor(batchExecutor);
+            fs.setBatchConcurrency(config.getBatchConcurrency());
+            content = new byte[config.getFileSize()];
+            ThreadLocalRandom.current().nextBytes(content);
+            data = fs.getDirectory("data");
+            data.mkDirs();
+            Directory logDir = fs.getDirectory("logs");
+            logDir.mkDirs();
+            for (int i = 0; i < config.getFiles(); i++)
+            {
+                SimpleFile f = data.getFile("file" + i);
+                try (OutputStream out = f.openWrite())
+                {
+                    out.write(content);
+                }
+                files.add(f);
+                SimpleFile log = logDir.getFile("log" + i);
+                log.createSafe();
+                logs.add(log);
+            }
+            appender = ((CFSSimpleFileImpl) logDir.getFile("shared.log")).getAppender();
+            events = fs.getDirectory("events");
+            events.mkDirs();
+            if (config.isWatching())
+            {
+                ((CFSDirectoryImpl) events).subscribe(new WatchSubscriber()
+                {
+                    @Override
+                    public void onSubscribe(WatchSubscription subscription)
+                    {
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(FileModification mod)
+                    {
+                        if (mod.getModification() == FileModification.Modification.CREATE)
+                        {
+                            count(created, mod);
+                        } else if (mod.getModification() == FileModification.Modification.DELETE)
+                        {
+                            count(deleted, mod);
+                        }
+                    }
+                }, watchExecutor, CFSDirectoryImpl.DEFAULT_BUFFER_SIZE,
+                        OverflowStrategy.BLOCK);
+                events.activate();
+            }
+        }
+
+        private void count(Map<String, AtomicInteger> counts,
+                FileModification mod)
+        {
+            counts.computeIfAbsent(mod.getFile().getName(),
+                    (k) -> new AtomicInteger()).incrementAndGet();
+        }
+
+        @Override
+        void run(Operation op, int id, long seq,
+                ThreadLocalRandom random) throws Exception
+        {
+            SimpleFile file = files.get(random.nextInt(files.size()));
+            switch (op)
+            {
+                case READ:
+                    byte[] buf = new byte[8192];
+                    try (InputStream in = file.openRead())
+                    {
+                        while (in.read(buf) >= 0)
+                        {
+                            // Only reading
+                        }
+                    }
+                    break;
+                case WRITE:
+                    try (OutputStream out = file.openWrite())
+                    {
+                        out.write(content);
+                    }
+                    break;
+                case APPEND:
+                    try (OutputStream out = logs.get(random.nextInt(logs.size())).openAppend())
+                    {
+                        out.write(record(id, seq));
+                    }
+                    break;
+                case SHARED_APPEND:
+                    appender.append(record(id, seq)).join();
+                    break;
+                case CREATE_DELETE:
+                    String name = "event-" + id + "-" + seq;
+                    SimpleFile f = events.getFile(name);
+                    f.create();
+                    expected.add(name);
+                    f.delete();
+                    break;
+                case LIST:
+                    data.listFiles();
+                    break;
+                case STAT:
+                    file.getSize();
+                    file.getFileAttributes().lastModified();
+                    break;
+                case LOCK:
+                    PathLock lock = fs.lockExclusive(file);
+                    try
+                    {
+                        file.getSize();
+                    } finally
+                    {
+                        lock.close();
+                    }
+                    break;
+                case BATCH:
+                    List<BatchOperation> batch = new ArrayList<>();
+                    for (int i = 0; i < config.getBatchSize(); i++)
+                    {
+                        batch.add(BatchOperation.stat(files.get(random.nextInt(
+                                files.size())).getPath()));
+                    }
+                    fs.submitBatch(batch).join();
+                    break;
+                case SEQUENTIAL:
+                    for (int i = 0; i < config.getBatchSize(); i++)
+                    {
+                        SimpleFile stat = files.get(random.nextInt(
+                                files.size()));
+                        if (stat.exists())
+                        {
+                            stat.getSize();
+                            stat.getFileAttributes().lastModified();
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + op);
+            }
+        }
+
+        private byte[] record(int id, long seq)
+        {
+            return (id + ":" + seq + "\n").getBytes();
+        }
+
+        /**
+         * Waits until every created and deleted file was reported or the
+         * reports stopped changing and counts the missing and duplicate
+         * reports.
+         */
+        void awaitEvents() throws InterruptedException
+        {
+            if (!config.isWatching())
+            {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + SETTLE_TIME;
+            while (System.currentTimeMillis() < deadline && missing() > 0)
+            {
+                Thread.sleep(50);
+            }
+            long duplicate = 0;
+            for (String name : expected)
+            {
+                duplicate += Math.max(0, count(created, name) - 1);
+                duplicate += Math.max(0, count(deleted, name) - 1);
+            }
+            report.setEvents(expected.size() * 2L, missing(), duplicate);
+        }
+
+        private long missing()
+        {
+            long missing = 0;
+            for (String name : expected)
+            {
+                missing += count(created, name) == 0 ? 1 : 0;
+                missing += count(deleted, name) == 0 ? 1 : 0;
+            }
+            return missing;
+        }
+
+        private int count(Map<String, AtomicInteger> counts, String name)
+        {
+            AtomicInteger c = counts.get(name);
+            return c == null ? 0 : c.get();
+        }
+
+        void close() throws IOException, InterruptedException
+        {
+            if (events != null)
+            {
+                events.deactivate();
+            }
+            if (appender != null)
+            {
+                appender.close();
+            }
+            fs.setDurability(Durability.NONE);
+            batchExecutor.shutdown();
+            batchExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            watchExecutor.shutdown();
+            watchExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Runs the operations a {@link ShardedFileSystem} supports against one.
+     */
+    private final class ShardedRun extends Load
+    {
+
+        private final ShardedFileSystem fs;
+        private final List<SimpleFile> files = new ArrayList<>();
+        private Directory data;
+        private Directory events;
+        private byte[] content;
+
+        ShardedRun(ShardedFileSystem fs, LoadReport report)
+        {
+            super(report, EnumSet.of(Operation.READ, Operation.WRITE,
+                    Operation.CREATE_DELETE, Operation.LIST, Operation.STAT));
+            this.fs = fs;
+        }
+
+        void prepare() throws IOException
+        {
+            content = new byte[config.getFileSize()];
+            ThreadLocalRandom.current().nextBytes(content);
+            data = fs.getDirectory("data");
+            data.mkDirs();
+            for (int i = 0; i < config.getFiles(); i++)
+            {
+                SimpleFile f = data.getFile("file" + i);
+                try (OutputStream out = f.openWrite())
+                {
+                    out.write(content);
+                }
+                files.add(f);
+            }
+            events = fs.getDirectory("events");
+            events.mkDirs();
+        }
+
+        @Override
+        void run(Operation op, int id, long seq,
+                ThreadLocalRandom random) throws Exception
+        {
+            SimpleFile file = files.get(random.nextInt(files.size()));
+            switch (op)
+            {
+                case READ:
+                    byte[] buf = new byte[8192];
+                    try (InputStream in = file.openRead())
+                    {
+                        while (in.read(buf) >= 0)
+                        {
+                            // Only reading
+                        }
+                    }
+                    break;
+                case WRITE:
+                    try (OutputStream out = file.openWrite())
+                    {
+                        out.write(content);
+                    }
+                    break;
+                case CREATE_DELETE:
+                    SimpleFile f = events.getFile("event-" + id + "-" + seq);
+                    f.create();
+                    f.delete();
+                    break;
+                case LIST:
+                    data.listFiles();
+                    break;
+                case STAT:
+                    file.getSize();
+                    file.getFileAttributes().lastModified();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + op);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.test.load;
+
+import net.bplaced.clayn.cfs.impl.local.Durability;
+import net.bplaced.clayn.test.base.local.LocalBaseTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Short run of the {@link LoadHarness} to check that the filesystem works
+ * under concurrent load and doesn't leave threads behind.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class LoadHarnessTest
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(
+            LoadHarnessTest.class);
+
+    @Test
+    public void testMixedLoad() throws Exception
+    {
+        LoadConfig config = new LoadConfig();
+        config.setThreads(4);
+        config.setDuration(500);
+        LoadReport report = new LoadHarness(config).run(
+                LocalBaseTest.newFolder());
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug("Mixed load report:\n{}", report);
+        }
+        assertEquals(report.toString(), 0, report.getTotalErrors());
+        for (Operation op : Operation.values())
+        {
+            assertTrue(op + " was not run", report.getCount(op) > 0);
+        }
+        assertTrue(report.getLeakedThreads().toString(),
+                report.getLeakedThreads().isEmpty());
+        assertEquals(0, report.getDuplicateEvents());
+        if (System.getProperty("os.name").toLowerCase().contains("linux"))
+        {
+            assertEquals(0, report.getLostEvents());
+        }
+    }
+
+    @Test
+    public void testBatchComparison() throws Exception
+    {
+        LoadConfig config = new LoadConfig();
+        for (Operation op : Operation.values())
+        {
+            config.setWeight(op, 0);
+        }
+        config.setWeight(Operation.BATCH, 1);
+        config.setWeight(Operation.SEQUENTIAL, 1);
+        config.setThreads(2);
+        config.setDuration(300);
+        config.setBatchSize(64);
+        config.setBatchConcurrency(8);
+        config.setWatching(false);
+        LoadReport report = new LoadHarness(config).run(
+                LocalBaseTest.newFolder());
+        assertEquals(report.toString(), 0, report.getTotalErrors());
+        assertTrue(report.toString(), report.speedup(Operation.BATCH,
+                Operation.SEQUENTIAL) > 0);
+        assertTrue(report.toString().contains("compare.batch_speedup_p50="));
+    }
+
+    @Test
+    public void testLockScaling() throws Exception
+    {
+        LoadConfig config = new LoadConfig();
+        for (Operation op : Operation.values())
+        {
+            config.setWeight(op, 0);
+        }
+        config.setWeight(Operation.LOCK, 1);
+        config.setDuration(200);
+        config.setFiles(4);
+        config.setWatching(false);
+        ScalingReport scaling = new LoadHarness(config).runScaling(
+                LocalBaseTest.newFolder(), 1, 4);
+        assertEquals(2, scaling.getReports().size());
+        for (LoadReport report : scaling.getReports().values())
+        {
+            assertEquals(report.toString(), 0, report.getTotalErrors());
+            assertTrue(report.getCount(Operation.LOCK) > 0);
+            assertTrue(report.getLockStatistics().getAcquisitions()
+                    >= report.getCount(Operation.LOCK));
+        }
+        assertEquals(0, scaling.getReports().get(1).getLockStatistics().getContended());
+        assertTrue(scaling.getSpeedup(Operation.LOCK) > 0);
+        assertTrue(scaling.toString(), scaling.toString().contains(
+                "threads.4.locks.contended="));
+    }
+
+    @Test
+    public void testDurabilityComparison() throws Exception
+    {
+        LoadConfig config = new LoadConfig();
+        for (Operation op : Operation.values())
+        {
+            config.setWeight(op, 0);
+        }
+        config.setWeight(Operation.WRITE, 1);
+        config.setDuration(200);
+        config.setThreads(2);
+        config.setWatching(false);
+        DurabilityReport durability = new LoadHarness(config).runDurability(
+                LocalBaseTest.newFolder(), Durability.values());
+        assertEquals(Durability.values().length, durability.getReports().size());
+        for (LoadReport report : durability.getReports().values())
+        {
+            assertEquals(report.toString(), 0, report.getTotalErrors());
+            assertTrue(report.getCount(Operation.WRITE) > 0);
+        }
+        assertEquals(1, durability.getSlowdown(Durability.NONE,
+                Operation.WRITE), 0.001);
+        assertTrue(durability.toString(), durability.toString().contains(
+                "slowdown.PERIODIC.WRITE="));
+    }
+
+    @Test
+    public void testShardedThroughputPerRootCount() throws Exception
+    {
+        LoadConfig config = new LoadConfig();
+        config.setDuration(200);
+        config.setThreads(2);
+        ScalingReport sharded = new LoadHarness(config).runSharded(
+                LocalBaseTest.newFolder(), 1, 3);
+        assertEquals(2, sharded.getReports().size());
+        for (LoadReport report : sharded.getReports().values())
+        {
+            assertEquals(report.toString(), 0, report.getTotalErrors());
+            assertTrue(report.getCount(Operation.WRITE) > 0);
+            assertEquals(0, report.getCount(Operation.APPEND));
+        }
+        assertTrue(sharded.toString(), sharded.toString().contains(
+                "roots.3.op.WRITE.throughput_per_s="));
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.test.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import net.bplaced.clayn.cfs.impl.local.LockStatistics;
+
+/**
+ * Result of a {@link LoadHarness} run. The report is written as
+ * {@code key=value} lines in a fixed order so reports of different versions
+ * can be compared with diff.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class LoadReport
+{
+
+    private final LoadConfig config;
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private long elapsed;
+    private long expectedEvents;
+    private long lostEvents;
+    private long duplicateEvents;
+    private final List<String> leakedThreads = new ArrayList<>();
+    private long leakedHandles = -1;
+    private LockStatistics locks;
+
+    LoadReport(LoadConfig config)
+    {
+        this.config = config;
+        for (Operation op : Operation.values())
+        {
+            stats.put(op, new Stats());
+        }
+    }
+
+    Stats getStats(Operation op)
+    {
+        return stats.get(op);
+    }
+
+    void setElapsed(long elapsed)
+    {
+        this.elapsed = elapsed;
+    }
+
+    void setEvents(long expected, long lost, long duplicate)
+    {
+        this.expectedEvents = expected;
+        this.lostEvents = lost;
+        this.duplicateEvents = duplicate;
+    }
+
+    void setLeakedThreads(List<String> names)
+    {
+        leakedThreads.clear();
+        leakedThreads.addAll(names);
+        Collections.sort(leakedThreads);
+    }
+
+    void setLockStatistics(LockStatistics locks)
+    {
+        this.locks = locks;
+    }
+
+    void setLeakedHandles(long leakedHandles)
+    {
+        this.leakedHandles = leakedHandles;
+    }
+
+    public long getCount(Operation op)
+    {
+        return stats.get(op).latency.getCount();
+    }
+
+    public long getErrors(Operation op)
+    {
+        return stats.get(op).errors.sum();
+    }
+
+    public long getTotalErrors()
+    {
+        long errors = 0;
+        for (Operation op : Operation.values())
+        {
+            errors += getErrors(op);
+        }
+        return errors;
+    }
+
+    /**
+     * Returns how often the given operation was run per second.
+     *
+     * @param op the operation
+     * @return the completed operations per second
+     */
+    public double getThroughput(Operation op)
+    {
+        return elapsed == 0 ? 0 : getCount(op) * 1e9 / elapsed;
+    }
+
+    /**
+     * Returns the contention of the file locks during the run.
+     *
+     * @return the lock statistics or {@code null} if the run didn't finish
+     */
+    public LockStatistics getLockStatistics()
+    {
+        return locks;
+    }
+
+    /**
+     * Returns the given percentile of the latencies of an operation.
+     *
+     * @param op the operation
+     * @param share the share, e.g. {@code 0.999}
+     * @return the latency in nanoseconds
+     */
+    public long getLatency(Operation op, double share)
+    {
+        return stats.get(op).latency.getPercentile(share);
+    }
+
+    public long getExpectedEvents()
+    {
+        return expectedEvents;
+    }
+
+    public long getLostEvents()
+    {
+        return lostEvents;
+    }
+
+    public long getDuplicateEvents()
+    {
+        return duplicateEvents;
+    }
+
+    public List<String> getLeakedThreads()
+    {
+        return Collections.unmodifiableList(leakedThreads);
+    }
+
+    /**
+     * Returns how many more file handles were open after the run than
+     * before.
+     *
+     * @return the difference or {@code -1} if the number of handles can't be
+     * read on this system
+     */
+    public long getLeakedHandles()
+    {
+        return leakedHandles;
+    }
+
+    /**
+     * Compares the median latencies of two operations that do the same work.
+     *
+     * @param op the operation to compare
+     * @param baseline the operation to compare with
+     * @return how many times faster {@code op} was than {@code baseline} or
+     * {@code 0} if one of them wasn't run
+     */
+    public double speedup(Operation op, Operation baseline)
+    {
+        long latency = getLatency(op, 0.5);
+        long base = getLatency(baseline, 0.5);
+        return getCount(op) == 0 || getCount(baseline) == 0 || latency == 0 ? 0
+                : (double) base / latency;
+    }
+
+    public void writeTo(File file) throws IOException
+    {
+        Files.write(file.toPath(), toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        line(sb, "compare.batch_speedup_p50", String.format(Locale.ROOT,
+                "%.2f", speedup(Operation.BATCH, Operation.SEQUENTIAL)));
+        line(sb, "config.batchConcurrency", config.getBatchConcurrency());
+        line(sb, "config.batchSize", config.getBatchSize());
+        line(sb, "config.durability", config.getDurability());
+        line(sb, "config.duration_ms", config.getDuration());
+        line(sb, "config.fileSize", config.getFileSize());
+        line(sb, "config.files", config.getFiles());
+        config.getMix().forEach((op, w) -> line(sb, "config.mix." + op, w));
+        line(sb, "config.rate", config.getRate());
+        line(sb, "config.threads", config.getThreads());
+        line(sb, "config.watching", config.isWatching());
+        line(sb, "events.duplicate", duplicateEvents);
+        line(sb, "events.expected", expectedEvents);
+        line(sb, "events.lost", lostEvents);
+        line(sb, "leaks.handles", leakedHandles);
+        line(sb, "leaks.threads", leakedThreads.size());
+        for (String name : leakedThreads)
+        {
+            line(sb, "leaks.thread", name);
+        }
+        if (locks != null)
+        {
+            line(sb, "locks.acquisitions", locks.getAcquisitions());
+            line(sb, "locks.contended", locks.getContended());
+            line(sb, "locks.process", locks.getProcessLocks());
+            line(sb, "locks.wait_us", locks.getWaitNanos() / 1000);
+        }
+        for (Map.Entry<Operation, Stats> e : stats.entrySet())
+        {
+            String p = "op." + e.getKey() + ".";
+            LatencyHistogram h = e.getValue().latency;
+            long count = h.getCount();
+            if (count == 0 && e.getValue().errors.sum() == 0)
+            {
+                continue;
+            }
+            line(sb, p + "count", count);
+            line(sb, p + "errors", e.getValue().errors.sum());
+            if (e.getValue().firstError != null)
+            {
+                line(sb, p + "firstError", e.getValue().firstError);
+            }
+            line(sb, p + "max_us", h.getMax() / 1000);
+            line(sb, p + "p50_us", h.getPercentile(0.5) / 1000);
+            line(sb, p + "p999_us", h.getPercentile(0.999) / 1000);
+            line(sb, p + "p99_us", h.getPercentile(0.99) / 1000);
+            line(sb, p + "throughput_per_s", String.format(Locale.ROOT, "%.1f",
+                    getThroughput(e.getKey())));
+        }
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String key, Object value)
+    {
+        sb.append(key).append('=').append(value).append('\n');
+    }
+
+    static final class Stats
+    {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        volatile String firstError;
+
+        void failed(Exception ex)
+        {
+            errors.increment();
+            if (firstError == null)
+            {
+                firstError = ex.toString().replace('\n', ' ');
+            }
+        }
+    }
+}
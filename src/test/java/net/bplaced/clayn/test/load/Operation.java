@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.test.load;
+
+/**
+ * Operations the {@link LoadHarness} can run.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public enum Operation
+{
+    /**
+     * Reads one of the prepared files completely.
+     */
+    READ,
+    /**
+     * Overwrites one of the prepared files.
+     */
+    WRITE,
+    /**
+     * Appends a small record to one of the log files using
+     * {@code openAppend}.
+     */
+    APPEND,
+    /**
+     * Appends a small record to a log file shared by all threads using a
+     * {@code GroupAppender}.
+     */
+    SHARED_APPEND,
+    /**
+     * Creates and deletes a new file in the watched directory.
+     */
+    CREATE_DELETE,
+    /**
+     * Lists the prepared files.
+     */
+    LIST,
+    /**
+     * Reads the size and modification time of one of the prepared files.
+     */
+    STAT,
+    /**
+     * Reads the size of one of the prepared files while holding an
+     * exclusive lock for it.
+     */
+    LOCK,
+    /**
+     * Runs a batch of stat operations using
+     * {@code ClaynFileSystem.submitBatch}.
+     */
+    BATCH,
+    /**
+     * Runs as many stat operations as {@link #BATCH} one after another on the
+     * calling thread, so both operations can be compared.
+     */
+    SEQUENTIAL
+}
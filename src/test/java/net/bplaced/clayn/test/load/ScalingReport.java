@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 Clayn <clayn_osmato@gmx.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.bplaced.clayn.test.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import net.bplaced.clayn.cfs.impl.local.LockStatistics;
+
+/**
+ * Result of {@link LoadHarness#runScaling(java.io.File, int...)} and
+ * {@link LoadHarness#runSharded(java.io.File, int...)}. Shows for every
+ * thread or root count the throughput of the operations and the contention of
+ * the file locks, so it can be seen how well the filesystem scales with more
+ * threads or roots. Like the {@link LoadReport} it is written as sorted
+ * {@code key=value} lines.
+ *
+ * @author Clayn <clayn_osmato@gmx.de>
+ */
+public class ScalingReport
+{
+
+    private final String dimension;
+    private final Map<Integer, LoadReport> reports;
+
+    ScalingReport(String dimension, Map<Integer, LoadReport> reports)
+    {
+        this.dimension = dimension;
+        this.reports = Collections.unmodifiableMap(reports);
+    }
+
+    /**
+     * @return the reports of the runs mapped to their thread or root count
+     */
+    public Map<Integer, LoadReport> getReports()
+    {
+        return reports;
+    }
+
+    /**
+     * Compares the throughput of an operation with the most threads or roots
+     * to the one with the fewest.
+     *
+     * @param op the operation
+     * @return how many times more operations were completed per second or
+     * {@code 0} if the operation wasn't run
+     */
+    public double getSpeedup(Operation op)
+    {
+        if (reports.isEmpty())
+        {
+            return 0;
+        }
+        int min = Collections.min(reports.keySet());
+        int max = Collections.max(reports.keySet());
+        double base = reports.get(min).getThroughput(op);
+        return base == 0 ? 0 : reports.get(max).getThroughput(op) / base;
+    }
+
+    public void writeTo(File file) throws IOException
+    {
+        Files.write(file.toPath(), toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, LoadReport> e : reports.entrySet())
+        {
+            String p = dimension + "." + e.getKey() + ".";
+            LoadReport report = e.getValue();
+            line(sb, p + "errors", report.getTotalErrors());
+            LockStatistics locks = report.getLockStatistics();
+            if (locks != null)
+            {
+                line(sb, p + "locks.acquisitions", locks.getAcquisitions());
+                line(sb, p + "locks.contended", locks.getContended());
+                line(sb, p + "locks.contended_share", format(
+                        locks.getAcquisitions() == 0 ? 0
+                                : (double) locks.getContended() / locks.getAcquisitions()));
+                line(sb, p + "locks.wait_us", locks.getWaitNanos() / 1000);
+            }
+            for (Operation op : Operation.values())
+            {
+                if (report.getCount(op) > 0)
+                {
+                    line(sb, p + "op." + op + ".p99_us", report.getLatency(op,
+                            0.99) / 1000);
+                    line(sb, p + "op." + op + ".throughput_per_s", format(
+                            report.getThroughput(op)));
+                }
+            }
+        }
+        for (Operation op : Operation.values())
+        {
+            double speedup = getSpeedup(op);
+            if (speedup > 0)
+            {
+                line(sb, "speedup." + op, format(speedup));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private static void line(StringBuilder sb, String key, Object value)
+    {
+        sb.append(key).append('=').append(value).append('\n');
+    }
+}